@@ -0,0 +1,291 @@
+package app;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.bouncycastle.util.encoders.Hex;
+
+import model.Documento;
+import model.dto.CertificadoDTO;
+
+/**
+ * Daemon de assinatura para clientes locais.
+ * <p>
+ * Aceita conexões somente na interface de loopback e atende um comando por
+ * linha (UTF-8), respondendo com uma linha iniciada por <code>OK</code> ou
+ * <code>ERRO</code>.
+ * <p>
+ * A primeira linha de cada conexão deve ser
+ * <code>AUTENTICAR &lt;segredo&gt;</code>, com o segredo aleatório gerado a
+ * cada execução e gravado em {@link #getArquivoSegredo()}, legível somente
+ * pelo dono. Sem ela a conexão é encerrada antes de qualquer comando, de modo
+ * que outros usuários da máquina não possam assinar com o token autenticado.
+ * Comandos:
+ * <ul>
+ * <li><code>LISTAR</code>: uma linha <code>OK alias;nome;validade</code> por
+ * certificado, seguida de <code>FIM</code>;</li>
+ * <li><code>ASSINAR "&lt;alias&gt;" &lt;arquivo&gt;</code>: grava a assinatura
+ * <i>detached</i> em <code>&lt;arquivo&gt;.p7s</code> e responde
+ * <code>OK &lt;arquivo&gt;.p7s</code>. O alias fica entre aspas, escapando
+ * <code>"</code> e <code>\</code> com <code>\</code>; sem aspas ele termina
+ * no primeiro espaço;</li>
+ * <li><code>SAIR</code>: encerra a conexão.</li>
+ * </ul>
+ * Os pedidos são atendidos pelo {@link ServicoAssinatura}, que mantém o token
+ * autenticado entre as conexões.
+ *
+ */
+public class DaemonAssinatura implements AutoCloseable {
+
+	public static final int PORTA_PADRAO = 5051;
+
+	/**
+	 * Propriedade de sistema com o arquivo onde o segredo da sessão é gravado.
+	 */
+	public static final String PROPRIEDADE_ARQUIVO_SEGREDO = "assinador.daemon.segredo";
+
+	/**
+	 * Tempo máximo, em milissegundos, para o cliente se autenticar.
+	 */
+	private static final int TEMPO_AUTENTICACAO = 10000;
+
+	private final ServicoAssinatura servico;
+	private final ServerSocket servidor;
+	private final byte[] segredo;
+	private final Path arquivoSegredo;
+	private final ExecutorService conexoes = Executors.newCachedThreadPool(r -> {
+		Thread thread = new Thread(r, "daemon-conexao");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * @param servico
+	 *            {@link ServicoAssinatura} que atende os pedidos.
+	 * @param porta
+	 *            porta TCP na interface de loopback.
+	 * @throws IOException
+	 *             Caso a porta não possa ser aberta.
+	 */
+	public DaemonAssinatura(ServicoAssinatura servico, int porta) throws IOException {
+		this(servico, porta, Paths.get(System.getProperty(PROPRIEDADE_ARQUIVO_SEGREDO,
+				System.getProperty("user.home") + File.separator + ".crvirtual-assinador" + File.separator + "daemon.segredo")));
+	}
+
+	/**
+	 * @param servico
+	 *            {@link ServicoAssinatura} que atende os pedidos.
+	 * @param porta
+	 *            porta TCP na interface de loopback.
+	 * @param arquivoSegredo
+	 *            {@link Path} arquivo, legível somente pelo dono, onde o
+	 *            segredo da sessão é gravado.
+	 * @throws IOException
+	 *             Caso a porta não possa ser aberta ou o segredo não possa
+	 *             ser gravado.
+	 */
+	public DaemonAssinatura(ServicoAssinatura servico, int porta, Path arquivoSegredo) throws IOException {
+		this.servico = servico;
+
+		byte[] aleatorio = new byte[32];
+		new SecureRandom().nextBytes(aleatorio);
+		this.segredo = Hex.toHexString(aleatorio).getBytes(StandardCharsets.US_ASCII);
+		this.arquivoSegredo = arquivoSegredo;
+		gravarSegredo(arquivoSegredo, this.segredo);
+
+		try {
+			this.servidor = new ServerSocket(porta, 50, InetAddress.getLoopbackAddress());
+		} catch (IOException e) {
+			Files.deleteIfExists(arquivoSegredo);
+			throw e;
+		}
+	}
+
+	/**
+	 * Atende conexões até que o daemon seja encerrado.
+	 */
+	public void executar() throws IOException {
+		while (!this.servidor.isClosed()) {
+			Socket socket;
+			try {
+				socket = this.servidor.accept();
+			} catch (SocketException e) {
+				// Servidor encerrado
+				return;
+			}
+			this.conexoes.execute(() -> this.atender(socket));
+		}
+	}
+
+	public int getPorta() {
+		return this.servidor.getLocalPort();
+	}
+
+	/**
+	 * Arquivo com o segredo que os clientes devem apresentar em
+	 * <code>AUTENTICAR</code>.
+	 */
+	public Path getArquivoSegredo() {
+		return this.arquivoSegredo;
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.servidor.close();
+		this.conexoes.shutdownNow();
+		Files.deleteIfExists(this.arquivoSegredo);
+	}
+
+	/**
+	 * Grava o segredo em um arquivo novo, criado já com permissão somente
+	 * para o dono.
+	 */
+	private static void gravarSegredo(Path arquivo, byte[] segredo) throws IOException {
+		Path diretorio = arquivo.toAbsolutePath().getParent();
+		boolean posix = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+
+		if (diretorio != null && !Files.isDirectory(diretorio)) {
+			if (posix) {
+				Files.createDirectories(diretorio, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+			} else {
+				Files.createDirectories(diretorio);
+			}
+		}
+
+		Files.deleteIfExists(arquivo);
+		if (posix) {
+			Files.createFile(arquivo, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		} else {
+			Files.createFile(arquivo);
+			File file = arquivo.toFile();
+			file.setReadable(false, false);
+			file.setWritable(false, false);
+			file.setReadable(true, true);
+			file.setWritable(true, true);
+		}
+		Files.write(arquivo, segredo, StandardOpenOption.TRUNCATE_EXISTING);
+	}
+
+	private void atender(Socket socket) {
+		try (Socket s = socket;
+				BufferedReader entrada = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+				PrintWriter saida = new PrintWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8), true)) {
+
+			s.setSoTimeout(TEMPO_AUTENTICACAO);
+			if (!this.autenticar(entrada.readLine())) {
+				saida.println("ERRO autenticação necessária");
+				return;
+			}
+			s.setSoTimeout(0);
+			saida.println("OK");
+
+			String linha;
+			while ((linha = entrada.readLine()) != null) {
+				String[] partes = linha.trim().split(" ", 2);
+				String comando = partes[0].toUpperCase();
+
+				if ("SAIR".equals(comando)) {
+					return;
+				}
+
+				try {
+					String[] argumentos = ("ASSINAR".equals(comando) && partes.length == 2 ? separarAlias(partes[1]) : null);
+
+					if ("LISTAR".equals(comando)) {
+						for (CertificadoDTO certificado : this.servico.listarTodos()) {
+							saida.println("OK " + certificado.getAlias() + ";" + certificado.getNomeSignatario() + ";" + certificado.getValidade());
+						}
+						saida.println("FIM");
+					} else if (argumentos != null) {
+						saida.println("OK " + this.assinar(argumentos[0], new File(argumentos[1])));
+					} else {
+						saida.println("ERRO comando inválido: " + linha);
+					}
+				} catch (Exception e) {
+					Throwable causa = (e instanceof ExecutionException ? e.getCause() : e);
+					saida.println("ERRO " + causa.getMessage());
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("Conexão encerrada: " + e.getMessage());
+		}
+	}
+
+	private boolean autenticar(String linha) {
+		if (linha == null) {
+			return false;
+		}
+		String[] partes = linha.trim().split(" ", 2);
+		return partes.length == 2 && "AUTENTICAR".equalsIgnoreCase(partes[0])
+				&& MessageDigest.isEqual(this.segredo, partes[1].trim().getBytes(StandardCharsets.US_ASCII));
+	}
+
+	/**
+	 * Separa o alias, entre aspas ou até o primeiro espaço, do caminho do
+	 * arquivo.
+	 *
+	 * @return alias e arquivo ou <code>null</code> caso os argumentos sejam
+	 *         inválidos.
+	 */
+	static String[] separarAlias(String argumentos) {
+		int fim;
+		String alias;
+		if (argumentos.startsWith("\"")) {
+			StringBuilder sb = new StringBuilder();
+			int i = 1;
+			while (i < argumentos.length() && argumentos.charAt(i) != '"') {
+				char c = argumentos.charAt(i);
+				if (c == '\\' && i + 1 < argumentos.length()) {
+					c = argumentos.charAt(++i);
+				}
+				sb.append(c);
+				i++;
+			}
+			if (i >= argumentos.length()) {
+				return null;
+			}
+			alias = sb.toString();
+			fim = i + 1;
+		} else {
+			fim = argumentos.indexOf(' ');
+			if (fim < 0) {
+				return null;
+			}
+			alias = argumentos.substring(0, fim);
+		}
+
+		String arquivo = argumentos.substring(fim).trim();
+		if (alias.isEmpty() || arquivo.isEmpty()) {
+			return null;
+		}
+		return new String[] { alias, arquivo };
+	}
+
+	private String assinar(String alias, File arquivo) throws IOException, InterruptedException, ExecutionException {
+		byte[] assinatura = this.servico.assinar(alias, Documento.streaming(arquivo)).get();
+
+		File destino = new File(arquivo.getPath() + ".p7s");
+		Files.write(destino.toPath(), assinatura);
+		return destino.getPath();
+	}
+}
@@ -0,0 +1,100 @@
+package app;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.function.Consumer;
+
+import org.xnio.ChannelListener;
+import org.xnio.IoUtils;
+import org.xnio.channels.StreamSourceChannel;
+
+import io.undertow.connector.PooledByteBuffer;
+import io.undertow.server.HttpServerExchange;
+
+/**
+ * Leitura não bloqueante do corpo de uma requisição, calculando o hash à
+ * medida que os blocos chegam.
+ * <p>
+ * Utiliza um único buffer do pool da conexão por requisição: cada bloco lido
+ * é entregue ao {@link MessageDigest} e o buffer é reutilizado, de modo que a
+ * memória não depende do tamanho do documento. Quando o canal não possui
+ * dados disponíveis a leitura é retomada pelo listener do canal, sem ocupar a
+ * thread de I/O. Ao final o hash é entregue ao consumidor informado.
+ *
+ */
+class LeituraHash implements ChannelListener<StreamSourceChannel> {
+
+	private final HttpServerExchange exchange;
+	private final MessageDigest digest;
+	private final Consumer<byte[]> conclusao;
+
+	private PooledByteBuffer buffer;
+
+	/**
+	 * @param exchange
+	 *            {@link HttpServerExchange} requisição já despachada.
+	 * @param digest
+	 *            {@link MessageDigest} do algoritmo de hash.
+	 * @param conclusao
+	 *            {@link Consumer} que recebe o hash do corpo completo.
+	 */
+	LeituraHash(HttpServerExchange exchange, MessageDigest digest, Consumer<byte[]> conclusao) {
+		this.exchange = exchange;
+		this.digest = digest;
+		this.conclusao = conclusao;
+	}
+
+	/**
+	 * Inicia a leitura do corpo.
+	 */
+	void ler() {
+		StreamSourceChannel canal = this.exchange.getRequestChannel();
+		if (canal == null) {
+			// Corpo já consumido por outro handler
+			this.exchange.setStatusCode(500);
+			this.exchange.endExchange();
+			return;
+		}
+		this.buffer = this.exchange.getConnection().getByteBufferPool().allocate();
+		this.handleEvent(canal);
+	}
+
+	@Override
+	public void handleEvent(StreamSourceChannel canal) {
+		ByteBuffer bloco = this.buffer.getBuffer();
+		try {
+			int lidos;
+			while ((lidos = canal.read(bloco)) > 0) {
+				bloco.flip();
+				this.digest.update(bloco);
+				bloco.clear();
+			}
+
+			if (lidos == 0) {
+				// Sem dados disponíveis: continua quando o canal for legível
+				canal.getReadSetter().set(this);
+				canal.resumeReads();
+				return;
+			}
+
+			canal.suspendReads();
+			this.liberar();
+			this.conclusao.accept(this.digest.digest());
+
+		} catch (IOException e) {
+			// Conexão interrompida ou corpo acima do tamanho máximo
+			this.liberar();
+			IoUtils.safeClose(canal);
+			this.exchange.setStatusCode(400);
+			this.exchange.endExchange();
+		}
+	}
+
+	private void liberar() {
+		if (this.buffer != null) {
+			this.buffer.close();
+			this.buffer = null;
+		}
+	}
+}
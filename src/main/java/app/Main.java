@@ -5,20 +5,27 @@ import java.awt.SystemTray;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Base64;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import javax.swing.JOptionPane;
 
 import org.apache.commons.io.FileUtils;
 
 import model.Documento;
-//import io.undertow.Undertow;
-//import io.undertow.server.HttpHandler;
-//import io.undertow.server.HttpServerExchange;
-//import io.undertow.util.Headers;
 import model.dto.CertificadoDTO;
 import model.exception.AutenticacaoNecessariaException;
 import model.exception.ErroAoAssinarException;
@@ -33,10 +40,60 @@ public class Main {
 	public static final String HOST = "localhost";
 	public static final int PORT = 5050;
 	
+	/**
+	 * Propriedade de sistema com o tempo, em minutos, após o qual o PIN em
+	 * cache do daemon é descartado.
+	 */
+	public static final String PROPRIEDADE_TEMPO_OCIOSO = "assinador.pin.ocioso.minutos";
+	
+	/**
+	 * Propriedade de sistema com o segredo HMAC (Base64) dos JWT aceitos pela
+	 * API local.
+	 */
+	public static final String PROPRIEDADE_JWT_SEGREDO = "assinador.jwt.segredo";
+	
+	/**
+	 * Propriedade de sistema com o arquivo da chave pública RSA (X.509, PEM ou
+	 * DER) dos JWT aceitos pela API local.
+	 */
+	public static final String PROPRIEDADE_JWT_CHAVE_PUBLICA = "assinador.jwt.chave-publica";
+	
+	/**
+	 * Propriedade de sistema com as origens, separadas por vírgula, autorizadas
+	 * a chamar a API local pelo navegador (CORS).
+	 */
+	public static final String PROPRIEDADE_CORS_ORIGENS = "assinador.cors.origens";
+	
 	public static void main(final String[] args) throws Exception {
-        smartCard();
+		if (args.length > 0 && "--daemon".equals(args[0])) {
+			daemon(args.length > 1 ? Integer.parseInt(args[1]) : DaemonAssinatura.PORTA_PADRAO);
+		}
+		else if (args.length > 0 && "--servidor".equals(args[0])) {
+			containerLocal();
+		}
+		else {
+			smartCard();
+		}
     }
 	
+	/**
+	 * Executa o daemon de assinatura, mantendo o token autenticado entre os
+	 * pedidos dos clientes locais.
+	 * 
+	 * @param porta
+	 *            porta na interface de loopback.
+	 */
+	public static void daemon(int porta) throws IOException {
+		long tempoOcioso = Long.getLong(PROPRIEDADE_TEMPO_OCIOSO, ServicoAssinatura.TEMPO_OCIOSO_PADRAO_MINUTOS);
+		
+		try (ServicoAssinatura servico = new ServicoAssinatura(() -> JOptionPane.showInputDialog("Informe o PIN"), tempoOcioso, TimeUnit.MINUTES);
+				DaemonAssinatura daemon = new DaemonAssinatura(servico, porta)) {
+			
+			System.out.println("Daemon de assinatura em " + HOST + ":" + daemon.getPorta() + " (segredo em " + daemon.getArquivoSegredo() + ")  Aperte ^C para finalizar");
+			daemon.executar();
+		}
+	}
+	
 	public static void smartCard()  {
 		
 		String pin = null;
@@ -66,8 +123,8 @@ public class Main {
 				
 				InputStream is = Main.class.getResourceAsStream("/images/key-icon.png");
 				
-				Documento documento = Documento.from(is);
-				byte [] assinatura =  repository.assinar(certificado.getAlias(), pin, documento);
+				Documento documento = Documento.streaming(is, SmartCardRepository.ALGORITMO_HASH);
+				byte [] assinatura =  repository.assinar(certificado.getAlias(), documento);
 				
 				Path path = Paths.get( System.getProperty("user.dir") + File.separator + "src/main/resources/assinatura.p7s" );
 	            Files.write(path, assinatura);
@@ -81,24 +138,53 @@ public class Main {
 	
 	
 	
-	/*
+	/**
+	 * Cria o verificador de JWT a partir das propriedades
+	 * {@link #PROPRIEDADE_JWT_SEGREDO} e {@link #PROPRIEDADE_JWT_CHAVE_PUBLICA}.
+	 */
+	private static VerificadorJwt verificadorJwt() throws IOException, GeneralSecurityException {
+		String segredo = System.getProperty(PROPRIEDADE_JWT_SEGREDO);
+		String arquivoChave = System.getProperty(PROPRIEDADE_JWT_CHAVE_PUBLICA);
+		
+		PublicKey chaveRsa = null;
+		if (arquivoChave != null) {
+			String conteudo = new String(Files.readAllBytes(Paths.get(arquivoChave)), StandardCharsets.US_ASCII);
+			byte[] der = conteudo.contains("-----BEGIN")
+					? Base64.getMimeDecoder().decode(conteudo.replaceAll("-----[A-Z ]+-----", ""))
+					: Files.readAllBytes(Paths.get(arquivoChave));
+			chaveRsa = KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(der));
+		}
+		
+		return new VerificadorJwt(segredo == null ? null : Base64.getDecoder().decode(segredo), chaveRsa);
+	}
+	
+	/**
+	 * Inicia a API HTTP local de assinatura em {@link #HOST}:{@link #PORT}.
+	 */
 	public static void containerLocal() throws Exception {
-		Undertow server = Undertow.builder()
-                .addHttpListener(PORT, HOST)
-                .setHandler(new HttpHandler() {
-                    @Override
-                    public void handleRequest(final HttpServerExchange exchange) throws Exception {
-                        exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "text/plain");
-                        exchange.getResponseSender().send("Hello World");
-                    }
-                }).build();
-        server.start();
+		long tempoOcioso = Long.getLong(PROPRIEDADE_TEMPO_OCIOSO, ServicoAssinatura.TEMPO_OCIOSO_PADRAO_MINUTOS);
+		ServicoAssinatura servico = new ServicoAssinatura(() -> JOptionPane.showInputDialog("Informe o PIN"), tempoOcioso, TimeUnit.MINUTES);
+		
+		Set<String> origens = new HashSet<>();
+		for (String origem : System.getProperty(PROPRIEDADE_CORS_ORIGENS, "").split(",")) {
+			if (!origem.trim().isEmpty()) {
+				origens.add(origem.trim());
+			}
+		}
+		
+		ServidorAssinatura server = new ServidorAssinatura(servico, verificadorJwt(), origens, HOST, PORT);
+        server.iniciar();
+        
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+        	server.close();
+        	servico.close();
+        }));
         
         System.out.println("iniciou em http://" + HOST + ":" + PORT +  "/  Aperte ^C para finalizar");
         
         if (Desktop.isDesktopSupported() && Desktop.getDesktop().isSupported(Desktop.Action.BROWSE)) {
             try {
-				Desktop.getDesktop().browse(new URI("http://" + HOST + ":" + PORT));
+				Desktop.getDesktop().browse(new URI("http://" + HOST + ":" + PORT + "/certificados"));
 			} catch (IOException | URISyntaxException e) {
 				e.printStackTrace();
 			}
@@ -111,7 +197,6 @@ public class Main {
         	System.out.println("Tray icon não suportado");
         }
 	}
-	*/
 
 
 }
@@ -0,0 +1,237 @@
+package app;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import model.Documento;
+import model.dto.CertificadoDTO;
+import model.exception.AutenticacaoNecessariaException;
+import model.exception.ErroAoLerSmartCardException;
+import model.exception.NenhumCertificadoEncontradoException;
+import model.exception.PinIncorretoException;
+import repository.SmartCardRepository;
+
+/**
+ * Serviço de assinatura de longa duração.
+ * <p>
+ * Mantém o {@link SmartCardRepository} inicializado (token autenticado e
+ * material dos signatários em cache) entre os pedidos, de modo que cada
+ * assinatura custa somente a operação no token. O PIN é mantido em memória
+ * até que o serviço fique ocioso pelo tempo configurado; então o token é
+ * liberado, o PIN descartado e o próximo pedido solicita o PIN novamente por
+ * meio de {@link SolicitacaoPin}.
+ *
+ */
+public class ServicoAssinatura implements AutoCloseable {
+
+	/**
+	 * Obtém o PIN do usuário quando o serviço precisa autenticar o token.
+	 */
+	@FunctionalInterface
+	public interface SolicitacaoPin {
+
+		/**
+		 * @return PIN informado ou <code>null</code> caso o usuário desista.
+		 */
+		String solicitar();
+	}
+
+	public static final long TEMPO_OCIOSO_PADRAO_MINUTOS = 15;
+
+	private final SolicitacaoPin solicitacaoPin;
+	private final long tempoOciosoNanos;
+
+	private final ScheduledExecutorService relogio = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread thread = new Thread(r, "assinatura-ociosidade");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private SmartCardRepository repository;
+	private char[] pin;
+
+	private volatile long ultimoUso;
+	private boolean expiracaoAgendada;
+
+	public ServicoAssinatura(SolicitacaoPin solicitacaoPin) {
+		this(solicitacaoPin, TEMPO_OCIOSO_PADRAO_MINUTOS, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * @param solicitacaoPin
+	 *            {@link SolicitacaoPin} utilizado quando o token precisa ser
+	 *            autenticado.
+	 * @param tempoOcioso
+	 *            tempo sem pedidos após o qual o PIN é descartado e o token
+	 *            liberado.
+	 * @param unidade
+	 *            {@link TimeUnit} unidade do tempo ocioso.
+	 */
+	public ServicoAssinatura(SolicitacaoPin solicitacaoPin, long tempoOcioso, TimeUnit unidade) {
+		this.solicitacaoPin = solicitacaoPin;
+		this.tempoOciosoNanos = unidade.toNanos(tempoOcioso);
+	}
+
+	/**
+	 * Lista os certificados do token, autenticando-o se necessário.
+	 *
+	 * @see SmartCardRepository#listarTodos()
+	 */
+	public List<CertificadoDTO> listarTodos() throws NenhumCertificadoEncontradoException, AutenticacaoNecessariaException, ErroAoLerSmartCardException, PinIncorretoException {
+		return this.getRepository().listarTodos();
+	}
+
+	/**
+	 * Lista os certificados do token de forma assíncrona, na fila do
+	 * {@link repository.ExecutorToken}, autenticando-o se necessário.
+	 *
+	 * @see SmartCardRepository#listarTodos()
+	 */
+	public CompletableFuture<List<CertificadoDTO>> listarTodosAsync() {
+		SmartCardRepository repository;
+		try {
+			repository = this.getRepository();
+		} catch (Exception e) {
+			return falha(e);
+		}
+		return repository.getExecutorToken().submeter(repository::listarTodos);
+	}
+
+	/**
+	 * Assina o documento com o token já autenticado.
+	 *
+	 * @see SmartCardRepository#assinarAsync(String, Documento)
+	 */
+	public CompletableFuture<byte []> assinar(String alias, Documento documento) {
+		SmartCardRepository repository;
+		try {
+			repository = this.getRepository();
+		} catch (Exception e) {
+			return falha(e);
+		}
+		return repository.assinarAsync(alias, documento);
+	}
+
+	/**
+	 * Assina o hash com o token já autenticado.
+	 *
+	 * @see SmartCardRepository#assinarHashAsync(String, String, byte[])
+	 */
+	public CompletableFuture<byte []> assinarHash(String alias, String algoritmoHash, byte[] hash) {
+		SmartCardRepository repository;
+		try {
+			repository = this.getRepository();
+		} catch (Exception e) {
+			return falha(e);
+		}
+		return repository.assinarHashAsync(alias, algoritmoHash, hash);
+	}
+
+	/**
+	 * Retorna o repositório inicializado, solicitando o PIN e autenticando o
+	 * token caso o serviço ainda não esteja autenticado ou o PIN tenha
+	 * expirado por ociosidade.
+	 */
+	public synchronized SmartCardRepository getRepository() throws NenhumCertificadoEncontradoException, AutenticacaoNecessariaException, ErroAoLerSmartCardException, PinIncorretoException {
+		this.ultimoUso = System.nanoTime();
+
+		if (this.repository == null || !this.repository.isInicializado()) {
+			SmartCardRepository repository = new SmartCardRepository();
+			boolean inicializado = false;
+			try {
+				try {
+					// PIN em cache: reautentica sem interação (ex: token reinserido)
+					repository.inicializar(this.pin == null ? null : new String(this.pin));
+				} catch (AutenticacaoNecessariaException | PinIncorretoException e) {
+					this.descartarPin();
+					String pin = this.solicitacaoPin.solicitar();
+					if (pin == null) {
+						throw e;
+					}
+					repository.inicializar(pin);
+					this.pin = pin.toCharArray();
+				}
+
+				if (!repository.isInicializado()) {
+					throw new ErroAoLerSmartCardException("Não foi possível inicializar o smart card");
+				}
+				inicializado = true;
+			} finally {
+				// Encerra o executor do token criado pela inicialização
+				if (!inicializado) {
+					repository.close();
+				}
+			}
+			this.repository = repository;
+		}
+
+		if (!this.expiracaoAgendada) {
+			this.agendarExpiracao(this.tempoOciosoNanos);
+		}
+		return this.repository;
+	}
+
+	public synchronized boolean isAutenticado() {
+		return this.repository != null && this.repository.isInicializado();
+	}
+
+	/**
+	 * Descarta o PIN e libera o token imediatamente.
+	 */
+	public synchronized void expirar() {
+		this.descartarPin();
+		if (this.repository != null) {
+			this.repository.close();
+			this.repository = null;
+		}
+	}
+
+	@Override
+	public void close() {
+		this.relogio.shutdownNow();
+		this.expirar();
+	}
+
+	private void descartarPin() {
+		if (this.pin != null) {
+			Arrays.fill(this.pin, '\0');
+			this.pin = null;
+		}
+	}
+
+	private void agendarExpiracao(long atrasoNanos) {
+		this.expiracaoAgendada = true;
+		this.relogio.schedule(this::verificarOciosidade, atrasoNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Executada no fim do período ocioso; caso tenha havido uso ou ainda
+	 * existam pedidos em andamento, agenda nova verificação para o restante
+	 * do período.
+	 */
+	private synchronized void verificarOciosidade() {
+		this.expiracaoAgendada = false;
+		if (this.repository == null) {
+			return;
+		}
+
+		long restante = this.ultimoUso + this.tempoOciosoNanos - System.nanoTime();
+		if (restante > 0) {
+			this.agendarExpiracao(restante);
+		} else if (this.repository.getExecutorToken().getPendentes() > 0) {
+			this.agendarExpiracao(this.tempoOciosoNanos);
+		} else {
+			this.expirar();
+		}
+	}
+
+	private static <T> CompletableFuture<T> falha(Throwable erro) {
+		CompletableFuture<T> futuro = new CompletableFuture<>();
+		futuro.completeExceptionally(erro);
+		return futuro;
+	}
+}
@@ -0,0 +1,454 @@
+package app;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.JwtException;
+import io.undertow.Handlers;
+import io.undertow.Undertow;
+import io.undertow.UndertowOptions;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.server.RoutingHandler;
+import io.undertow.util.AttachmentKey;
+import io.undertow.util.Headers;
+import io.undertow.util.HttpString;
+import io.undertow.util.Methods;
+import io.undertow.util.SameThreadExecutor;
+import io.undertow.util.StatusCodes;
+import model.Documento;
+import model.exception.AutenticacaoNecessariaException;
+import model.exception.NenhumCertificadoEncontradoException;
+import model.exception.PinIncorretoException;
+import repository.SmartCardRepository;
+
+/**
+ * API HTTP local de assinatura.
+ * <ul>
+ * <li><code>GET /certificados</code>: certificados do token (JSON);</li>
+ * <li><code>POST /assinar?alias=[&amp;algoritmo=]</code>: assina o corpo da
+ * requisição, calculando o hash durante o recebimento, e responde a
+ * assinatura <i>detached</i> (application/pkcs7-signature);</li>
+ * <li><code>POST /assinar-hash</code>: <code>{"alias", "algoritmo",
+ * "hash"}</code> (hash em Base64), responde <code>{"assinatura"}</code>;</li>
+ * <li><code>POST /assinar-lote</code>: <code>{"alias", "documentos": [...]}</code>
+ * (documentos em Base64), responde um resultado por documento.</li>
+ * </ul>
+ * Os handlers não bloqueiam as threads de I/O: o corpo é recebido de forma
+ * assíncrona, a verificação do JWT, o hash e a autenticação são executados
+ * em um executor de preparação e a operação no token é enfileirada no
+ * {@link repository.ExecutorToken} do {@link ServicoAssinatura}. A resposta é
+ * enviada quando o {@link CompletableFuture} da assinatura é concluído.
+ * <p>
+ * Todas as requisições exigem um JWT (ver {@link VerificadorJwt}), exceto as
+ * requisições CORS de <i>preflight</i> (<code>OPTIONS</code>). Somente as
+ * origens da lista de origens permitidas recebem os cabeçalhos
+ * <code>Access-Control-*</code>.
+ *
+ */
+public class ServidorAssinatura implements AutoCloseable {
+
+	public static final String TIPO_ASSINATURA = "application/pkcs7-signature";
+	public static final String TIPO_JSON = "application/json";
+
+	/**
+	 * Tamanho máximo do corpo das requisições mantidas em memória.
+	 */
+	public static final long TAMANHO_MAXIMO_CORPO = 64L * 1024 * 1024;
+
+	/**
+	 * Tamanho máximo dos documentos recebidos em streaming por
+	 * <code>/assinar</code>, que não são mantidos em memória.
+	 */
+	public static final long TAMANHO_MAXIMO_STREAMING = 8L * 1024 * 1024 * 1024;
+
+	private static final ObjectMapper JSON = new ObjectMapper();
+
+	/**
+	 * Claims do JWT da requisição autenticada.
+	 */
+	public static final AttachmentKey<Claims> CLAIMS = AttachmentKey.create(Claims.class);
+
+	private static final String PREFIXO_BEARER = "Bearer ";
+
+	private static final HttpString ORIGIN = new HttpString("Origin");
+	private static final HttpString ACCESS_CONTROL_ALLOW_ORIGIN = new HttpString("Access-Control-Allow-Origin");
+	private static final HttpString ACCESS_CONTROL_ALLOW_METHODS = new HttpString("Access-Control-Allow-Methods");
+	private static final HttpString ACCESS_CONTROL_ALLOW_HEADERS = new HttpString("Access-Control-Allow-Headers");
+	private static final HttpString ACCESS_CONTROL_MAX_AGE = new HttpString("Access-Control-Max-Age");
+
+	private final ServicoAssinatura servico;
+	private final VerificadorJwt verificadorJwt;
+	private final Set<String> origensPermitidas;
+	private final Undertow servidor;
+
+	/**
+	 * Executor do cálculo de hash, da leitura do JSON e da solicitação do PIN,
+	 * mantidos fora das threads de I/O.
+	 */
+	private final ExecutorService preparacao = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+		Thread thread = new Thread(r, "http-preparacao");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * @param servico
+	 *            {@link ServicoAssinatura} que atende os pedidos.
+	 * @param verificadorJwt
+	 *            {@link VerificadorJwt} dos tokens exigidos em todas as
+	 *            requisições (cabeçalho <code>Authorization: Bearer</code>).
+	 * @param host
+	 *            endereço de escuta (ex: localhost).
+	 * @param porta
+	 *            porta HTTP.
+	 */
+	public ServidorAssinatura(ServicoAssinatura servico, VerificadorJwt verificadorJwt, String host, int porta) {
+		this(servico, verificadorJwt, Collections.<String>emptySet(), host, porta);
+	}
+
+	/**
+	 * @param servico
+	 *            {@link ServicoAssinatura} que atende os pedidos.
+	 * @param verificadorJwt
+	 *            {@link VerificadorJwt} dos tokens exigidos em todas as
+	 *            requisições (cabeçalho <code>Authorization: Bearer</code>).
+	 * @param origensPermitidas
+	 *            {@link Set} origens (ex: <code>https://app.exemplo.gov.br</code>)
+	 *            autorizadas a chamar a API pelo navegador.
+	 * @param host
+	 *            endereço de escuta (ex: localhost).
+	 * @param porta
+	 *            porta HTTP.
+	 */
+	public ServidorAssinatura(ServicoAssinatura servico, VerificadorJwt verificadorJwt, Set<String> origensPermitidas, String host, int porta) {
+		this.servico = servico;
+		this.verificadorJwt = verificadorJwt;
+		this.origensPermitidas = new HashSet<>(origensPermitidas);
+
+		RoutingHandler rotas = Handlers.routing()
+				.get("/certificados", this::listarCertificados)
+				.post("/assinar", this::assinar)
+				.post("/assinar-hash", this::assinarHash)
+				.post("/assinar-lote", this::assinarLote);
+
+		this.servidor = Undertow.builder()
+				.addHttpListener(porta, host)
+				.setServerOption(UndertowOptions.MAX_ENTITY_SIZE, TAMANHO_MAXIMO_CORPO)
+				.setHandler(this.cors(this.autenticar(rotas)))
+				.build();
+	}
+
+	public void iniciar() {
+		this.servidor.start();
+	}
+
+	@Override
+	public void close() {
+		this.servidor.stop();
+		this.preparacao.shutdownNow();
+	}
+
+	/**
+	 * Adiciona os cabeçalhos CORS às respostas para as origens permitidas e
+	 * responde as requisições de <i>preflight</i> (<code>OPTIONS</code>) sem
+	 * exigir o JWT, que o navegador não envia nelas.
+	 */
+	private HttpHandler cors(HttpHandler proximo) {
+		return exchange -> {
+			String origem = exchange.getRequestHeaders().getFirst(ORIGIN);
+			boolean permitida = (origem != null && this.origensPermitidas.contains(origem));
+			if (permitida) {
+				exchange.getResponseHeaders().put(ACCESS_CONTROL_ALLOW_ORIGIN, origem);
+				exchange.getResponseHeaders().put(Headers.VARY, "Origin");
+			}
+
+			if (Methods.OPTIONS.equals(exchange.getRequestMethod())) {
+				if (permitida) {
+					exchange.getResponseHeaders().put(ACCESS_CONTROL_ALLOW_METHODS, "GET, POST, OPTIONS");
+					exchange.getResponseHeaders().put(ACCESS_CONTROL_ALLOW_HEADERS, "Authorization, Content-Type");
+					exchange.getResponseHeaders().put(ACCESS_CONTROL_MAX_AGE, "600");
+					exchange.setStatusCode(StatusCodes.NO_CONTENT);
+				} else {
+					exchange.setStatusCode(StatusCodes.FORBIDDEN);
+				}
+				exchange.endExchange();
+				return;
+			}
+			proximo.handleRequest(exchange);
+		};
+	}
+
+	/**
+	 * Exige um JWT válido antes de qualquer rota. A verificação é despachada
+	 * para o executor de preparação, fora da thread de I/O; tokens já
+	 * verificados são resolvidos pelo cache do {@link VerificadorJwt} sem nova
+	 * verificação de assinatura.
+	 */
+	private HttpHandler autenticar(HttpHandler proximo) {
+		return new HttpHandler() {
+			@Override
+			public void handleRequest(HttpServerExchange exchange) throws Exception {
+				if (exchange.isInIoThread()) {
+					exchange.dispatch(ServidorAssinatura.this.preparacao, this);
+					return;
+				}
+				ServidorAssinatura.this.verificarJwt(exchange, proximo);
+			}
+		};
+	}
+
+	private void verificarJwt(HttpServerExchange exchange, HttpHandler proximo) throws Exception {
+		String autorizacao = exchange.getRequestHeaders().getFirst(Headers.AUTHORIZATION);
+		if (autorizacao == null || !autorizacao.startsWith(PREFIXO_BEARER)) {
+			negar(exchange, "Token não informado");
+			return;
+		}
+
+		try {
+			exchange.putAttachment(CLAIMS, this.verificadorJwt.verificar(autorizacao.substring(PREFIXO_BEARER.length()).trim()));
+		} catch (JwtException | IllegalArgumentException e) {
+			negar(exchange, "Token inválido: " + e.getMessage());
+			return;
+		}
+		proximo.handleRequest(exchange);
+	}
+
+	private static void negar(HttpServerExchange exchange, String mensagem) {
+		exchange.setStatusCode(StatusCodes.UNAUTHORIZED);
+		exchange.getResponseHeaders().put(Headers.WWW_AUTHENTICATE, "Bearer");
+		exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "text/plain; charset=UTF-8");
+		exchange.getResponseSender().send(mensagem);
+	}
+
+	/**
+	 * Lista os certificados na fila do token; somente a eventual solicitação
+	 * do PIN ocorre no executor de preparação.
+	 */
+	private void listarCertificados(HttpServerExchange exchange) {
+		this.responder(exchange, () -> CompletableFuture
+				.supplyAsync(this.servico::listarTodosAsync, this.preparacao)
+				.thenCompose(Function.identity())
+				.thenApply(certificados -> {
+					try {
+						return JSON.writeValueAsBytes(certificados);
+					} catch (Exception e) {
+						throw new CompletionException(e);
+					}
+				}), TIPO_JSON);
+	}
+
+	/**
+	 * Assina o corpo da requisição calculando o hash à medida que os blocos
+	 * chegam (ver {@link LeituraHash}); o documento nunca é mantido em
+	 * memória.
+	 */
+	private void assinar(HttpServerExchange exchange) {
+		String alias = parametro(exchange, "alias");
+		if (alias == null || alias.trim().isEmpty()) {
+			this.responder(exchange, () -> falha(new IllegalArgumentException("Parâmetro alias não informado")), TIPO_ASSINATURA);
+			return;
+		}
+		String algoritmo = parametro(exchange, "algoritmo");
+		String algoritmoHash = (algoritmo == null ? SmartCardRepository.ALGORITMO_HASH : algoritmo);
+
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance(algoritmoHash);
+		} catch (NoSuchAlgorithmException e) {
+			this.responder(exchange, () -> falha(new IllegalArgumentException("Algoritmo de hash não suportado: " + algoritmoHash)), TIPO_ASSINATURA);
+			return;
+		}
+
+		exchange.setMaxEntitySize(TAMANHO_MAXIMO_STREAMING);
+		exchange.dispatch(SameThreadExecutor.INSTANCE, () ->
+			new LeituraHash(exchange, digest, hash -> this.enviar(exchange, CompletableFuture
+					.supplyAsync(() -> this.servico.assinarHash(alias, algoritmoHash, hash), this.preparacao)
+					.thenCompose(Function.identity()), TIPO_ASSINATURA)).ler());
+	}
+
+	private void assinarHash(HttpServerExchange exchange) {
+		exchange.getRequestReceiver().receiveFullBytes((ex, corpo) ->
+			this.responder(ex, () -> CompletableFuture
+					.supplyAsync(() -> {
+						JsonNode pedido = lerJson(corpo);
+						return this.servico.assinarHash(texto(pedido, "alias"), texto(pedido, "algoritmo"), binario(pedido.get("hash")));
+					}, this.preparacao)
+					.thenCompose(Function.identity())
+					.thenApply(assinatura -> {
+						ObjectNode resposta = JSON.createObjectNode();
+						resposta.put("assinatura", assinatura);
+						return escreverJson(resposta);
+					}), TIPO_JSON));
+	}
+
+	private void assinarLote(HttpServerExchange exchange) {
+		exchange.getRequestReceiver().receiveFullBytes((ex, corpo) ->
+			this.responder(ex, () -> CompletableFuture
+					.supplyAsync(() -> {
+						JsonNode pedido = lerJson(corpo);
+						String alias = texto(pedido, "alias");
+
+						// Cada documento é um pedido na fila do token
+						List<CompletableFuture<byte []>> assinaturas = new ArrayList<>();
+						for (JsonNode documento : pedido.path("documentos")) {
+							try {
+								assinaturas.add(this.servico.assinar(alias, Documento.from(binario(documento))));
+							} catch (IllegalArgumentException e) {
+								// Documento inválido não interrompe o restante do lote
+								assinaturas.add(falha(e));
+							}
+						}
+						return assinaturas;
+					}, this.preparacao)
+					.thenCompose(assinaturas -> CompletableFuture
+							.allOf(assinaturas.stream().map(a -> a.handle((r, e) -> r)).toArray(CompletableFuture[]::new))
+							.thenApply(v -> escreverJson(resultadosLote(assinaturas)))), TIPO_JSON));
+	}
+
+	private static ArrayNode resultadosLote(List<CompletableFuture<byte []>> assinaturas) {
+		ArrayNode resultados = JSON.createArrayNode();
+		for (int i = 0; i < assinaturas.size(); i++) {
+			ObjectNode resultado = resultados.addObject();
+			resultado.put("indice", i);
+			try {
+				resultado.put("assinatura", assinaturas.get(i).get());
+			} catch (ExecutionException | InterruptedException e) {
+				resultado.put("erro", causa(e).getMessage());
+			}
+		}
+		return resultados;
+	}
+
+	/**
+	 * Inicia a operação fora da thread de I/O e envia a resposta quando ela
+	 * for concluída, mantendo a requisição aberta até lá.
+	 */
+	private void responder(HttpServerExchange exchange, Supplier<CompletableFuture<byte []>> operacao, String tipo) {
+		exchange.dispatch(SameThreadExecutor.INSTANCE, () -> {
+			CompletableFuture<byte []> futuro;
+			try {
+				futuro = operacao.get();
+			} catch (RuntimeException e) {
+				futuro = falha(e);
+			}
+			this.enviar(exchange, futuro, tipo);
+		});
+	}
+
+	/**
+	 * Envia a resposta da requisição já despachada quando a operação for
+	 * concluída.
+	 */
+	private void enviar(HttpServerExchange exchange, CompletableFuture<byte []> futuro, String tipo) {
+		futuro.whenComplete((resposta, erro) -> {
+			if (erro == null) {
+				exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, tipo);
+				exchange.getResponseSender().send(ByteBuffer.wrap(resposta));
+			} else {
+				Throwable causa = causa(erro);
+				exchange.setStatusCode(status(causa));
+				exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "text/plain; charset=UTF-8");
+				exchange.getResponseSender().send(String.valueOf(causa.getMessage()));
+			}
+		});
+	}
+
+	private static CompletableFuture<byte []> falha(Throwable erro) {
+		CompletableFuture<byte []> futuro = new CompletableFuture<>();
+		futuro.completeExceptionally(erro);
+		return futuro;
+	}
+
+	private static int status(Throwable erro) {
+		if (erro instanceof AutenticacaoNecessariaException || erro instanceof PinIncorretoException) {
+			return StatusCodes.UNAUTHORIZED;
+		}
+		if (erro instanceof NenhumCertificadoEncontradoException) {
+			return StatusCodes.NOT_FOUND;
+		}
+		if (erro instanceof IllegalArgumentException) {
+			return StatusCodes.BAD_REQUEST;
+		}
+		// Erros do executor do token, inclusive quando encapsulados pelo
+		// repositório (ex: ErroAoAssinarException)
+		if (erro instanceof RejectedExecutionException || erro.getCause() instanceof RejectedExecutionException) {
+			return StatusCodes.SERVICE_UNAVAILABLE;
+		}
+		if (erro instanceof TimeoutException || erro.getCause() instanceof TimeoutException) {
+			return StatusCodes.GATEWAY_TIME_OUT;
+		}
+		return StatusCodes.INTERNAL_SERVER_ERROR;
+	}
+
+	private static Throwable causa(Throwable erro) {
+		while ((erro instanceof CompletionException || erro instanceof ExecutionException) && erro.getCause() != null) {
+			erro = erro.getCause();
+		}
+		return erro;
+	}
+
+	private static String parametro(HttpServerExchange exchange, String nome) {
+		Deque<String> valores = exchange.getQueryParameters().get(nome);
+		return (valores == null ? null : valores.peekFirst());
+	}
+
+	private static JsonNode lerJson(byte[] corpo) {
+		try {
+			return JSON.readTree(corpo);
+		} catch (Exception e) {
+			throw new IllegalArgumentException("JSON inválido: " + e.getMessage(), e);
+		}
+	}
+
+	private static byte[] escreverJson(JsonNode json) {
+		try {
+			return JSON.writeValueAsBytes(json);
+		} catch (Exception e) {
+			throw new CompletionException(e);
+		}
+	}
+
+	private static String texto(JsonNode pedido, String campo) {
+		JsonNode valor = pedido.get(campo);
+		if (valor == null || !valor.isTextual() || valor.asText().trim().isEmpty()) {
+			throw new IllegalArgumentException("Campo " + campo + " não informado");
+		}
+		return valor.asText();
+	}
+
+	private static byte[] binario(JsonNode valor) {
+		try {
+			if (valor == null || !valor.isTextual()) {
+				throw new IllegalArgumentException("Conteúdo em Base64 não informado");
+			}
+			return valor.binaryValue();
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Base64 inválido", e);
+		}
+	}
+
+}
@@ -0,0 +1,188 @@
+package app;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.JwsHeader;
+import io.jsonwebtoken.JwtException;
+import io.jsonwebtoken.JwtParser;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.SignatureAlgorithm;
+import io.jsonwebtoken.SigningKeyResolverAdapter;
+import io.jsonwebtoken.UnsupportedJwtException;
+
+/**
+ * Verificação dos JWT que autorizam o uso da API local de assinatura.
+ * <p>
+ * As chaves de verificação (HMAC e/ou RSA) são preparadas uma única vez na
+ * construção e o mesmo {@link JwtParser} é reutilizado por todas as
+ * requisições. Tokens verificados são mantidos em um cache limitado, indexado
+ * pelo SHA-256 do token, até a sua expiração (<code>exp</code>) ou, na
+ * ausência dela, pelo tempo máximo configurado; assim a verificação da
+ * assinatura de um token é paga uma única vez, e não a cada requisição.
+ *
+ */
+public class VerificadorJwt {
+
+	public static final int CAPACIDADE_PADRAO = 4096;
+	public static final long TEMPO_MAXIMO_CACHE_PADRAO_MINUTOS = 5;
+
+	private final JwtParser parser;
+	private final int capacidade;
+	private final long tempoMaximoCacheMillis;
+
+	/**
+	 * Tokens verificados em ordem de acesso (LRU).
+	 */
+	private final Map<ByteBuffer, TokenVerificado> cache;
+
+	/**
+	 * @param segredoHmac
+	 *            segredo dos tokens HS256/HS384/HS512 ou <code>null</code>.
+	 * @param chaveRsa
+	 *            {@link PublicKey} dos tokens RS256/RS384/RS512 ou
+	 *            <code>null</code>.
+	 */
+	public VerificadorJwt(byte[] segredoHmac, PublicKey chaveRsa) {
+		this(segredoHmac, chaveRsa, CAPACIDADE_PADRAO, TEMPO_MAXIMO_CACHE_PADRAO_MINUTOS, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * @param segredoHmac
+	 *            segredo dos tokens HS256/HS384/HS512 ou <code>null</code>.
+	 * @param chaveRsa
+	 *            {@link PublicKey} dos tokens RS256/RS384/RS512 ou
+	 *            <code>null</code>.
+	 * @param capacidade
+	 *            quantidade máxima de tokens em cache.
+	 * @param tempoMaximoCache
+	 *            tempo máximo de permanência em cache de tokens sem
+	 *            <code>exp</code>.
+	 * @param unidade
+	 *            {@link TimeUnit} unidade do tempo máximo.
+	 */
+	public VerificadorJwt(byte[] segredoHmac, PublicKey chaveRsa, int capacidade, long tempoMaximoCache, TimeUnit unidade) {
+		if (segredoHmac == null && chaveRsa == null) {
+			throw new IllegalArgumentException("Informe o segredo HMAC ou a chave pública RSA dos tokens");
+		}
+
+		// Chaves prontas: nenhuma derivação por requisição
+		Map<SignatureAlgorithm, Key> chaves = new LinkedHashMap<>();
+		for (SignatureAlgorithm algoritmo : SignatureAlgorithm.values()) {
+			if (algoritmo.isHmac() && segredoHmac != null) {
+				chaves.put(algoritmo, new SecretKeySpec(segredoHmac, algoritmo.getJcaName()));
+			} else if (algoritmo.isRsa() && chaveRsa != null) {
+				chaves.put(algoritmo, chaveRsa);
+			}
+		}
+
+		this.parser = Jwts.parser().setSigningKeyResolver(new SigningKeyResolverAdapter() {
+			// Assinatura com tipo bruto imposta pelo SigningKeyResolverAdapter do jjwt 0.5.x
+			@Override
+			@SuppressWarnings("rawtypes")
+			public Key resolveSigningKey(JwsHeader header, Claims claims) {
+				Key chave = chaves.get(SignatureAlgorithm.forName(header.getAlgorithm()));
+				if (chave == null) {
+					throw new UnsupportedJwtException("Algoritmo não aceito: " + header.getAlgorithm());
+				}
+				return chave;
+			}
+		});
+
+		this.capacidade = capacidade;
+		this.tempoMaximoCacheMillis = unidade.toMillis(tempoMaximoCache);
+		this.cache = new LinkedHashMap<>(16, 0.75f, true);
+	}
+
+	/**
+	 * Verifica o token, consultando primeiro o cache de tokens já
+	 * verificados.
+	 *
+	 * @param token
+	 *            JWT assinado (JWS) compacto.
+	 * @return {@link Claims} do token.
+	 * @throws JwtException
+	 *             Caso o token seja inválido, expirado ou não assinado.
+	 */
+	public Claims verificar(String token) throws JwtException {
+		ByteBuffer chave = ByteBuffer.wrap(resumo(token));
+		long agora = System.currentTimeMillis();
+
+		synchronized (this.cache) {
+			TokenVerificado verificado = this.cache.get(chave);
+			if (verificado != null) {
+				if (verificado.validade > agora) {
+					return verificado.claims;
+				}
+				this.cache.remove(chave);
+			}
+		}
+
+		// Verificação da assinatura fora do lock
+		Claims claims = this.parser.parseClaimsJws(token).getBody();
+
+		long validade = agora + this.tempoMaximoCacheMillis;
+		Date expiracao = claims.getExpiration();
+		if (expiracao != null) {
+			validade = Math.min(validade, expiracao.getTime());
+		}
+
+		synchronized (this.cache) {
+			if (this.cache.size() >= this.capacidade) {
+				this.removerExpirados(agora);
+			}
+			this.cache.put(chave, new TokenVerificado(claims, validade));
+			if (this.cache.size() > this.capacidade) {
+				// Sem expirados: descarta o menos utilizado
+				Iterator<TokenVerificado> iterator = this.cache.values().iterator();
+				iterator.next();
+				iterator.remove();
+			}
+		}
+		return claims;
+	}
+
+	/**
+	 * Quantidade de tokens em cache.
+	 */
+	public int getTamanhoCache() {
+		synchronized (this.cache) {
+			return this.cache.size();
+		}
+	}
+
+	private void removerExpirados(long agora) {
+		this.cache.values().removeIf(verificado -> verificado.validade <= agora);
+	}
+
+	private static byte[] resumo(String token) {
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.US_ASCII));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static class TokenVerificado {
+
+		private final Claims claims;
+		private final long validade;
+
+		TokenVerificado(Claims claims, long validade) {
+			this.claims = claims;
+			this.validade = validade;
+		}
+	}
+}
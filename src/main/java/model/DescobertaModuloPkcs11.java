@@ -0,0 +1,285 @@
+package model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.KeyStoreException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import util.SecurityUtils;
+
+/**
+ * Descoberta do módulo (biblioteca e slot) PKCS#11 disponível na máquina.
+ * <p>
+ * As bibliotecas candidatas são sondadas em ordem e a primeira que possuir um
+ * slot candidato com token inserido é utilizada. Sem slots candidatos
+ * configurados, é utilizado o primeiro slot com token da biblioteca. O
+ * resultado é gravado em um pequeno arquivo de cache, de modo que as
+ * inicializações seguintes carregam diretamente o módulo conhecido, sem
+ * sondagem. Caso o módulo em cache deixe de funcionar, {@link #invalidar()}
+ * descarta o cache.
+ * <p>
+ * As candidatas podem ser configuradas pela propriedade de sistema
+ * {@value #PROPRIEDADE_BIBLIOTECAS} (caminhos separados por
+ * {@link File#pathSeparator}), os slots candidatos pela propriedade
+ * {@value #PROPRIEDADE_SLOTS} (identificadores separados por vírgula, em
+ * ordem de preferência) e o arquivo de cache pela propriedade
+ * {@value #PROPRIEDADE_CACHE}. As bibliotecas de
+ * {@link SecurityUtils#CONFIG_LIB} também são sondadas.
+ *
+ */
+public class DescobertaModuloPkcs11 {
+
+	public static final String PROPRIEDADE_BIBLIOTECAS = "assinador.pkcs11.bibliotecas";
+	public static final String PROPRIEDADE_SLOTS = "assinador.pkcs11.slots";
+	public static final String PROPRIEDADE_CACHE = "assinador.pkcs11.cache";
+
+	/**
+	 * Bibliotecas conhecidas (eToken/SafeNet e OpenSC) para Linux, macOS e
+	 * Windows.
+	 */
+	static final List<String> CANDIDATAS_PADRAO = Arrays.asList(
+			SmartCardPkcs11.BIBLIOTECA_PADRAO,
+			"/usr/lib/libeTPkcs11.so",
+			"/usr/lib/x86_64-linux-gnu/opensc-pkcs11.so",
+			"/usr/lib/opensc-pkcs11.so",
+			"/usr/local/lib/opensc-pkcs11.so",
+			"/usr/local/lib/libeTPkcs11.dylib",
+			"C:\\WINDOWS\\system32\\eTPKCS11.dll",
+			"C:\\WINDOWS\\system32\\opensc-pkcs11.dll");
+
+	private static final String CHAVE_BIBLIOTECA = "biblioteca";
+	private static final String CHAVE_SLOT = "slot";
+
+	private static DescobertaModuloPkcs11 instancia;
+
+	private final List<String> candidatas;
+
+	/**
+	 * Slots aceitos, em ordem de preferência; vazia aceita qualquer slot.
+	 */
+	private final List<Long> slotsCandidatos;
+
+	private final Path arquivoCache;
+
+	/**
+	 * Módulo já descoberto neste processo.
+	 */
+	private Modulo modulo;
+
+	/**
+	 * Retorna a descoberta configurada pelas propriedades de sistema.
+	 */
+	public static synchronized DescobertaModuloPkcs11 getInstance() {
+		if (instancia == null) {
+			String bibliotecas = System.getProperty(PROPRIEDADE_BIBLIOTECAS);
+			List<String> candidatas = new ArrayList<>(bibliotecas == null ? CANDIDATAS_PADRAO
+					: Arrays.asList(bibliotecas.split(File.pathSeparator)));
+			for (String biblioteca : SecurityUtils.CONFIG_LIB.values()) {
+				if (!candidatas.contains(biblioteca)) {
+					candidatas.add(biblioteca);
+				}
+			}
+
+			List<Long> slots = new ArrayList<>();
+			String propriedadeSlots = System.getProperty(PROPRIEDADE_SLOTS);
+			if (propriedadeSlots != null) {
+				for (String slot : propriedadeSlots.split(",")) {
+					try {
+						if (!slot.trim().isEmpty()) {
+							slots.add(Long.valueOf(slot.trim()));
+						}
+					} catch (NumberFormatException e) {
+						System.err.println("Slot PKCS#11 inválido ignorado: " + slot);
+					}
+				}
+			}
+
+			String cache = System.getProperty(PROPRIEDADE_CACHE,
+					System.getProperty("user.home") + File.separator + ".crvirtual-assinador" + File.separator + "pkcs11.properties");
+
+			instancia = new DescobertaModuloPkcs11(candidatas, slots, Paths.get(cache));
+		}
+		return instancia;
+	}
+
+	/**
+	 * @param candidatas
+	 *            {@link List} caminhos das bibliotecas candidatas, em ordem de
+	 *            preferência.
+	 * @param arquivoCache
+	 *            {@link Path} arquivo onde o módulo descoberto é gravado.
+	 */
+	public DescobertaModuloPkcs11(List<String> candidatas, Path arquivoCache) {
+		this(candidatas, Collections.<Long>emptyList(), arquivoCache);
+	}
+
+	/**
+	 * @param candidatas
+	 *            {@link List} caminhos das bibliotecas candidatas, em ordem de
+	 *            preferência.
+	 * @param slotsCandidatos
+	 *            {@link List} slots aceitos, em ordem de preferência; vazia
+	 *            para aceitar o primeiro slot com token.
+	 * @param arquivoCache
+	 *            {@link Path} arquivo onde o módulo descoberto é gravado.
+	 */
+	public DescobertaModuloPkcs11(List<String> candidatas, List<Long> slotsCandidatos, Path arquivoCache) {
+		this.candidatas = new ArrayList<>(candidatas);
+		this.slotsCandidatos = new ArrayList<>(slotsCandidatos);
+		this.arquivoCache = arquivoCache;
+	}
+
+	/**
+	 * Retorna o módulo PKCS#11 a ser utilizado.
+	 * <p>
+	 * Utiliza, nesta ordem, o módulo já descoberto neste processo, o módulo
+	 * gravado no arquivo de cache e, por último, a sondagem das bibliotecas
+	 * candidatas.
+	 *
+	 * @return {@link Modulo} biblioteca e slot com token.
+	 * @throws KeyStoreException
+	 *             Caso nenhuma biblioteca candidata possua token inserido.
+	 */
+	public synchronized Modulo descobrir() throws KeyStoreException {
+		if (this.modulo == null) {
+			this.modulo = this.lerCache();
+		}
+
+		if (this.modulo == null) {
+			this.modulo = this.sondar();
+			this.gravarCache(this.modulo);
+		}
+		return this.modulo;
+	}
+
+	/**
+	 * Descarta o módulo descoberto e o arquivo de cache, forçando nova
+	 * sondagem na próxima chamada de {@link #descobrir()}.
+	 */
+	public synchronized void invalidar() {
+		this.modulo = null;
+		try {
+			Files.deleteIfExists(this.arquivoCache);
+		} catch (IOException e) {
+			System.err.println("Não foi possível remover " + this.arquivoCache + ": " + e.getMessage());
+		}
+	}
+
+	private Modulo sondar() throws KeyStoreException {
+		for (String biblioteca : this.candidatas) {
+			if (!new File(biblioteca).isFile()) {
+				continue;
+			}
+
+			try {
+				Long slot = this.selecionarSlot(SmartCardPkcs11.listarSlots(biblioteca));
+				if (slot != null) {
+					return new Modulo(biblioteca, slot);
+				}
+			} catch (KeyStoreException e) {
+				System.err.println("Biblioteca PKCS#11 " + biblioteca + " ignorada: " + e.getMessage());
+			}
+		}
+		throw new KeyStoreException("Nenhuma biblioteca PKCS#11 com token encontrada em " + this.candidatas
+				+ (this.slotsCandidatos.isEmpty() ? "" : " nos slots " + this.slotsCandidatos));
+	}
+
+	/**
+	 * Seleciona, entre os slots com token, o primeiro slot candidato ou, sem
+	 * candidatos configurados, o primeiro slot.
+	 */
+	private Long selecionarSlot(long[] slots) {
+		if (this.slotsCandidatos.isEmpty()) {
+			return slots.length > 0 ? slots[0] : null;
+		}
+		for (Long candidato : this.slotsCandidatos) {
+			for (long slot : slots) {
+				if (slot == candidato) {
+					return slot;
+				}
+			}
+		}
+		return null;
+	}
+
+	private Modulo lerCache() {
+		if (!Files.isRegularFile(this.arquivoCache)) {
+			return null;
+		}
+
+		Properties propriedades = new Properties();
+		try (InputStream is = Files.newInputStream(this.arquivoCache)) {
+			propriedades.load(is);
+
+			String biblioteca = propriedades.getProperty(CHAVE_BIBLIOTECA);
+			String slot = propriedades.getProperty(CHAVE_SLOT);
+			if (biblioteca == null || slot == null || !new File(biblioteca).isFile()) {
+				return null;
+			}
+			Modulo modulo = new Modulo(biblioteca, Long.parseLong(slot));
+			if (!this.slotsCandidatos.isEmpty() && !this.slotsCandidatos.contains(modulo.getSlot())) {
+				// Configuração de slots alterada desde a gravação do cache
+				return null;
+			}
+			return modulo;
+
+		} catch (IOException | NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private void gravarCache(Modulo modulo) {
+		Properties propriedades = new Properties();
+		propriedades.setProperty(CHAVE_BIBLIOTECA, modulo.getBiblioteca());
+		propriedades.setProperty(CHAVE_SLOT, String.valueOf(modulo.getSlot()));
+
+		try {
+			Path diretorio = this.arquivoCache.toAbsolutePath().getParent();
+			if (diretorio != null) {
+				Files.createDirectories(diretorio);
+			}
+			try (OutputStream os = Files.newOutputStream(this.arquivoCache)) {
+				propriedades.store(os, "Modulo PKCS#11 descoberto");
+			}
+		} catch (IOException e) {
+			// Sem cache a próxima inicialização apenas sonda novamente
+			System.err.println("Não foi possível gravar " + this.arquivoCache + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Biblioteca PKCS#11 e slot com token.
+	 */
+	public static class Modulo {
+
+		private final String biblioteca;
+		private final long slot;
+
+		public Modulo(String biblioteca, long slot) {
+			this.biblioteca = biblioteca;
+			this.slot = slot;
+		}
+
+		public String getBiblioteca() {
+			return this.biblioteca;
+		}
+
+		public long getSlot() {
+			return this.slot;
+		}
+
+		@Override
+		public String toString() {
+			return "Modulo [biblioteca=" + biblioteca + ", slot=" + slot + "]";
+		}
+	}
+}
@@ -3,48 +3,221 @@ package model;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.commons.io.IOUtils;
- 
+
+import util.UtilsHash;
+import util.UtilsHashArvore;
+
 public class Documento {
- 
+
 	byte[] documento;
-	
+
+	/**
+	 * Arquivo do documento em modo streaming (conteúdo não mantido em memória).
+	 */
+	File arquivo;
+
+	/**
+	 * Hashes já calculados, indexados pelo nome padrão do algoritmo (ver
+	 * {@link UtilsHash#getAlgoritmo(String)}), de modo que nomes
+	 * equivalentes (ex: SHA1, SHA-1 ou o OID) compartilham o mesmo hash.
+	 * <p>
+	 * Para documentos criados a partir de um stream em modo streaming, contém
+	 * somente os hashes calculados durante a leitura.
+	 */
+	private final Map<String, byte[]> hashes = new HashMap<>();
+
+	/**
+	 * Prefixo da chave dos hashes em árvore no mapa de hashes memorizados.
+	 */
+	private static final String PREFIXO_HASH_ARVORE = "ARVORE/";
+
 	private Documento() {
 	}
- 
+
 	public static Documento from(byte[] bytesDocumento) {
 		Documento d = new Documento();
 		d.documento = bytesDocumento;
 		return d;
 	}
- 
+
 	public static Documento from(InputStream streamDocumento) throws IOException {
 		Documento d = new Documento();
 		d.documento = IOUtils.toByteArray(streamDocumento);
 		return d;
 	}
-	
+
 	public static Documento from(File fileDocumento) throws IOException {
 		Documento d = new Documento();
 		d.documento = Files.readAllBytes(fileDocumento.toPath());
 		return d;
 	}
- 
+
+	/**
+	 * Cria um documento em modo streaming a partir de um arquivo.
+	 * <p>
+	 * O conteúdo do arquivo não é carregado no heap: os hashes são calculados
+	 * lendo o arquivo em blocos na primeira vez em que são solicitados (ver
+	 * {@link UtilsHash#calcularHashes(File, String...)}).
+	 *
+	 * @param fileDocumento
+	 *            {@link File} arquivo do documento.
+	 * @return {@link Documento} documento em modo streaming.
+	 */
+	public static Documento streaming(File fileDocumento) {
+		Documento d = new Documento();
+		d.arquivo = fileDocumento;
+		return d;
+	}
+
+	/**
+	 * Cria um documento em modo streaming a partir de um {@link InputStream}.
+	 * <p>
+	 * Os hashes são calculados em uma única leitura do stream e somente eles
+	 * são mantidos; portanto apenas os algoritmos informados estarão
+	 * disponíveis em {@link #getHash(String)}.
+	 *
+	 * @param streamDocumento
+	 *            {@link InputStream} conteúdo do documento.
+	 * @param algoritmos
+	 *            algoritmos de hash a serem calculados.
+	 * @return {@link Documento} documento em modo streaming.
+	 * @throws NoSuchAlgorithmException
+	 *             Caso algum dos algoritmos não seja suportado.
+	 * @throws IOException
+	 *             Em caso de erros de leitura do stream.
+	 */
+	public static Documento streaming(InputStream streamDocumento, String... algoritmos) throws NoSuchAlgorithmException, IOException {
+		Documento d = new Documento();
+		d.memorizar(UtilsHash.calcularHashes(streamDocumento, algoritmos));
+		return d;
+	}
+
+	public boolean isStreaming() {
+		return this.documento == null;
+	}
+
+	/**
+	 * Retorna o conteúdo do documento.
+	 *
+	 * @return conteúdo do documento.
+	 * @throws IllegalStateException
+	 *             Caso o documento esteja em modo streaming.
+	 */
 	public byte[] getDocumento() {
+		if (this.isStreaming()) {
+			throw new IllegalStateException("Conteúdo não disponível para documentos em modo streaming");
+		}
 		return this.documento;
 	}
- 
+
+	/**
+	 * Retorna os hashes do documento para os algoritmos informados.
+	 * <p>
+	 * Os hashes ainda não calculados são obtidos em uma única passagem sobre o
+	 * documento e memorizados, de modo que o documento é lido no máximo uma
+	 * vez para cada conjunto de algoritmos solicitados.
+	 *
+	 * @param algoritmos
+	 *            algoritmos de hash (ex: MD5, SHA-256, SHA-512).
+	 * @return {@link Map} hashes indexados pelo algoritmo, na ordem informada.
+	 * @throws NoSuchAlgorithmException
+	 *             Caso algum dos algoritmos não seja suportado.
+	 * @throws IllegalStateException
+	 *             Caso o documento tenha sido lido de um stream em modo
+	 *             streaming e o hash não tenha sido calculado na leitura.
+	 */
+	public synchronized Map<String, byte[]> getHashes(String... algoritmos) throws NoSuchAlgorithmException {
+		String[] canonicos = new String[algoritmos.length];
+		Set<String> pendentes = new LinkedHashSet<>();
+		for (int i = 0; i < algoritmos.length; i++) {
+			canonicos[i] = UtilsHash.getAlgoritmo(algoritmos[i]);
+			if (!this.hashes.containsKey(canonicos[i])) {
+				pendentes.add(canonicos[i]);
+			}
+		}
+
+		if (!pendentes.isEmpty()) {
+			String[] calcular = pendentes.toArray(new String[pendentes.size()]);
+			if (this.documento != null) {
+				this.memorizar(UtilsHash.calcularHashes(this.documento, calcular));
+			} else if (this.arquivo != null) {
+				try {
+					this.memorizar(UtilsHash.calcularHashes(this.arquivo, calcular));
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			} else {
+				throw new IllegalStateException("Hash " + pendentes + " não calculado durante a leitura do documento");
+			}
+		}
+
+		Map<String, byte[]> resultado = new LinkedHashMap<>();
+		for (int i = 0; i < algoritmos.length; i++) {
+			resultado.put(algoritmos[i], this.hashes.get(canonicos[i]));
+		}
+		return resultado;
+	}
+
 	public byte[] getHash(String algoritmo) throws NoSuchAlgorithmException {
-		MessageDigest md = MessageDigest.getInstance(algoritmo);
-		md.update(this.getDocumento());
-		return md.digest();
+		return this.getHashes(algoritmo).get(algoritmo);
 	}
-	
+
 	public byte[] getHashMD5() throws NoSuchAlgorithmException {
 		return this.getHash("MD5");
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Retorna o hash em árvore do documento, calculado em paralelo sobre
+	 * segmentos de {@link UtilsHashArvore#TAMANHO_SEGMENTO_PADRAO} bytes.
+	 * <p>
+	 * Para documentos em modo streaming criados a partir de arquivo, os
+	 * segmentos são lidos do arquivo em blocos, sem carregá-lo no heap.
+	 *
+	 * @param algoritmo
+	 *            algoritmo de hash (ex: SHA-256).
+	 * @return raiz da árvore (ver {@link UtilsHashArvore}).
+	 * @throws NoSuchAlgorithmException
+	 *             Caso o algoritmo não seja suportado.
+	 * @throws IllegalStateException
+	 *             Caso o documento tenha sido lido de um stream em modo
+	 *             streaming.
+	 */
+	public synchronized byte[] getHashArvore(String algoritmo) throws NoSuchAlgorithmException {
+		String chave = PREFIXO_HASH_ARVORE + UtilsHash.getAlgoritmo(algoritmo);
+		byte[] raiz = this.hashes.get(chave);
+		if (raiz != null) {
+			return raiz;
+		}
+
+		if (this.documento != null) {
+			raiz = UtilsHashArvore.calcular(this.documento, algoritmo, UtilsHashArvore.TAMANHO_SEGMENTO_PADRAO);
+		} else if (this.arquivo != null) {
+			try {
+				raiz = UtilsHashArvore.calcular(this.arquivo, algoritmo, UtilsHashArvore.TAMANHO_SEGMENTO_PADRAO);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		} else {
+			throw new IllegalStateException("Hash em árvore não disponível para documentos lidos de stream");
+		}
+
+		this.hashes.put(chave, raiz);
+		return raiz;
+	}
+
+	private void memorizar(Map<String, byte[]> calculados) throws NoSuchAlgorithmException {
+		for (Map.Entry<String, byte[]> hash : calculados.entrySet()) {
+			this.hashes.put(UtilsHash.getAlgoritmo(hash.getKey()), hash.getValue());
+		}
+	}
+}
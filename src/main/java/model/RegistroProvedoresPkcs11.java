@@ -0,0 +1,106 @@
+package model;
+
+import java.io.ByteArrayInputStream;
+import java.security.KeyStoreException;
+import java.security.Provider;
+import java.security.Security;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Registro global dos providers SunPKCS11 do processo.
+ * <p>
+ * Cada combinação de biblioteca e slot possui um único provider, criado no
+ * primeiro uso e compartilhado por todos os usuários. Assim a biblioteca
+ * nativa é carregada uma única vez e a lista global de providers
+ * ({@link Security#getProviders()}) não cresce a cada inicialização.
+ * <p>
+ * Cada {@link #obter(String, Long)} deve ser acompanhado de um
+ * {@link #liberar(Provider)}; o provider é removido de {@link Security}
+ * quando não houver mais referências.
+ *
+ */
+@SuppressWarnings("restriction")
+public final class RegistroProvedoresPkcs11 {
+
+	private static final Map<String, Registro> PROVEDORES = new HashMap<>();
+	private static final Map<Provider, Registro> POR_PROVEDOR = new IdentityHashMap<>();
+
+	private static int sequencia;
+
+	private RegistroProvedoresPkcs11() {
+	}
+
+	/**
+	 * Retorna o provider da biblioteca e slot informados, criando-o caso ainda
+	 * não exista, e incrementa a sua contagem de referências.
+	 *
+	 * @param biblioteca
+	 *            caminho da biblioteca PKCS#11.
+	 * @param slot
+	 *            identificador do slot ou <code>null</code> para o primeiro
+	 *            slot da biblioteca.
+	 * @return {@link Provider} provider compartilhado.
+	 * @throws KeyStoreException
+	 *             Caso a biblioteca não possa ser carregada.
+	 */
+	public static synchronized Provider obter(String biblioteca, Long slot) throws KeyStoreException {
+		String chave = biblioteca + "#" + (slot == null ? "" : slot);
+
+		Registro registro = PROVEDORES.get(chave);
+		if (registro == null) {
+			String configuracao = "name = smartcard-" + (++sequencia) +
+					"\nlibrary = " + biblioteca +
+					"\nshowInfo=false" +
+					"\n" + (slot == null ? "slotListIndex = 0" : "slot = " + slot);
+
+			Provider provider;
+			try {
+				provider = new sun.security.pkcs11.SunPKCS11(new ByteArrayInputStream(configuracao.getBytes()));
+			} catch (Exception e) {
+				throw new KeyStoreException(e);
+			}
+			Security.addProvider(provider);
+
+			registro = new Registro(chave, provider);
+			PROVEDORES.put(chave, registro);
+			POR_PROVEDOR.put(provider, registro);
+		}
+
+		registro.referencias++;
+		return registro.provider;
+	}
+
+	/**
+	 * Libera uma referência ao provider; ao atingir zero referências o
+	 * provider é removido de {@link Security} e do registro.
+	 *
+	 * @param provider
+	 *            {@link Provider} obtido por {@link #obter(String, Long)}.
+	 */
+	public static synchronized void liberar(Provider provider) {
+		Registro registro = POR_PROVEDOR.get(provider);
+		if (registro == null) {
+			return;
+		}
+
+		if (--registro.referencias == 0) {
+			PROVEDORES.remove(registro.chave);
+			POR_PROVEDOR.remove(provider);
+			Security.removeProvider(provider.getName());
+		}
+	}
+
+	private static class Registro {
+
+		private final String chave;
+		private final Provider provider;
+		private int referencias;
+
+		Registro(String chave, Provider provider) {
+			this.chave = chave;
+			this.provider = provider;
+		}
+	}
+}
@@ -21,7 +21,7 @@ import java.util.List;
  * desejado.
  *
  */
-public abstract class SmartCard {
+public abstract class SmartCard implements AutoCloseable {
 	
 	public static final String WINDOWS = "win";
 	public static final String OS_X = "mac";
@@ -34,6 +34,21 @@ public abstract class SmartCard {
 	
 	
 	public abstract boolean precisaAutenticacaoAoInicializar();
+	
+	/**
+	 * Indica se o hash dos dados a serem assinados deve ser calculado no host,
+	 * enviando ao smart card somente a operação RSA sobre o <i>DigestInfo</i>
+	 * (<code>NONEwithRSA</code>).
+	 * <p>
+	 * Tokens calculam hash lentamente; porém nem todo repositório aceita um
+	 * <i>DigestInfo</i> pronto (ex: Windows-MY), por isso o padrão é
+	 * <code>false</code>.
+	 *
+	 * @return <code>true</code> caso o hash deva ser calculado no host.
+	 */
+	public boolean isHashNoHost() {
+		return false;
+	}
 
 	/**
 	 * Retorna a instância do smart card para o tipo solicitado.
@@ -57,6 +72,34 @@ public abstract class SmartCard {
 		}
 	}
 	
+	/**
+	 * Retorna a instância do smart card PKCS#11 para um slot específico.
+	 *
+	 * @param biblioteca
+	 *            {@link String} caminho da biblioteca PKCS#11.
+	 * @param slot
+	 *            identificador do slot (ver {@link #listarSlotsPkcs11(String)}).
+	 * @return
+	 * @throws KeyStoreException
+	 *             Caso a biblioteca não possa ser carregada.
+	 */
+	public static SmartCard getInstancePkcs11(String biblioteca, long slot) throws KeyStoreException {
+		return new SmartCardPkcs11(biblioteca, slot);
+	}
+
+	/**
+	 * Lista os slots da biblioteca PKCS#11 que possuem token inserido.
+	 *
+	 * @param biblioteca
+	 *            {@link String} caminho da biblioteca PKCS#11.
+	 * @return identificadores dos slots com token.
+	 * @throws KeyStoreException
+	 *             Caso a biblioteca não possa ser carregada ou consultada.
+	 */
+	public static long[] listarSlotsPkcs11(String biblioteca) throws KeyStoreException {
+		return SmartCardPkcs11.listarSlots(biblioteca);
+	}
+	
 	public static SmartCard getInstance(String os) throws KeyStoreException {
 		switch (os) {
 		case WINDOWS:
@@ -216,4 +259,13 @@ public abstract class SmartCard {
 	 */
 	public abstract PrivateKey getChavePrivada(String alias) throws UnrecoverableKeyException, KeyStoreException,
 	NoSuchAlgorithmException;
+
+	/**
+	 * Libera os recursos do smart card (ex: referência ao provider PKCS#11).
+	 * <p>
+	 * Após o fechamento a instância não deve mais ser utilizada.
+	 */
+	@Override
+	public void close() {
+	}
 }
\ No newline at end of file
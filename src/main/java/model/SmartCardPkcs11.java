@@ -1,7 +1,6 @@
 package model;
 
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.KeyStore;
@@ -9,7 +8,6 @@ import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.Provider;
-import java.security.Security;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
 import java.util.Enumeration;
@@ -34,37 +32,113 @@ class SmartCardPkcs11 extends SmartCard {
 	private char[] senha;
 
 	/**
+	 * Biblioteca PKCS#11 utilizada quando nenhuma é informada.
+	 */
+	static final String BIBLIOTECA_PADRAO = "/usr/lib/libeToken.so.10";
+
+	/**
+	 * Slot do token ou <code>null</code> caso seja utilizado o primeiro slot
+	 * da biblioteca.
+	 */
+	private final Long slot;
+
+	/**
+	 * Provider SunPKCS11 obtido de {@link RegistroProvedoresPkcs11}.
+	 */
+	private Provider provider;
+
+	/**
+	 * Cria o acesso ao token do módulo obtido por
+	 * {@link DescobertaModuloPkcs11}; caso nenhum token seja encontrado
+	 * utiliza o primeiro slot de {@link #BIBLIOTECA_PADRAO}.
 	 *
 	 * @throws KeyStoreException
 	 */
 	protected SmartCardPkcs11() throws KeyStoreException {
-            try {
-                
-                String pkcs11ID = "smartcard";
-//                String libraryPath = "/usr/lib/x86_64-linux-gnu/opensc-pkcs11.so";
-                
-                
-                String libraryPath = "/usr/lib/libeToken.so.10";
-                
-                String pkcs11ConfigSettings = "name = " + pkcs11ID + 
-                        "\nlibrary = " + libraryPath +
-                        "\nshowInfo=false" +
-                        "\nslotListIndex = 0";
-                
-                
-                byte[] pkcs11ConfigBytes = pkcs11ConfigSettings.getBytes();
-                ByteArrayInputStream confStream = new ByteArrayInputStream(pkcs11ConfigBytes);
-                
-                Provider p = new sun.security.pkcs11.SunPKCS11(confStream);
-                
-                Security.addProvider(p);
-                
-                this.keyStore = KeyStore.getInstance(REPOSITORIO_PKCS11, p);
-                
-                
-            } catch (Exception ex) {
-                throw new KeyStoreException(ex);
-            }
+		DescobertaModuloPkcs11 descoberta = DescobertaModuloPkcs11.getInstance();
+
+		String biblioteca = BIBLIOTECA_PADRAO;
+		Long slot = null;
+		try {
+			DescobertaModuloPkcs11.Modulo modulo = descoberta.descobrir();
+			biblioteca = modulo.getBiblioteca();
+			slot = modulo.getSlot();
+		} catch (KeyStoreException e) {
+			System.err.println(e.getMessage());
+		}
+
+		try {
+			this.abrir(biblioteca, slot);
+		} catch (KeyStoreException e) {
+			// Módulo descoberto anteriormente deixou de funcionar
+			descoberta.invalidar();
+			throw e;
+		}
+		this.slot = slot;
+	}
+
+	/**
+	 * Cria o acesso ao token de um slot específico da biblioteca informada.
+	 *
+	 * @param libraryPath
+	 *            caminho da biblioteca PKCS#11.
+	 * @param slot
+	 *            identificador do slot (ver {@link #listarSlots(String)}) ou
+	 *            <code>null</code> para o primeiro slot.
+	 * @throws KeyStoreException
+	 *             Caso a biblioteca não possa ser carregada.
+	 */
+	protected SmartCardPkcs11(String libraryPath, Long slot) throws KeyStoreException {
+		this.abrir(libraryPath, slot);
+		this.slot = slot;
+	}
+
+	private void abrir(String libraryPath, Long slot) throws KeyStoreException {
+		// Provider compartilhado com os demais usuários da mesma biblioteca e slot
+		this.provider = RegistroProvedoresPkcs11.obter(libraryPath, slot);
+
+		try {
+			this.keyStore = KeyStore.getInstance(REPOSITORIO_PKCS11, this.provider);
+		} catch (KeyStoreException ex) {
+			RegistroProvedoresPkcs11.liberar(this.provider);
+			this.provider = null;
+			throw ex;
+		}
+	}
+
+	/**
+	 * Lista os slots da biblioteca PKCS#11 que possuem token inserido.
+	 *
+	 * @param libraryPath
+	 *            caminho da biblioteca PKCS#11.
+	 * @return identificadores dos slots com token.
+	 * @throws KeyStoreException
+	 *             Caso a biblioteca não possa ser carregada ou consultada.
+	 */
+	@SuppressWarnings("restriction")
+	static long[] listarSlots(String libraryPath) throws KeyStoreException {
+		try {
+			sun.security.pkcs11.wrapper.PKCS11 pkcs11 = sun.security.pkcs11.wrapper.PKCS11.getInstance(libraryPath,
+					"C_GetFunctionList", null, false);
+			return pkcs11.C_GetSlotList(true);
+		} catch (Exception e) {
+			throw new KeyStoreException(e);
+		}
+	}
+
+	public Long getSlot() {
+		return this.slot;
+	}
+
+	/**
+	 * Libera a referência ao provider compartilhado.
+	 */
+	@Override
+	public synchronized void close() {
+		if (this.provider != null) {
+			RegistroProvedoresPkcs11.liberar(this.provider);
+			this.provider = null;
+		}
 	}
 
 	@Override
@@ -95,4 +169,13 @@ class SmartCardPkcs11 extends SmartCard {
 	public boolean precisaAutenticacaoAoInicializar() {
 		return true;
 	}
+
+	/**
+	 * O token realiza somente a operação RSA (CKM_RSA_PKCS); o hash é
+	 * calculado no host.
+	 */
+	@Override
+	public boolean isHashNoHost() {
+		return true;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,48 @@
+package model.dto;
+
+import model.exception.ErroAoAssinarException;
+
+public class ResultadoAssinatura {
+	
+	private int indice;
+	private byte[] assinatura;
+	private ErroAoAssinarException erro;
+	
+	@Override
+	public String toString() {
+		return "ResultadoAssinatura [indice=" + indice + ", sucesso=" + isSucesso()
+				+ (erro != null ? ", erro=" + erro.getMessage() : "") + "]";
+	}
+	
+	public boolean isSucesso() {
+		return this.assinatura != null;
+	}
+
+	public int getIndice() {
+		return indice;
+	}
+
+	public ResultadoAssinatura setIndice(int indice) {
+		this.indice = indice;
+		return this;
+	}
+
+	public byte[] getAssinatura() {
+		return assinatura;
+	}
+
+	public ResultadoAssinatura setAssinatura(byte[] assinatura) {
+		this.assinatura = assinatura;
+		return this;
+	}
+
+	public ErroAoAssinarException getErro() {
+		return erro;
+	}
+
+	public ResultadoAssinatura setErro(ErroAoAssinarException erro) {
+		this.erro = erro;
+		return this;
+	}
+
+}
@@ -0,0 +1,46 @@
+package model.dto;
+
+public class ResultadoInventario {
+	
+	private String arquivo;
+	private CertificadoDTO certificado;
+	private String erro;
+	
+	@Override
+	public String toString() {
+		return "ResultadoInventario [arquivo=" + arquivo + ", sucesso=" + isSucesso()
+				+ (erro != null ? ", erro=" + erro : "") + "]";
+	}
+	
+	public boolean isSucesso() {
+		return this.certificado != null;
+	}
+
+	public String getArquivo() {
+		return arquivo;
+	}
+
+	public ResultadoInventario setArquivo(String arquivo) {
+		this.arquivo = arquivo;
+		return this;
+	}
+
+	public CertificadoDTO getCertificado() {
+		return certificado;
+	}
+
+	public ResultadoInventario setCertificado(CertificadoDTO certificado) {
+		this.certificado = certificado;
+		return this;
+	}
+
+	public String getErro() {
+		return erro;
+	}
+
+	public ResultadoInventario setErro(String erro) {
+		this.erro = erro;
+		return this;
+	}
+
+}
@@ -0,0 +1,141 @@
+package model.dto;
+
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.Map;
+
+public class ResultadoVerificacao {
+
+	/**
+	 * Etapas da verificação, na ordem em que são executadas.
+	 */
+	public enum Etapa {
+		/** Decodificação da assinatura e localização do certificado. */
+		DECODIFICACAO,
+		/** Comparação do atributo messageDigest com o hash do documento. */
+		HASH,
+		/** Verificação da assinatura sobre os atributos assinados. */
+		ASSINATURA,
+		/** Verificação do certificado do signatário. */
+		CERTIFICADO
+	}
+
+	private int indice;
+	private boolean valida;
+	private Etapa etapaFalha;
+	private String erro;
+
+	private String algoritmoHash;
+
+	/**
+	 * Data do atributo signingTime ou <code>null</code>, caso ausente.
+	 */
+	private Date dataAssinatura;
+
+	/**
+	 * Data em que o certificado foi verificado: a data da assinatura ou, na
+	 * sua ausência, a data da verificação.
+	 */
+	private Date dataReferencia;
+
+	private X509Certificate certificado;
+
+	/**
+	 * Duração de cada etapa executada, em nanossegundos.
+	 */
+	private final Map<Etapa, Long> tempos = new EnumMap<>(Etapa.class);
+
+	@Override
+	public String toString() {
+		return "ResultadoVerificacao [indice=" + indice + ", valida=" + valida
+				+ (erro != null ? ", etapaFalha=" + etapaFalha + ", erro=" + erro : "") + ", tempos=" + tempos + "]";
+	}
+
+	public int getIndice() {
+		return indice;
+	}
+
+	public ResultadoVerificacao setIndice(int indice) {
+		this.indice = indice;
+		return this;
+	}
+
+	public boolean isValida() {
+		return valida;
+	}
+
+	public ResultadoVerificacao setValida(boolean valida) {
+		this.valida = valida;
+		return this;
+	}
+
+	public Etapa getEtapaFalha() {
+		return etapaFalha;
+	}
+
+	public String getErro() {
+		return erro;
+	}
+
+	public ResultadoVerificacao setErro(Etapa etapaFalha, String erro) {
+		this.valida = false;
+		this.etapaFalha = etapaFalha;
+		this.erro = erro;
+		return this;
+	}
+
+	public String getAlgoritmoHash() {
+		return algoritmoHash;
+	}
+
+	public ResultadoVerificacao setAlgoritmoHash(String algoritmoHash) {
+		this.algoritmoHash = algoritmoHash;
+		return this;
+	}
+
+	public Date getDataAssinatura() {
+		return dataAssinatura;
+	}
+
+	public ResultadoVerificacao setDataAssinatura(Date dataAssinatura) {
+		this.dataAssinatura = dataAssinatura;
+		return this;
+	}
+
+	public Date getDataReferencia() {
+		return dataReferencia;
+	}
+
+	public ResultadoVerificacao setDataReferencia(Date dataReferencia) {
+		this.dataReferencia = dataReferencia;
+		return this;
+	}
+
+	/**
+	 * Indica se a data de referência é a data da verificação, por ausência do
+	 * atributo signingTime.
+	 */
+	public boolean isDataAtualComoReferencia() {
+		return dataAssinatura == null && dataReferencia != null;
+	}
+
+	public X509Certificate getCertificado() {
+		return certificado;
+	}
+
+	public ResultadoVerificacao setCertificado(X509Certificate certificado) {
+		this.certificado = certificado;
+		return this;
+	}
+
+	public Map<Etapa, Long> getTempos() {
+		return tempos;
+	}
+
+	public ResultadoVerificacao addTempo(Etapa etapa, long nanos) {
+		this.tempos.merge(etapa, nanos, Long::sum);
+		return this;
+	}
+
+}
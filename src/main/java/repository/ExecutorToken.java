@@ -0,0 +1,273 @@
+package repository;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executor dedicado às operações de um token.
+ * <p>
+ * Um token PKCS#11 executa uma operação por vez; por isso todas as operações
+ * são executadas por uma única thread proprietária, alimentada por uma fila
+ * limitada. Várias threads clientes podem submeter trabalho sem disputar
+ * locks sobre o token, que permanece ocupado enquanto houver pedidos.
+ * <p>
+ * Quando a fila está cheia aplica-se a {@link Contrapressao} configurada.
+ * Pedidos que aguardaram na fila além do tempo limite são descartados sem
+ * executar e concluídos com {@link TimeoutException}.
+ *
+ */
+public class ExecutorToken implements AutoCloseable {
+
+	/**
+	 * Comportamento da submissão quando a fila está cheia.
+	 */
+	public enum Contrapressao {
+		/**
+		 * Rejeita o pedido imediatamente.
+		 */
+		REJEITAR,
+		/**
+		 * Bloqueia a thread cliente até haver vaga na fila ou o tempo limite
+		 * expirar.
+		 */
+		AGUARDAR
+	}
+
+	public static final int CAPACIDADE_PADRAO = 1024;
+	public static final long TEMPO_LIMITE_PADRAO_SEGUNDOS = 60;
+
+	private final BlockingQueue<Pedido<?>> fila;
+	private final Contrapressao contrapressao;
+	private final long tempoLimiteNanos;
+	private final Thread proprietaria;
+
+	/**
+	 * Pedidos na fila ou em execução.
+	 */
+	private final AtomicInteger pendentes = new AtomicInteger();
+
+	private volatile boolean fechado;
+
+	public ExecutorToken(String nome) {
+		this(nome, CAPACIDADE_PADRAO, Contrapressao.AGUARDAR, TEMPO_LIMITE_PADRAO_SEGUNDOS, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * @param nome
+	 *            nome do token (utilizado no nome da thread proprietária).
+	 * @param capacidade
+	 *            quantidade máxima de pedidos aguardando na fila.
+	 * @param contrapressao
+	 *            {@link Contrapressao} comportamento com a fila cheia.
+	 * @param tempoLimite
+	 *            tempo máximo de espera por vaga na fila e de permanência de
+	 *            um pedido na fila antes de ser executado.
+	 * @param unidade
+	 *            {@link TimeUnit} unidade do tempo limite.
+	 */
+	public ExecutorToken(String nome, int capacidade, Contrapressao contrapressao, long tempoLimite, TimeUnit unidade) {
+		this.fila = new ArrayBlockingQueue<>(capacidade);
+		this.contrapressao = contrapressao;
+		this.tempoLimiteNanos = unidade.toNanos(tempoLimite);
+
+		this.proprietaria = new Thread(this::executar, "token-" + nome);
+		this.proprietaria.setDaemon(true);
+		this.proprietaria.start();
+	}
+
+	/**
+	 * Submete uma operação para execução na thread proprietária do token.
+	 *
+	 * @param tarefa
+	 *            {@link Callable} operação sobre o token.
+	 * @return {@link CompletableFuture} concluído com o resultado da operação,
+	 *         ou excepcionalmente com {@link RejectedExecutionException} (fila
+	 *         cheia ou executor fechado), {@link TimeoutException} (tempo
+	 *         limite na fila) ou a exceção lançada pela operação.
+	 */
+	public <T> CompletableFuture<T> submeter(Callable<T> tarefa) {
+		Pedido<T> pedido = new Pedido<>(tarefa, System.nanoTime() + this.tempoLimiteNanos);
+
+		if (this.fechado) {
+			pedido.futuro.completeExceptionally(new RejectedExecutionException("Executor do token encerrado"));
+			return pedido.futuro;
+		}
+
+		this.pendentes.incrementAndGet();
+		boolean enfileirado;
+		try {
+			if (this.contrapressao == Contrapressao.AGUARDAR) {
+				enfileirado = this.fila.offer(pedido, this.tempoLimiteNanos, TimeUnit.NANOSECONDS);
+			} else {
+				enfileirado = this.fila.offer(pedido);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			enfileirado = false;
+		}
+
+		if (!enfileirado) {
+			this.pendentes.decrementAndGet();
+			pedido.futuro.completeExceptionally(new RejectedExecutionException("Fila do token cheia"));
+		} else if (this.fechado && this.fila.remove(pedido)) {
+			// Executor encerrado durante a submissão
+			this.pendentes.decrementAndGet();
+			pedido.futuro.cancel(false);
+		}
+		return pedido.futuro;
+	}
+
+	/**
+	 * Executa a operação na thread proprietária e aguarda o resultado pelo
+	 * tempo limite na fila somado ao mesmo tempo para a execução.
+	 *
+	 * @see #aguardar(Callable, long, TimeUnit)
+	 */
+	public <T> T aguardar(Callable<T> tarefa) throws Exception {
+		return this.aguardar(tarefa, 2 * this.tempoLimiteNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Executa a operação na thread proprietária e aguarda o resultado. Quando
+	 * chamado pela própria thread proprietária (operação aninhada), executa
+	 * diretamente.
+	 * <p>
+	 * Expirado o tempo de espera o pedido é cancelado: se ainda estiver na
+	 * fila não será executado; se já estiver em execução, a operação sobre o
+	 * token prossegue até o fim e o resultado é descartado.
+	 *
+	 * @param tarefa
+	 *            {@link Callable} operação sobre o token.
+	 * @param tempoLimite
+	 *            tempo máximo de espera pelo resultado, incluindo a espera
+	 *            na fila.
+	 * @param unidade
+	 *            {@link TimeUnit} unidade do tempo limite.
+	 * @return resultado da operação.
+	 * @throws Exception
+	 *             A exceção lançada pela operação ou
+	 *             {@link RejectedExecutionException},
+	 *             {@link TimeoutException} ou {@link InterruptedException}.
+	 */
+	public <T> T aguardar(Callable<T> tarefa, long tempoLimite, TimeUnit unidade) throws Exception {
+		if (Thread.currentThread() == this.proprietaria) {
+			return tarefa.call();
+		}
+
+		CompletableFuture<T> futuro = this.submeter(tarefa);
+		try {
+			return futuro.get(tempoLimite, unidade);
+		} catch (InterruptedException e) {
+			// Descarta o pedido caso ainda esteja na fila
+			futuro.cancel(false);
+			Thread.currentThread().interrupt();
+			throw e;
+		} catch (TimeoutException e) {
+			futuro.cancel(false);
+			throw new TimeoutException("Tempo limite aguardando a operação do token excedido");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Retorna a quantidade de pedidos na fila ou em execução.
+	 */
+	public int getPendentes() {
+		return this.pendentes.get();
+	}
+
+	public boolean isFechado() {
+		return this.fechado;
+	}
+
+	/**
+	 * Aguarda, após {@link #close()}, a conclusão da operação em execução e o
+	 * término da thread proprietária.
+	 *
+	 * @return <code>true</code> se a thread proprietária terminou dentro do
+	 *         tempo informado; <code>false</code> caso contrário ou quando
+	 *         chamado pela própria thread proprietária.
+	 */
+	public boolean aguardarTermino(long tempo, TimeUnit unidade) throws InterruptedException {
+		if (Thread.currentThread() == this.proprietaria) {
+			return false;
+		}
+		unidade.timedJoin(this.proprietaria, tempo);
+		return !this.proprietaria.isAlive();
+	}
+
+	/**
+	 * Encerra o executor; pedidos ainda na fila são cancelados.
+	 */
+	@Override
+	public void close() {
+		this.fechado = true;
+		this.proprietaria.interrupt();
+
+		Pedido<?> pedido;
+		while ((pedido = this.fila.poll()) != null) {
+			pedido.futuro.cancel(false);
+			this.pendentes.decrementAndGet();
+		}
+	}
+
+	private void executar() {
+		while (!this.fechado) {
+			Pedido<?> pedido;
+			try {
+				pedido = this.fila.take();
+			} catch (InterruptedException e) {
+				continue;
+			}
+
+			try {
+				pedido.executar();
+			} finally {
+				this.pendentes.decrementAndGet();
+			}
+		}
+	}
+
+	private static class Pedido<T> {
+
+		private final Callable<T> tarefa;
+		private final long prazo;
+		private final CompletableFuture<T> futuro = new CompletableFuture<>();
+
+		Pedido(Callable<T> tarefa, long prazo) {
+			this.tarefa = tarefa;
+			this.prazo = prazo;
+		}
+
+		void executar() {
+			if (this.futuro.isDone()) {
+				// Cancelado pelo cliente enquanto aguardava na fila
+				return;
+			}
+			if (System.nanoTime() - this.prazo > 0) {
+				this.futuro.completeExceptionally(new TimeoutException("Tempo limite na fila do token excedido"));
+				return;
+			}
+
+			try {
+				this.futuro.complete(this.tarefa.call());
+			} catch (Throwable e) {
+				this.futuro.completeExceptionally(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,890 @@
+package repository;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.Signature;
+import java.security.cert.CRLException;
+import java.security.cert.X509Certificate;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.ASN1Primitive;
+import org.bouncycastle.asn1.BERTags;
+import org.bouncycastle.asn1.DERBitString;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x509.AuthorityKeyIdentifier;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.Extensions;
+import org.bouncycastle.asn1.x509.IssuingDistributionPoint;
+import org.bouncycastle.asn1.x509.Time;
+
+/**
+ * Índice dos números de série revogados de uma LCR, gravado em arquivo e
+ * mapeado em memória.
+ * <p>
+ * A LCR é percorrida diretamente sobre a sua codificação DER, sem a
+ * construção de um {@link java.security.cert.X509CRL}: a assinatura é
+ * verificada sobre o <i>tbsCertList</i> lido e de cada entrada são extraídos
+ * o número de série, a data e o motivo da revogação.
+ * As entradas são gravadas em registros de tamanho fixo ordenados pelo
+ * número de série, precedidos de um filtro de Bloom.
+ * <p>
+ * A consulta descarta pelo filtro de Bloom a maioria dos números não
+ * revogados e, para os demais, realiza uma busca binária no arquivo mapeado;
+ * o heap utilizado independe da quantidade de entradas. Os índices são
+ * imutáveis: a aplicação de uma LCR delta grava um novo índice.
+ * <p>
+ * Somente LCRs completas do emissor são indexadas: LCRs indiretas, LCRs
+ * particionadas por ponto de distribuição, tipo de certificado ou motivo
+ * (<i>issuingDistributionPoint</i>) e LCRs ou entradas com extensões
+ * críticas não reconhecidas são rejeitadas (RFC 5280, seções 5.2 e 5.3).
+ *
+ */
+public class IndiceLcr {
+
+	/**
+	 * Identificação do formato do índice ("LCRI").
+	 */
+	private static final int MAGICO = 0x4C435249;
+	private static final short VERSAO = 1;
+
+	/**
+	 * Motivo de revogação ausente.
+	 */
+	static final byte SEM_MOTIVO = (byte) 0xFF;
+
+	/**
+	 * Motivo <i>removeFromCRL</i> (RFC 5280, seção 5.3.1).
+	 */
+	static final byte REMOVER_DA_LCR = 8;
+
+	private static final int BITS_POR_ENTRADA = 10;
+	private static final int FUNCOES_BLOOM = 7;
+
+	/**
+	 * Extensões de LCR reconhecidas; as demais não podem ser críticas.
+	 */
+	private static final Set<ASN1ObjectIdentifier> EXTENSOES_LCR = new HashSet<>(Arrays.asList(
+			Extension.cRLNumber, Extension.deltaCRLIndicator, Extension.authorityKeyIdentifier,
+			Extension.issuerAlternativeName, Extension.freshestCRL, Extension.authorityInfoAccess));
+
+	private static final int TAG_SEQUENCE = BERTags.SEQUENCE | BERTags.CONSTRUCTED;
+	private static final int TAG_EXTENSOES = BERTags.TAGGED | BERTags.CONSTRUCTED;
+
+	private final ByteBuffer mapa;
+	private final X500Principal emissor;
+	private final long emissao;
+	private final long proximaAtualizacao;
+	private final BigInteger numero;
+	private final int quantidade;
+	private final int largura;
+	private final int inicioBloom;
+	private final int palavrasBloom;
+	private final int inicioRegistros;
+
+	private IndiceLcr(ByteBuffer mapa) throws IOException {
+		try {
+			ByteBuffer b = mapa.duplicate();
+			if (b.getInt() != MAGICO || b.getShort() != VERSAO) {
+				throw new IOException("Arquivo não é um índice de LCR");
+			}
+			this.emissao = b.getLong();
+			this.proximaAtualizacao = b.getLong();
+			this.emissor = new X500Principal(lerBytes(b));
+			byte[] numero = lerBytes(b);
+			this.numero = (numero.length == 0 ? null : new BigInteger(1, numero));
+			this.quantidade = b.getInt();
+			this.largura = b.get() & 0xFF;
+			this.palavrasBloom = b.getInt();
+			this.inicioBloom = b.position();
+
+			long inicioRegistros = this.inicioBloom + (long) this.palavrasBloom * Long.BYTES;
+			if (this.palavrasBloom <= 0 || this.quantidade < 0 || this.largura == 0
+					|| inicioRegistros + (long) this.quantidade * this.getTamanhoRegistro() != mapa.limit()) {
+				throw new IOException("Índice de LCR corrompido");
+			}
+			this.inicioRegistros = (int) inicioRegistros;
+		} catch (BufferUnderflowException | IllegalArgumentException e) {
+			throw new IOException("Índice de LCR corrompido", e);
+		}
+		this.mapa = mapa;
+	}
+
+	/**
+	 * Abre um índice gravado por {@link #gerar(Path, X509Certificate, Path)},
+	 * mapeando-o em memória.
+	 *
+	 * @param arquivo
+	 *            {@link Path} arquivo do índice.
+	 * @return {@link IndiceLcr} índice aberto.
+	 * @throws IOException
+	 *             Caso o arquivo não possa ser lido ou esteja corrompido.
+	 */
+	public static IndiceLcr abrir(Path arquivo) throws IOException {
+		try (FileChannel canal = FileChannel.open(arquivo, StandardOpenOption.READ)) {
+			return new IndiceLcr(canal.map(FileChannel.MapMode.READ_ONLY, 0, canal.size()));
+		}
+	}
+
+	/**
+	 * Verifica a assinatura da LCR e grava o índice das suas entradas.
+	 *
+	 * @param lcr
+	 *            {@link Path} arquivo da LCR codificada em DER.
+	 * @param emissor
+	 *            {@link X509Certificate} certificado da AC emissora da LCR.
+	 * @param destino
+	 *            {@link Path} arquivo do índice, substituído atomicamente.
+	 * @return {@link IndiceLcr} índice gerado, já aberto.
+	 * @throws CRLException
+	 *             Caso a LCR seja inválida, não tenha sido emitida pela AC ou
+	 *             a assinatura não confira.
+	 * @throws IOException
+	 *             Em caso de erros de leitura ou gravação.
+	 */
+	public static IndiceLcr gerar(Path lcr, X509Certificate emissor, Path destino) throws CRLException, IOException {
+		Lcr lida = Lcr.ler(lcr);
+		lida.verificar(emissor);
+		return gerar(lida, destino);
+	}
+
+	/**
+	 * Grava o índice de uma LCR já lida e verificada.
+	 */
+	static IndiceLcr gerar(Lcr lcr, Path destino) throws CRLException, IOException {
+		Registros registros = lcr.extrairRegistros();
+		registros.ordenar();
+		return gravar(destino, lcr.emissor, lcr.emissao, lcr.proximaAtualizacao, lcr.numero, registros);
+	}
+
+	/**
+	 * Grava um novo índice com as entradas deste atualizadas pela LCR delta
+	 * já lida e verificada: as entradas da delta são incluídas ou substituem
+	 * as existentes e as com motivo <i>removeFromCRL</i> são excluídas. Os
+	 * registros já ordenados são intercalados em uma única passagem, sem
+	 * decodificar novamente a LCR base.
+	 */
+	IndiceLcr aplicar(Lcr delta, Path destino) throws CRLException, IOException {
+		Registros alteracoes = delta.extrairRegistros();
+		alteracoes.ordenar();
+
+		Registros resultado = new Registros(Math.max(this.largura, alteracoes.largura), this.quantidade + alteracoes.quantidade);
+		ByteBuffer registros = this.mapa.duplicate();
+		registros.position(this.inicioRegistros);
+		byte[] serie = new byte[this.largura];
+
+		int i = 0;
+		int j = 0;
+		while (i < this.quantidade || j < alteracoes.quantidade) {
+			int comparacao;
+			if (i == this.quantidade) {
+				comparacao = 1;
+			} else if (j == alteracoes.quantidade) {
+				comparacao = -1;
+			} else {
+				byte[] alterada = alteracoes.getSerie(j);
+				comparacao = (alterada.length > this.largura ? -1 : this.comparar(registros.position(), alterada));
+			}
+
+			if (comparacao < 0) {
+				registros.get(serie);
+				long revogacao = registros.getLong();
+				byte motivo = registros.get();
+				int zeros = 0;
+				while (zeros < serie.length - 1 && serie[zeros] == 0) {
+					zeros++;
+				}
+				resultado.adicionar(serie, zeros, serie.length - zeros, revogacao, motivo);
+				i++;
+			} else {
+				if (comparacao == 0) {
+					registros.position(registros.position() + this.getTamanhoRegistro());
+					i++;
+				}
+				if (alteracoes.getMotivo(j) != REMOVER_DA_LCR) {
+					byte[] alterada = alteracoes.getSerie(j);
+					resultado.adicionar(alterada, 0, alterada.length, alteracoes.getRevogacao(j), alteracoes.getMotivo(j));
+				}
+				j++;
+			}
+		}
+		return gravar(destino, this.emissor, delta.emissao, delta.proximaAtualizacao, delta.numero, resultado);
+	}
+
+	/**
+	 * Retorna a data de revogação do número de série ou <code>null</code>
+	 * caso não esteja revogado nesta LCR.
+	 */
+	public Date consultar(BigInteger serie) {
+		int posicao = this.buscar(normalizar(serie.toByteArray()));
+		return (posicao < 0 ? null : new Date(this.mapa.getLong(posicao + this.largura)));
+	}
+
+	/**
+	 * Indica se o número de série pode estar revogado: <code>false</code>
+	 * garante que não está.
+	 */
+	boolean talvezRevogado(byte[] serie) {
+		long hash = hash(serie, 0, serie.length);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		long bits = (long) this.palavrasBloom * Long.SIZE;
+		for (int i = 0; i < FUNCOES_BLOOM; i++) {
+			long bit = Math.floorMod(h1 + (long) i * h2, bits);
+			long palavra = this.mapa.getLong(this.inicioBloom + (int) (bit >>> 6) * Long.BYTES);
+			if ((palavra & (1L << (bit & 63))) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Posição do registro do número de série (sem zeros à esquerda) ou -1.
+	 */
+	private int buscar(byte[] serie) {
+		if (serie.length > this.largura || !this.talvezRevogado(serie)) {
+			return -1;
+		}
+
+		int tamanhoRegistro = this.getTamanhoRegistro();
+		int inicio = 0;
+		int fim = this.quantidade - 1;
+		while (inicio <= fim) {
+			int meio = (inicio + fim) >>> 1;
+			int posicao = this.inicioRegistros + meio * tamanhoRegistro;
+			int comparacao = this.comparar(posicao, serie);
+			if (comparacao < 0) {
+				inicio = meio + 1;
+			} else if (comparacao > 0) {
+				fim = meio - 1;
+			} else {
+				return posicao;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Compara o número de série do registro (largura fixa, zeros à esquerda)
+	 * com o número informado, como inteiros sem sinal.
+	 */
+	private int comparar(int posicao, byte[] serie) {
+		int zeros = this.largura - serie.length;
+		for (int i = 0; i < this.largura; i++) {
+			int a = this.mapa.get(posicao + i) & 0xFF;
+			int b = (i < zeros ? 0 : serie[i - zeros] & 0xFF);
+			if (a != b) {
+				return a - b;
+			}
+		}
+		return 0;
+	}
+
+	public X500Principal getEmissor() {
+		return this.emissor;
+	}
+
+	/**
+	 * Data de emissão (<i>thisUpdate</i>) da LCR.
+	 */
+	public Date getEmissao() {
+		return new Date(this.emissao);
+	}
+
+	/**
+	 * Data da próxima atualização (<i>nextUpdate</i>) da LCR ou
+	 * <code>null</code>.
+	 */
+	public Date getProximaAtualizacao() {
+		return (this.proximaAtualizacao == Long.MAX_VALUE ? null : new Date(this.proximaAtualizacao));
+	}
+
+	/**
+	 * Número da LCR (<i>cRLNumber</i>) ou <code>null</code>.
+	 */
+	public BigInteger getNumero() {
+		return this.numero;
+	}
+
+	/**
+	 * Quantidade de números de série revogados.
+	 */
+	public int getQuantidade() {
+		return this.quantidade;
+	}
+
+	private int getTamanhoRegistro() {
+		return this.largura + Long.BYTES + 1;
+	}
+
+	private static IndiceLcr gravar(Path destino, X500Principal emissor, long emissao, long proximaAtualizacao, BigInteger numero,
+			Registros registros) throws IOException {
+		long[] bloom = registros.gerarBloom();
+		byte[] dn = emissor.getEncoded();
+		byte[] numeroCodificado = (numero == null ? new byte[0] : normalizar(numero.toByteArray()));
+
+		ByteBuffer cabecalho = ByteBuffer.allocate(4 + 2 + 8 + 8 + 2 + dn.length + 2 + numeroCodificado.length + 4 + 1 + 4 + bloom.length * Long.BYTES);
+		cabecalho.putInt(MAGICO).putShort(VERSAO).putLong(emissao).putLong(proximaAtualizacao);
+		cabecalho.putShort((short) dn.length).put(dn);
+		cabecalho.putShort((short) numeroCodificado.length).put(numeroCodificado);
+		cabecalho.putInt(registros.quantidade).put((byte) registros.largura).putInt(bloom.length);
+		cabecalho.asLongBuffer().put(bloom);
+		cabecalho.position(cabecalho.capacity());
+		cabecalho.flip();
+
+		Path diretorio = destino.toAbsolutePath().getParent();
+		Files.createDirectories(diretorio);
+		Path temporario = Files.createTempFile(diretorio, destino.getFileName().toString(), ".tmp");
+		try {
+			try (FileChannel canal = FileChannel.open(temporario, StandardOpenOption.WRITE)) {
+				ByteBuffer corpo = ByteBuffer.wrap(registros.dados, 0, registros.quantidade * registros.getTamanhoRegistro());
+				while (cabecalho.hasRemaining() || corpo.hasRemaining()) {
+					canal.write(new ByteBuffer[] { cabecalho, corpo });
+				}
+				canal.force(false);
+			}
+			Files.move(temporario, destino, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temporario);
+		}
+		return abrir(destino);
+	}
+
+	/**
+	 * Remove os zeros à esquerda (inclusive o de sinal) de um inteiro sem
+	 * sinal.
+	 */
+	static byte[] normalizar(byte[] inteiro) {
+		int inicio = 0;
+		while (inicio < inteiro.length - 1 && inteiro[inicio] == 0) {
+			inicio++;
+		}
+		return (inicio == 0 ? inteiro : Arrays.copyOfRange(inteiro, inicio, inteiro.length));
+	}
+
+	/**
+	 * FNV-1a de 64 bits.
+	 */
+	private static long hash(byte[] dados, int inicio, int tamanho) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = inicio; i < inicio + tamanho; i++) {
+			hash ^= dados[i] & 0xFF;
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	private static byte[] lerBytes(ByteBuffer origem) {
+		byte[] bytes = new byte[origem.getShort() & 0xFFFF];
+		origem.get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Entradas da LCR em registros de tamanho fixo: número de série (com
+	 * zeros à esquerda até a largura), data da revogação e motivo.
+	 */
+	static class Registros {
+
+		private final int largura;
+		private byte[] dados;
+		private int quantidade;
+
+		Registros(int largura, int capacidade) {
+			this.largura = largura;
+			this.dados = new byte[Math.max(capacidade, 1) * this.getTamanhoRegistro()];
+		}
+
+		int getTamanhoRegistro() {
+			return this.largura + Long.BYTES + 1;
+		}
+
+		void adicionar(byte[] serie, int inicio, int tamanho, long revogacao, byte motivo) {
+			int tamanhoRegistro = this.getTamanhoRegistro();
+			if ((this.quantidade + 1) * tamanhoRegistro > this.dados.length) {
+				this.dados = Arrays.copyOf(this.dados, this.dados.length * 2);
+			}
+			int posicao = this.quantidade * tamanhoRegistro;
+			System.arraycopy(serie, inicio, this.dados, posicao + this.largura - tamanho, tamanho);
+			ByteBuffer.wrap(this.dados, posicao + this.largura, Long.BYTES + 1).putLong(revogacao).put(motivo);
+			this.quantidade++;
+		}
+
+		/**
+		 * Número de série do registro, sem zeros à esquerda.
+		 */
+		byte[] getSerie(int indice) {
+			int posicao = indice * this.getTamanhoRegistro();
+			int zeros = 0;
+			while (zeros < this.largura - 1 && this.dados[posicao + zeros] == 0) {
+				zeros++;
+			}
+			return Arrays.copyOfRange(this.dados, posicao + zeros, posicao + this.largura);
+		}
+
+		long getRevogacao(int indice) {
+			return ByteBuffer.wrap(this.dados).getLong(indice * this.getTamanhoRegistro() + this.largura);
+		}
+
+		byte getMotivo(int indice) {
+			return this.dados[indice * this.getTamanhoRegistro() + this.largura + Long.BYTES];
+		}
+
+		/**
+		 * Ordena os registros pelo número de série, mantendo a primeira
+		 * ocorrência de números repetidos.
+		 */
+		void ordenar() {
+			int tamanhoRegistro = this.getTamanhoRegistro();
+			// Chave resumida (quantidade de bytes significativos seguida dos 7
+			// primeiros) que decide a maioria das comparações
+			int[] ordem = new int[this.quantidade];
+			long[] chaves = new long[this.quantidade];
+			for (int i = 0; i < ordem.length; i++) {
+				ordem[i] = i;
+				int posicao = i * tamanhoRegistro;
+				int zeros = 0;
+				while (zeros < this.largura - 1 && this.dados[posicao + zeros] == 0) {
+					zeros++;
+				}
+				long chave = this.largura - zeros;
+				for (int j = 0; j < Long.BYTES - 1; j++) {
+					int k = zeros + j;
+					chave = (chave << 8) | (k < this.largura ? this.dados[posicao + k] & 0xFF : 0);
+				}
+				chaves[i] = chave;
+			}
+
+			// Mergesort sobre índices primitivos; estável, de modo que a
+			// primeira ocorrência precede as repetidas
+			int[] auxiliar = new int[ordem.length];
+			for (int tamanho = 1; tamanho < ordem.length; tamanho *= 2) {
+				for (int inicio = 0; inicio < ordem.length - tamanho; inicio += 2 * tamanho) {
+					int meio = inicio + tamanho;
+					int fim = Math.min(inicio + 2 * tamanho, ordem.length);
+					int i = inicio;
+					int j = meio;
+					int k = inicio;
+					while (i < meio && j < fim) {
+						auxiliar[k++] = (this.comparar(ordem[j], ordem[i], chaves) < 0 ? ordem[j++] : ordem[i++]);
+					}
+					while (i < meio) {
+						auxiliar[k++] = ordem[i++];
+					}
+					while (j < fim) {
+						auxiliar[k++] = ordem[j++];
+					}
+					System.arraycopy(auxiliar, inicio, ordem, inicio, fim - inicio);
+				}
+			}
+
+			byte[] ordenados = new byte[this.quantidade * tamanhoRegistro];
+			int n = 0;
+			for (int i = 0; i < ordem.length; i++) {
+				int origem = ordem[i] * tamanhoRegistro;
+				if (n > 0 && compararSerie(this.dados, origem, ordenados, (n - 1) * tamanhoRegistro, this.largura) == 0) {
+					continue;
+				}
+				System.arraycopy(this.dados, origem, ordenados, n * tamanhoRegistro, tamanhoRegistro);
+				n++;
+			}
+			this.dados = ordenados;
+			this.quantidade = n;
+		}
+
+		long[] gerarBloom() {
+			long bits = Math.max(Long.SIZE, (long) this.quantidade * BITS_POR_ENTRADA);
+			long[] bloom = new long[(int) ((bits + Long.SIZE - 1) / Long.SIZE)];
+			bits = (long) bloom.length * Long.SIZE;
+
+			int tamanhoRegistro = this.getTamanhoRegistro();
+			for (int i = 0; i < this.quantidade; i++) {
+				int posicao = i * tamanhoRegistro;
+				int zeros = 0;
+				while (zeros < this.largura - 1 && this.dados[posicao + zeros] == 0) {
+					zeros++;
+				}
+				long hash = hash(this.dados, posicao + zeros, this.largura - zeros);
+				int h1 = (int) hash;
+				int h2 = (int) (hash >>> 32);
+				for (int f = 0; f < FUNCOES_BLOOM; f++) {
+					long bit = Math.floorMod(h1 + (long) f * h2, bits);
+					bloom[(int) (bit >>> 6)] |= 1L << (bit & 63);
+				}
+			}
+			return bloom;
+		}
+
+		private int comparar(int a, int b, long[] chaves) {
+			int c = Long.compare(chaves[a], chaves[b]);
+			int tamanhoRegistro = this.getTamanhoRegistro();
+			return (c != 0 ? c : compararSerie(this.dados, a * tamanhoRegistro, this.dados, b * tamanhoRegistro, this.largura));
+		}
+
+		private static int compararSerie(byte[] x, int a, byte[] y, int b, int largura) {
+			for (int i = 0; i < largura; i++) {
+				int c = (x[a + i] & 0xFF) - (y[b + i] & 0xFF);
+				if (c != 0) {
+					return c;
+				}
+			}
+			return 0;
+		}
+	}
+
+	/**
+	 * Partes da LCR lidas diretamente da codificação DER.
+	 */
+	static class Lcr {
+
+		X500Principal emissor;
+		ByteBuffer chaveAutoridade;
+		long emissao;
+		long proximaAtualizacao = Long.MAX_VALUE;
+		BigInteger numero;
+		BigInteger numeroBase;
+		private ByteBuffer tbsCodificado;
+		private AlgorithmIdentifier algoritmo;
+		private byte[] assinatura;
+		private ByteBuffer revogados;
+
+		/**
+		 * Lê o arquivo da LCR e decodifica a sua estrutura, sem percorrer as
+		 * entradas.
+		 * <p>
+		 * O arquivo é lido para o heap e fechado antes do retorno, sem ser
+		 * mapeado em memória: um mapeamento só é liberado pelo coletor de lixo
+		 * e, até lá, impede que o arquivo seja substituído ou excluído no
+		 * Windows.
+		 */
+		static Lcr ler(Path arquivo) throws CRLException, IOException {
+			return ler(ByteBuffer.wrap(Files.readAllBytes(arquivo)));
+		}
+
+		/**
+		 * Lê o arquivo da LCR e mantém somente os campos de identificação
+		 * (emissor, datas e números), descartando a codificação lida. A LCR
+		 * deve ser lida novamente por {@link #ler(Path)} para ser aplicada.
+		 */
+		static Lcr lerCabecalho(Path arquivo) throws CRLException, IOException {
+			Lcr lcr = ler(arquivo);
+			lcr.tbsCodificado = null;
+			lcr.algoritmo = null;
+			lcr.assinatura = null;
+			lcr.revogados = null;
+			return lcr;
+		}
+
+		static Lcr ler(ByteBuffer der) throws CRLException {
+			try {
+				ByteBuffer certificateList = Der.conteudo(der, TAG_SEQUENCE);
+
+				Lcr lcr = new Lcr();
+				int inicioTbs = certificateList.position();
+				ByteBuffer tbs = Der.conteudo(certificateList, TAG_SEQUENCE);
+				lcr.tbsCodificado = (ByteBuffer) certificateList.duplicate().position(inicioTbs).limit(certificateList.position());
+				lcr.algoritmo = AlgorithmIdentifier.getInstance(ASN1Primitive.fromByteArray(Der.tlv(certificateList)));
+				lcr.assinatura = DERBitString.getInstance(ASN1Primitive.fromByteArray(Der.tlv(certificateList))).getOctets();
+
+				if (Der.tag(tbs) == BERTags.INTEGER) {
+					Der.tlv(tbs);
+				}
+				Der.tlv(tbs);
+				lcr.emissor = new X500Principal(Der.tlv(tbs));
+				lcr.emissao = Time.getInstance(ASN1Primitive.fromByteArray(Der.tlv(tbs))).getDate().getTime();
+				if (tbs.hasRemaining() && (Der.tag(tbs) == BERTags.UTC_TIME || Der.tag(tbs) == BERTags.GENERALIZED_TIME)) {
+					lcr.proximaAtualizacao = Time.getInstance(ASN1Primitive.fromByteArray(Der.tlv(tbs))).getDate().getTime();
+				}
+				lcr.revogados = (tbs.hasRemaining() && Der.tag(tbs) == TAG_SEQUENCE ? Der.conteudo(tbs, TAG_SEQUENCE) : ByteBuffer.allocate(0));
+				if (tbs.hasRemaining() && Der.tag(tbs) == TAG_EXTENSOES) {
+					Extensions extensoes = Extensions.getInstance(ASN1Primitive.fromByteArray(Der.conteudoBytes(tbs, TAG_EXTENSOES)));
+					verificarExtensoes(extensoes);
+					Extension numero = extensoes.getExtension(Extension.cRLNumber);
+					if (numero != null) {
+						lcr.numero = ASN1Integer.getInstance(numero.getParsedValue()).getPositiveValue();
+					}
+					Extension base = extensoes.getExtension(Extension.deltaCRLIndicator);
+					if (base != null) {
+						lcr.numeroBase = ASN1Integer.getInstance(base.getParsedValue()).getPositiveValue();
+					}
+					AuthorityKeyIdentifier aki = AuthorityKeyIdentifier.fromExtensions(extensoes);
+					if (aki != null && aki.getKeyIdentifier() != null) {
+						lcr.chaveAutoridade = ByteBuffer.wrap(aki.getKeyIdentifier());
+					}
+				}
+				return lcr;
+
+			} catch (IOException | RuntimeException e) {
+				throw new CRLException("LCR inválida: " + e.getMessage(), e);
+			}
+		}
+
+		/**
+		 * Rejeita extensões críticas não reconhecidas e LCRs que não cobrem
+		 * todos os certificados do emissor. O índice é mantido por emissor,
+		 * então uma LCR com <i>issuingDistributionPoint</i> que restrinja o
+		 * escopo, inclusive somente pelo nome do ponto de distribuição, é
+		 * rejeitada: ela não cobre os certificados dos demais pontos.
+		 */
+		private static void verificarExtensoes(Extensions extensoes) throws CRLException {
+			for (ASN1ObjectIdentifier oid : extensoes.getExtensionOIDs()) {
+				Extension extensao = extensoes.getExtension(oid);
+				if (Extension.issuingDistributionPoint.equals(oid)) {
+					IssuingDistributionPoint idp = IssuingDistributionPoint.getInstance(extensao.getParsedValue());
+					if (idp.getDistributionPoint() != null || idp.isIndirectCRL() || idp.onlyContainsUserCerts()
+							|| idp.onlyContainsCACerts() || idp.onlyContainsAttributeCerts() || idp.getOnlySomeReasons() != null) {
+						throw new CRLException("LCR indireta ou particionada (issuingDistributionPoint) não suportada");
+					}
+				} else if (extensao.isCritical() && !EXTENSOES_LCR.contains(oid)) {
+					throw new CRLException("Extensão crítica não suportada na LCR: " + oid.getId());
+				}
+			}
+		}
+
+		/**
+		 * Verifica se a LCR foi emitida pela AC, com a assinatura calculada
+		 * sobre o <i>tbsCertList</i> lido.
+		 */
+		void verificar(X509Certificate certificadoEmissor) throws CRLException {
+			if (!this.emissor.equals(certificadoEmissor.getSubjectX500Principal())) {
+				throw new CRLException("LCR emitida por " + this.emissor + " e não por " + certificadoEmissor.getSubjectX500Principal());
+			}
+			boolean valida;
+			try {
+				Signature signature = Signature.getInstance(this.algoritmo.getAlgorithm().getId());
+				signature.initVerify(certificadoEmissor.getPublicKey());
+				signature.update(this.tbsCodificado.duplicate());
+				valida = signature.verify(this.assinatura);
+			} catch (GeneralSecurityException e) {
+				throw new CRLException("Assinatura da LCR de " + this.emissor + " não verificada: " + e.getMessage(), e);
+			}
+			if (!valida) {
+				throw new CRLException("Assinatura da LCR de " + this.emissor + " não confere");
+			}
+		}
+
+		/**
+		 * Extrai as entradas de <i>revokedCertificates</i> em duas passagens:
+		 * a primeira determina a largura dos números de série, a segunda
+		 * preenche os registros.
+		 */
+		Registros extrairRegistros() throws CRLException {
+			try {
+				int quantidade = 0;
+				int largura = 1;
+				ByteBuffer entradas = this.revogados.duplicate();
+				while (entradas.hasRemaining()) {
+					ByteBuffer entrada = Der.conteudo(entradas, TAG_SEQUENCE);
+					ByteBuffer serie = Der.conteudo(entrada, BERTags.INTEGER);
+					largura = Math.max(largura, semZeros(serie).remaining());
+					quantidade++;
+				}
+
+				Registros registros = new Registros(largura, quantidade);
+				byte[] bytesSerie = new byte[largura + 1];
+				entradas = this.revogados.duplicate();
+				while (entradas.hasRemaining()) {
+					ByteBuffer entrada = Der.conteudo(entradas, TAG_SEQUENCE);
+					ByteBuffer serie = semZeros(Der.conteudo(entrada, BERTags.INTEGER));
+					int tamanho = serie.remaining();
+					serie.get(bytesSerie, 0, tamanho);
+
+					long revogacao = Der.data(entrada);
+					byte motivo = (entrada.hasRemaining() ? Der.motivo(Der.conteudo(entrada, TAG_SEQUENCE)) : SEM_MOTIVO);
+					registros.adicionar(bytesSerie, 0, tamanho, revogacao, motivo);
+				}
+				return registros;
+
+			} catch (IOException | RuntimeException e) {
+				throw new CRLException("Entrada inválida na LCR de " + this.emissor + ": " + e.getMessage(), e);
+			}
+		}
+
+		private static ByteBuffer semZeros(ByteBuffer inteiro) {
+			while (inteiro.remaining() > 1 && inteiro.get(inteiro.position()) == 0) {
+				inteiro.position(inteiro.position() + 1);
+			}
+			return inteiro;
+		}
+	}
+
+	/**
+	 * Leitura de TLVs DER (tag de um byte) sobre um {@link ByteBuffer}.
+	 */
+	static class Der {
+
+		/**
+		 * Conteúdo do OID 2.5.29.21 (<i>reasonCode</i>).
+		 */
+		private static final ByteBuffer OID_MOTIVO = ByteBuffer.wrap(new byte[] { 0x55, 0x1D, 0x15 });
+
+		/**
+		 * Conteúdo do OID 2.5.29.24 (<i>invalidityDate</i>).
+		 */
+		private static final ByteBuffer OID_DATA_INVALIDADE = ByteBuffer.wrap(new byte[] { 0x55, 0x1D, 0x18 });
+
+		/**
+		 * Conteúdo do OID 2.5.29.23 (<i>holdInstructionCode</i>).
+		 */
+		private static final ByteBuffer OID_INSTRUCAO_SUSPENSAO = ByteBuffer.wrap(new byte[] { 0x55, 0x1D, 0x17 });
+
+		/**
+		 * Conteúdo do OID 2.5.29.29 (<i>certificateIssuer</i>).
+		 */
+		private static final ByteBuffer OID_EMISSOR_CERTIFICADO = ByteBuffer.wrap(new byte[] { 0x55, 0x1D, 0x1D });
+
+		static int tag(ByteBuffer b) {
+			return b.get(b.position()) & 0xFF;
+		}
+
+		/**
+		 * Conteúdo do próximo TLV, que deve possuir a tag informada; o buffer
+		 * avança para o TLV seguinte.
+		 */
+		static ByteBuffer conteudo(ByteBuffer b, int tag) throws IOException {
+			if ((b.get() & 0xFF) != tag) {
+				throw new IOException("Tag DER inesperada na posição " + (b.position() - 1));
+			}
+			int comprimento = comprimento(b);
+			if (comprimento > b.remaining()) {
+				throw new IOException("Comprimento DER excede o conteúdo");
+			}
+			ByteBuffer conteudo = b.slice();
+			conteudo.limit(comprimento);
+			b.position(b.position() + comprimento);
+			return conteudo;
+		}
+
+		static byte[] conteudoBytes(ByteBuffer b, int tag) throws IOException {
+			ByteBuffer conteudo = conteudo(b, tag);
+			byte[] bytes = new byte[conteudo.remaining()];
+			conteudo.get(bytes);
+			return bytes;
+		}
+
+		/**
+		 * Próximo TLV completo (tag, comprimento e conteúdo).
+		 */
+		static byte[] tlv(ByteBuffer b) throws IOException {
+			int inicio = b.position();
+			b.get();
+			int comprimento = comprimento(b);
+			if (comprimento > b.remaining()) {
+				throw new IOException("Comprimento DER excede o conteúdo");
+			}
+			byte[] bytes = new byte[b.position() - inicio + comprimento];
+			b.position(inicio);
+			b.get(bytes);
+			return bytes;
+		}
+
+		/**
+		 * Data (<i>UTCTime</i> ou <i>GeneralizedTime</i>) do próximo TLV em
+		 * milissegundos. As formas DER usuais são decodificadas diretamente;
+		 * as demais pelo {@link Time} do BouncyCastle.
+		 */
+		static long data(ByteBuffer b) throws IOException {
+			int tag = tag(b);
+			int comprimento = b.get(b.position() + 1);
+			int inicio = b.position() + 2;
+			boolean utc = (tag == BERTags.UTC_TIME && comprimento == 13);
+			if ((utc || (tag == BERTags.GENERALIZED_TIME && comprimento == 15)) && b.get(inicio + comprimento - 1) == 'Z') {
+				int ano;
+				if (utc) {
+					ano = digitos(b, inicio, 2);
+					ano += (ano < 50 ? 2000 : 1900);
+				} else {
+					ano = digitos(b, inicio, 4);
+				}
+				int i = inicio + (utc ? 2 : 4);
+				b.position(inicio + comprimento);
+				try {
+					return LocalDateTime.of(ano, digitos(b, i, 2), digitos(b, i + 2, 2), digitos(b, i + 4, 2), digitos(b, i + 6, 2), digitos(b, i + 8, 2))
+							.toEpochSecond(ZoneOffset.UTC) * 1000;
+				} catch (DateTimeException e) {
+					throw new IOException("Data inválida", e);
+				}
+			}
+			return Time.getInstance(ASN1Primitive.fromByteArray(tlv(b))).getDate().getTime();
+		}
+
+		/**
+		 * Motivo da extensão <i>reasonCode</i> entre as extensões de uma
+		 * entrada da LCR, ou {@link IndiceLcr#SEM_MOTIVO}. Entradas de LCR
+		 * indireta (<i>certificateIssuer</i>) ou com extensões críticas não
+		 * reconhecidas são rejeitadas.
+		 */
+		static byte motivo(ByteBuffer extensoes) throws IOException {
+			byte motivo = SEM_MOTIVO;
+			while (extensoes.hasRemaining()) {
+				ByteBuffer extensao = conteudo(extensoes, TAG_SEQUENCE);
+				ByteBuffer oid = conteudo(extensao, BERTags.OBJECT_IDENTIFIER);
+				boolean critica = false;
+				if (tag(extensao) == BERTags.BOOLEAN) {
+					ByteBuffer valor = conteudo(extensao, BERTags.BOOLEAN);
+					critica = (valor.remaining() == 1 && valor.get() != 0);
+				}
+
+				if (oid.equals(OID_EMISSOR_CERTIFICADO)) {
+					throw new IOException("entrada de LCR indireta (certificateIssuer) não suportada");
+				}
+				if (oid.equals(OID_MOTIVO)) {
+					ByteBuffer valor = conteudo(conteudo(extensao, BERTags.OCTET_STRING), BERTags.ENUMERATED);
+					motivo = (valor.remaining() == 1 ? valor.get() : SEM_MOTIVO);
+				} else if (critica && !oid.equals(OID_DATA_INVALIDADE) && !oid.equals(OID_INSTRUCAO_SUSPENSAO)) {
+					throw new IOException("extensão crítica não suportada na entrada");
+				}
+			}
+			return motivo;
+		}
+
+		private static int digitos(ByteBuffer b, int inicio, int quantidade) throws IOException {
+			int valor = 0;
+			for (int i = inicio; i < inicio + quantidade; i++) {
+				int digito = b.get(i) - '0';
+				if (digito < 0 || digito > 9) {
+					throw new IOException("Data inválida");
+				}
+				valor = valor * 10 + digito;
+			}
+			return valor;
+		}
+
+		private static int comprimento(ByteBuffer b) throws IOException {
+			int primeiro = b.get() & 0xFF;
+			if (primeiro < 0x80) {
+				return primeiro;
+			}
+			int bytes = primeiro & 0x7F;
+			if (bytes == 0 || bytes > 4) {
+				throw new IOException("Comprimento DER não suportado");
+			}
+			int comprimento = 0;
+			for (int i = 0; i < bytes; i++) {
+				comprimento = (comprimento << 8) | (b.get() & 0xFF);
+			}
+			if (comprimento < 0) {
+				throw new IOException("Comprimento DER inválido");
+			}
+			return comprimento;
+		}
+	}
+}
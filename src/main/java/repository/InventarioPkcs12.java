@@ -0,0 +1,221 @@
+package repository;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.Provider;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1String;
+import org.bouncycastle.asn1.pkcs.Attribute;
+import org.bouncycastle.asn1.pkcs.ContentInfo;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.pkcs.PKCS12PfxPdu;
+import org.bouncycastle.pkcs.PKCS12SafeBag;
+import org.bouncycastle.pkcs.PKCS12SafeBagFactory;
+import org.bouncycastle.pkcs.jcajce.JcePKCS12MacCalculatorBuilderProvider;
+import org.bouncycastle.pkcs.jcajce.JcePKCSPBEInputDecryptorProviderBuilder;
+
+import model.dto.CertificadoDTO;
+import model.dto.ResultadoInventario;
+
+/**
+ * Inventário dos certificados de um diretório de arquivos PKCS#12 (.pfx e
+ * .p12), para acompanhamento das datas de expiração.
+ * <p>
+ * Os arquivos são lidos em paralelo. O MAC de cada arquivo é verificado antes
+ * de qualquer certificado ser reportado, de modo que arquivos corrompidos ou
+ * adulterados aparecem como erro; em seguida são decifrados somente os
+ * <i>certBags</i>. A chave privada, desnecessária para o inventário, não é
+ * processada, evitando a derivação de chave (PBE) correspondente de um
+ * {@link java.security.KeyStore#load}.
+ *
+ */
+public class InventarioPkcs12 {
+
+	private static final Provider PROVIDER = new BouncyCastleProvider();
+
+	/**
+	 * Expiração mais próxima primeiro; arquivos com erro ao final.
+	 */
+	private static final Comparator<ResultadoInventario> ORDEM_EXPIRACAO = Comparator
+			.comparing((ResultadoInventario r) -> r.getCertificado() == null ? Long.MAX_VALUE : r.getCertificado().getValidade().getTime())
+			.thenComparing(ResultadoInventario::getArquivo);
+
+	private final Function<Path, char[]> senhas;
+	private final int paralelismo;
+
+	/**
+	 * @param senhas
+	 *            {@link Function} que retorna a senha de cada arquivo; o array
+	 *            é zerado após a leitura.
+	 */
+	public InventarioPkcs12(Function<Path, char[]> senhas) {
+		this(senhas, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param senhas
+	 *            {@link Function} que retorna a senha de cada arquivo; o array
+	 *            é zerado após a leitura.
+	 * @param paralelismo
+	 *            quantidade de arquivos lidos simultaneamente.
+	 */
+	public InventarioPkcs12(Function<Path, char[]> senhas, int paralelismo) {
+		this.senhas = senhas;
+		this.paralelismo = paralelismo;
+	}
+
+	/**
+	 * Percorre o diretório e subdiretórios lendo todos os arquivos PKCS#12.
+	 *
+	 * @param diretorio
+	 *            {@link Path} diretório raiz.
+	 * @return {@link List} resultados ordenados pela data de expiração (os
+	 *         que expiram primeiro no início), seguidos dos arquivos que não
+	 *         puderam ser lidos.
+	 * @throws IOException
+	 *             Caso o diretório não possa ser percorrido.
+	 */
+	public List<ResultadoInventario> varrer(Path diretorio) throws IOException {
+		List<Path> arquivos;
+		try (Stream<Path> caminhos = Files.walk(diretorio)) {
+			arquivos = caminhos.filter(InventarioPkcs12::isPkcs12).collect(Collectors.toList());
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(this.paralelismo);
+		try {
+			return pool.submit(() -> arquivos.parallelStream()
+					.map(this::ler)
+					.sorted(ORDEM_EXPIRACAO)
+					.collect(Collectors.toList())).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Grava o relatório (CSV separado por ponto e vírgula) dos resultados,
+	 * na ordem recebida.
+	 *
+	 * @param resultados
+	 *            {@link List} resultados de {@link #varrer(Path)}.
+	 * @param saida
+	 *            {@link Writer} destino do relatório.
+	 */
+	public static void gerarRelatorio(List<ResultadoInventario> resultados, Writer saida) throws IOException {
+		long agora = System.currentTimeMillis();
+
+		saida.write("validade;dias_restantes;nome;cpf;email;alias;arquivo;erro\n");
+		for (ResultadoInventario resultado : resultados) {
+			CertificadoDTO certificado = resultado.getCertificado();
+			if (certificado != null) {
+				long dias = TimeUnit.MILLISECONDS.toDays(certificado.getValidade().getTime() - agora);
+				saida.write(String.format("%tF;%d;%s;%s;%s;%s;%s;\n", certificado.getValidade(), dias,
+						texto(certificado.getNomeSignatario()), texto(certificado.getCpf()), texto(certificado.getEmail()),
+						texto(certificado.getAlias()), resultado.getArquivo()));
+			} else {
+				saida.write(";;;;;;" + resultado.getArquivo() + ";" + texto(resultado.getErro()) + "\n");
+			}
+		}
+		saida.flush();
+	}
+
+	private ResultadoInventario ler(Path arquivo) {
+		ResultadoInventario resultado = new ResultadoInventario().setArquivo(arquivo.toString());
+
+		char[] senha = this.senhas.apply(arquivo);
+		try {
+			PKCS12PfxPdu pfx = new PKCS12PfxPdu(Files.readAllBytes(arquivo));
+			if (!pfx.hasMac()) {
+				return resultado.setErro("Arquivo sem MAC de integridade");
+			}
+			if (!pfx.isMacValid(new JcePKCS12MacCalculatorBuilderProvider().setProvider(PROVIDER), senha)) {
+				return resultado.setErro("MAC inválido: senha incorreta ou arquivo corrompido");
+			}
+
+			X509CertificateHolder escolhido = null;
+			String alias = null;
+			for (ContentInfo conteudo : pfx.getContentInfos()) {
+				PKCS12SafeBagFactory fabrica = PKCSObjectIdentifiers.encryptedData.equals(conteudo.getContentType())
+						? new PKCS12SafeBagFactory(conteudo, new JcePKCSPBEInputDecryptorProviderBuilder().setProvider(PROVIDER).build(senha))
+						: new PKCS12SafeBagFactory(conteudo);
+
+				for (PKCS12SafeBag bag : fabrica.getSafeBags()) {
+					if (!PKCSObjectIdentifiers.certBag.equals(bag.getType())) {
+						continue;
+					}
+
+					// Certificado final: o que não é de AC (ou o primeiro)
+					X509CertificateHolder holder = (X509CertificateHolder) bag.getBagValue();
+					if (escolhido == null || (isAc(escolhido) && !isAc(holder))) {
+						escolhido = holder;
+						alias = getNomeAmigavel(bag);
+					}
+				}
+			}
+
+			if (escolhido == null) {
+				return resultado.setErro("Nenhum certificado encontrado");
+			}
+
+			X509Certificate certificado = new JcaX509CertificateConverter().getCertificate(escolhido);
+			String nome = arquivo.getFileName().toString();
+			return resultado.setCertificado(SmartCardRepository.build(certificado, alias == null ? nome : alias));
+
+		} catch (Exception e) {
+			return resultado.setErro(e.getClass().getSimpleName() + ": " + e.getMessage());
+		} finally {
+			if (senha != null) {
+				Arrays.fill(senha, '\0');
+			}
+		}
+	}
+
+	private static boolean isAc(X509CertificateHolder certificado) {
+		Extension basicConstraints = certificado.getExtension(Extension.basicConstraints);
+		return basicConstraints != null && BasicConstraints.getInstance(basicConstraints.getParsedValue()).isCA();
+	}
+
+	private static String getNomeAmigavel(PKCS12SafeBag bag) {
+		for (Attribute atributo : bag.getAttributes()) {
+			if (PKCSObjectIdentifiers.pkcs_9_at_friendlyName.equals(atributo.getAttrType())) {
+				ASN1Encodable valor = atributo.getAttrValues().getObjectAt(0);
+				if (valor instanceof ASN1String) {
+					return ((ASN1String) valor).getString();
+				}
+			}
+		}
+		return null;
+	}
+
+	private static boolean isPkcs12(Path caminho) {
+		String nome = caminho.getFileName().toString().toLowerCase();
+		return (nome.endsWith(".pfx") || nome.endsWith(".p12")) && Files.isRegularFile(caminho);
+	}
+
+	private static String texto(String valor) {
+		return (valor == null ? "" : valor.replace(';', ','));
+	}
+}
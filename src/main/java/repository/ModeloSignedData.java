@@ -0,0 +1,183 @@
+package repository;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.bouncycastle.asn1.ASN1Encoding;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.ASN1Set;
+import org.bouncycastle.asn1.BERTags;
+import org.bouncycastle.asn1.DERSet;
+import org.bouncycastle.asn1.DERTaggedObject;
+import org.bouncycastle.asn1.cms.CMSObjectIdentifiers;
+import org.bouncycastle.asn1.cms.ContentInfo;
+import org.bouncycastle.asn1.cms.IssuerAndSerialNumber;
+import org.bouncycastle.asn1.cms.SignerIdentifier;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.operator.DefaultDigestAlgorithmIdentifierFinder;
+import org.bouncycastle.operator.DefaultSignatureAlgorithmIdentifierFinder;
+
+/**
+ * Modelo pré-codificado da assinatura CMS <i>detached</i> de um signatário
+ * para um algoritmo de assinatura.
+ * <p>
+ * As partes fixas da estrutura (<i>digestAlgorithms</i>,
+ * <i>encapContentInfo</i>, <i>certificates</i>, <i>SignerIdentifier</i> e os
+ * identificadores de algoritmo) são codificadas em DER uma única vez. Cada
+ * nova assinatura apenas concatena os atributos assinados e o valor da
+ * assinatura, produzindo a codificação DER da mesma estrutura montada por meio
+ * de {@link org.bouncycastle.asn1.cms.SignedData} e
+ * {@link org.bouncycastle.asn1.cms.SignerInfo}.
+ *
+ */
+class ModeloSignedData {
+
+	private static final int TAG_SEQUENCE = BERTags.SEQUENCE | BERTags.CONSTRUCTED;
+	private static final int TAG_SET = BERTags.SET | BERTags.CONSTRUCTED;
+	private static final int TAG_CONTEXTO_0 = BERTags.TAGGED | BERTags.CONSTRUCTED;
+
+	/**
+	 * <code>contentType</code> da <i>ContentInfo</i> externa (signedData).
+	 */
+	private final byte[] tipoConteudo;
+
+	/**
+	 * <i>version</i>, <i>digestAlgorithms</i>, <i>encapContentInfo</i> e
+	 * <i>certificates</i> da <i>SignedData</i>.
+	 */
+	private final byte[] inicioSignedData;
+
+	/**
+	 * <i>version</i>, <i>sid</i> e <i>digestAlgorithm</i> da
+	 * <i>SignerInfo</i>.
+	 */
+	private final byte[] inicioSignerInfo;
+
+	/**
+	 * <i>signatureAlgorithm</i> da <i>SignerInfo</i>.
+	 */
+	private final byte[] algoritmoAssinatura;
+
+	ModeloSignedData(X509CertificateHolder certificado, ASN1Set certificates, String algoritmoAssinatura) throws IOException {
+
+		// Identificadores dos algoritmos de assinatura e de hash
+		AlgorithmIdentifier digEncryptionAlgorithm = new DefaultSignatureAlgorithmIdentifierFinder().find(algoritmoAssinatura);
+		AlgorithmIdentifier digAlgorithm = new DefaultDigestAlgorithmIdentifierFinder().find(digEncryptionAlgorithm);
+
+		// Identificação do signatário
+		SignerIdentifier sid = new SignerIdentifier(new IssuerAndSerialNumber(certificado.toASN1Structure()));
+
+		// Versão 1: certificados X.509, conteúdo data e sid IssuerAndSerialNumber
+		ASN1Integer versao = new ASN1Integer(1);
+
+		ByteArrayOutputStream signerInfo = new ByteArrayOutputStream();
+		signerInfo.write(versao.getEncoded(ASN1Encoding.DER));
+		signerInfo.write(sid.getEncoded(ASN1Encoding.DER));
+		signerInfo.write(digAlgorithm.getEncoded(ASN1Encoding.DER));
+		this.inicioSignerInfo = signerInfo.toByteArray();
+		this.algoritmoAssinatura = digEncryptionAlgorithm.getEncoded(ASN1Encoding.DER);
+
+		// Conteúdo é nulo (assinatura detached, não anexada)
+		ContentInfo encInfo = new ContentInfo(CMSObjectIdentifiers.data, null);
+
+		ByteArrayOutputStream signedData = new ByteArrayOutputStream();
+		signedData.write(versao.getEncoded(ASN1Encoding.DER));
+		signedData.write(new DERSet(digAlgorithm).getEncoded(ASN1Encoding.DER));
+		signedData.write(encInfo.getEncoded(ASN1Encoding.DER));
+		signedData.write(new DERTaggedObject(false, 0, certificates).getEncoded(ASN1Encoding.DER));
+		this.inicioSignedData = signedData.toByteArray();
+
+		this.tipoConteudo = CMSObjectIdentifiers.signedData.getEncoded(ASN1Encoding.DER);
+	}
+
+	/**
+	 * Gera a assinatura CMS codificada em DER.
+	 *
+	 * @param atributosGerados
+	 *            atributos assinados codificados em DER (SET OF Attribute).
+	 * @param atributosAssinados
+	 *            valor da assinatura sobre os atributos.
+	 * @return <i>ContentInfo</i> do tipo <i>signedData</i> codificada em DER.
+	 */
+	byte[] gerar(byte[] atributosGerados, byte[] atributosAssinados) {
+
+		// signedAttrs [0] IMPLICIT: mesmo conteúdo do SET com outra tag
+		int tamanhoAtributos = atributosGerados.length;
+
+		int conteudoSignerInfo = this.inicioSignerInfo.length + tamanhoAtributos + this.algoritmoAssinatura.length
+				+ tamanhoTlv(atributosAssinados.length);
+		int signerInfo = tamanhoTlv(conteudoSignerInfo);
+		int signerInfos = tamanhoTlv(signerInfo);
+		int conteudoSignedData = this.inicioSignedData.length + signerInfos;
+		int signedData = tamanhoTlv(conteudoSignedData);
+		int conteudoExplicito = tamanhoTlv(signedData);
+		int contentInfo = this.tipoConteudo.length + conteudoExplicito;
+
+		byte[] saida = new byte[tamanhoTlv(contentInfo)];
+		int p = 0;
+
+		// ContentInfo
+		p = escreverCabecalho(saida, p, TAG_SEQUENCE, contentInfo);
+		p = copiar(this.tipoConteudo, saida, p);
+		p = escreverCabecalho(saida, p, TAG_CONTEXTO_0, signedData);
+
+		// SignedData
+		p = escreverCabecalho(saida, p, TAG_SEQUENCE, conteudoSignedData);
+		p = copiar(this.inicioSignedData, saida, p);
+
+		// signerInfos (SET com uma única SignerInfo)
+		p = escreverCabecalho(saida, p, TAG_SET, signerInfo);
+		p = escreverCabecalho(saida, p, TAG_SEQUENCE, conteudoSignerInfo);
+		p = copiar(this.inicioSignerInfo, saida, p);
+
+		int inicioAtributos = p;
+		p = copiar(atributosGerados, saida, p);
+		saida[inicioAtributos] = (byte) TAG_CONTEXTO_0;
+
+		p = copiar(this.algoritmoAssinatura, saida, p);
+		p = escreverCabecalho(saida, p, BERTags.OCTET_STRING, atributosAssinados.length);
+		copiar(atributosAssinados, saida, p);
+
+		return saida;
+	}
+
+	private static int copiar(byte[] origem, byte[] destino, int posicao) {
+		System.arraycopy(origem, 0, destino, posicao, origem.length);
+		return posicao + origem.length;
+	}
+
+	/**
+	 * Tamanho total de um TLV DER (tag de um byte) com o conteúdo informado.
+	 */
+	private static int tamanhoTlv(int tamanhoConteudo) {
+		return 1 + tamanhoComprimento(tamanhoConteudo) + tamanhoConteudo;
+	}
+
+	private static int tamanhoComprimento(int comprimento) {
+		if (comprimento < 0x80) {
+			return 1;
+		}
+
+		int bytes = 1;
+		for (int c = comprimento; c > 0; c >>>= 8) {
+			bytes++;
+		}
+		return bytes;
+	}
+
+	private static int escreverCabecalho(byte[] saida, int posicao, int tag, int comprimento) {
+		saida[posicao++] = (byte) tag;
+		if (comprimento < 0x80) {
+			saida[posicao++] = (byte) comprimento;
+			return posicao;
+		}
+
+		int bytes = tamanhoComprimento(comprimento) - 1;
+		saida[posicao++] = (byte) (0x80 | bytes);
+		for (int i = bytes - 1; i >= 0; i--) {
+			saida[posicao++] = (byte) (comprimento >>> (8 * i));
+		}
+		return posicao;
+	}
+}
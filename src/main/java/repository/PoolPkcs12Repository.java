@@ -0,0 +1,337 @@
+package repository;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bouncycastle.asn1.cms.Attribute;
+
+import model.Documento;
+import model.exception.ErroAoAssinarException;
+import util.UtilsX509;
+
+/**
+ * Pool de certificados A1 (PKCS#12) de vários inquilinos para assinatura no
+ * servidor.
+ * <p>
+ * O carregamento de um PKCS#12 inclui a derivação de chave (PBE) da senha,
+ * que custa muito mais do que a assinatura. O pool mantém em memória a chave
+ * privada já decifrada, o certificado e a cadeia ordenada de cada inquilino,
+ * de modo que assinaturas seguintes não recarregam o arquivo.
+ * <p>
+ * O pool é limitado pela quantidade de inquilinos e pelo tamanho estimado do
+ * material em memória; ao exceder qualquer dos limites o inquilino utilizado
+ * há mais tempo é removido (LRU) e a sua chave descartada (ver
+ * {@link Signatario#descartar()}). Carregamentos simultâneos do mesmo
+ * inquilino são realizados uma única vez.
+ *
+ */
+public class PoolPkcs12Repository implements AutoCloseable {
+
+	/**
+	 * Origem dos arquivos PKCS#12 dos inquilinos.
+	 */
+	public interface FontePkcs12 {
+
+		/**
+		 * Abre o arquivo PKCS#12 do inquilino.
+		 *
+		 * @param inquilino
+		 *            identificador do inquilino.
+		 * @return {@link InputStream} do arquivo; é fechado pelo pool.
+		 * @throws IOException
+		 *             Caso o arquivo não exista ou não possa ser lido.
+		 */
+		InputStream abrir(String inquilino) throws IOException;
+
+		/**
+		 * Retorna a senha do PKCS#12 do inquilino; o array é zerado pelo pool
+		 * após o carregamento.
+		 */
+		char[] getSenha(String inquilino);
+	}
+
+	public static final int QUANTIDADE_MAXIMA_PADRAO = 1000;
+	public static final long BYTES_MAXIMO_PADRAO = 64L * 1024 * 1024;
+
+	private static final String REPOSITORIO_PKCS12 = "PKCS12";
+
+	private final FontePkcs12 fonte;
+	private final int quantidadeMaxima;
+	private final long bytesMaximo;
+
+	/**
+	 * Inquilinos carregados em ordem de acesso (LRU).
+	 */
+	private final Map<String, Entrada> entradas = new LinkedHashMap<>(16, 0.75f, true);
+	private long bytes;
+
+	/**
+	 * Carregamentos em andamento, indexados pelo inquilino.
+	 */
+	private final Map<String, CompletableFuture<Signatario>> carregamentos = new ConcurrentHashMap<>();
+
+	public PoolPkcs12Repository(FontePkcs12 fonte) {
+		this(fonte, QUANTIDADE_MAXIMA_PADRAO, BYTES_MAXIMO_PADRAO);
+	}
+
+	/**
+	 * @param fonte
+	 *            {@link FontePkcs12} origem dos arquivos dos inquilinos.
+	 * @param quantidadeMaxima
+	 *            quantidade máxima de inquilinos em memória.
+	 * @param bytesMaximo
+	 *            tamanho máximo estimado (chaves e certificados codificados)
+	 *            do material em memória.
+	 */
+	public PoolPkcs12Repository(FontePkcs12 fonte, int quantidadeMaxima, long bytesMaximo) {
+		this.fonte = fonte;
+		this.quantidadeMaxima = quantidadeMaxima;
+		this.bytesMaximo = bytesMaximo;
+	}
+
+	/**
+	 * Assina o documento com o certificado do inquilino.
+	 *
+	 * @see #assinarHash(String, String, byte[])
+	 */
+	public byte [] assinar(String inquilino, Documento documento) throws ErroAoAssinarException {
+		byte[] hash;
+		try {
+			hash = documento.getHash(SmartCardRepository.ALGORITMO_HASH);
+		} catch (NoSuchAlgorithmException | RuntimeException e) {
+			throw new ErroAoAssinarException(e);
+		}
+		return this.assinarHash(inquilino, SmartCardRepository.ALGORITMO_HASH, hash);
+	}
+
+	/**
+	 * Assina o hash com o certificado do inquilino, carregando o seu PKCS#12
+	 * somente se ele não estiver no pool.
+	 *
+	 * @param inquilino
+	 *            identificador do inquilino.
+	 * @param algoritmoHash
+	 *            algoritmo com o qual o hash foi calculado (ex: SHA-256).
+	 * @param hash
+	 *            hash do documento.
+	 * @return assinatura CMS <i>detached</i> codificada em DER.
+	 * @throws ErroAoAssinarException
+	 *             Caso o PKCS#12 não possa ser carregado ou ocorram erros ao
+	 *             assinar.
+	 */
+	public byte [] assinarHash(String inquilino, String algoritmoHash, byte[] hash) throws ErroAoAssinarException {
+		Signatario signatario = this.obter(inquilino);
+		try {
+			return signatario.assinarHash(algoritmoHash, hash, Collections.<Attribute>emptyList());
+		} catch (GeneralSecurityException e) {
+			if (!signatario.isDescartado()) {
+				throw new ErroAoAssinarException(e);
+			}
+		} catch (IOException | RuntimeException e) {
+			throw new ErroAoAssinarException(e);
+		}
+
+		// Removido do pool durante a assinatura: recarrega uma única vez
+		try {
+			return this.obter(inquilino).assinarHash(algoritmoHash, hash, Collections.<Attribute>emptyList());
+		} catch (GeneralSecurityException | IOException | RuntimeException e) {
+			throw new ErroAoAssinarException(e);
+		}
+	}
+
+	/**
+	 * Retorna o certificado do inquilino, carregando-o se necessário.
+	 */
+	public X509Certificate consultar(String inquilino) throws ErroAoAssinarException {
+		return this.obter(inquilino).getCertificado();
+	}
+
+	/**
+	 * Remove o inquilino do pool (ex: certificado substituído), descartando a
+	 * sua chave.
+	 */
+	public void remover(String inquilino) {
+		Entrada entrada;
+		synchronized (this) {
+			entrada = this.entradas.remove(inquilino);
+			if (entrada != null) {
+				this.bytes -= entrada.bytes;
+			}
+		}
+		if (entrada != null) {
+			entrada.signatario.descartar();
+		}
+	}
+
+	public synchronized int getQuantidade() {
+		return this.entradas.size();
+	}
+
+	/**
+	 * Tamanho estimado do material em memória.
+	 */
+	public synchronized long getBytes() {
+		return this.bytes;
+	}
+
+	/**
+	 * Remove todos os inquilinos, descartando as suas chaves.
+	 */
+	@Override
+	public void close() {
+		List<Entrada> removidas;
+		synchronized (this) {
+			removidas = new ArrayList<>(this.entradas.values());
+			this.entradas.clear();
+			this.bytes = 0;
+		}
+		for (Entrada entrada : removidas) {
+			entrada.signatario.descartar();
+		}
+	}
+
+	private Signatario obter(String inquilino) throws ErroAoAssinarException {
+		synchronized (this) {
+			Entrada entrada = this.entradas.get(inquilino);
+			if (entrada != null) {
+				return entrada.signatario;
+			}
+		}
+
+		CompletableFuture<Signatario> carregamento = new CompletableFuture<>();
+		CompletableFuture<Signatario> existente = this.carregamentos.putIfAbsent(inquilino, carregamento);
+		if (existente == null) {
+			// Este chamador carrega; os demais aguardam o mesmo resultado
+			try {
+				Entrada entrada = this.carregar(inquilino);
+				this.adicionar(inquilino, entrada);
+				carregamento.complete(entrada.signatario);
+			} catch (ErroAoAssinarException | RuntimeException e) {
+				carregamento.completeExceptionally(e);
+			} finally {
+				this.carregamentos.remove(inquilino, carregamento);
+			}
+			existente = carregamento;
+		}
+
+		try {
+			return existente.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof ErroAoAssinarException) {
+				throw (ErroAoAssinarException) e.getCause();
+			}
+			throw new ErroAoAssinarException(e.getCause());
+		}
+	}
+
+	private Entrada carregar(String inquilino) throws ErroAoAssinarException {
+		char[] senha = this.fonte.getSenha(inquilino);
+		try (InputStream arquivo = this.fonte.abrir(inquilino)) {
+
+			KeyStore keyStore = KeyStore.getInstance(REPOSITORIO_PKCS12);
+			keyStore.load(arquivo, senha);
+
+			Enumeration<String> aliases = keyStore.aliases();
+			while (aliases.hasMoreElements()) {
+				String alias = aliases.nextElement();
+				if (!keyStore.isKeyEntry(alias)) {
+					continue;
+				}
+
+				Key chave = keyStore.getKey(alias, senha);
+				X509Certificate certificado = (X509Certificate) keyStore.getCertificate(alias);
+				if (!(chave instanceof PrivateKey) || certificado == null) {
+					continue;
+				}
+
+				Certificate[] cadeia = keyStore.getCertificateChain(alias);
+				List<Certificate> cadeiaOrdenada = (cadeia == null ? null : UtilsX509.ordenarCadeia(Arrays.asList(cadeia)));
+
+				Signatario signatario = new Signatario(inquilino, certificado, cadeiaOrdenada, (PrivateKey) chave, false);
+				return new Entrada(signatario, tamanhoEstimado((PrivateKey) chave, certificado, cadeiaOrdenada));
+			}
+			throw new ErroAoAssinarException("Nenhuma chave privada encontrada no PKCS#12 do inquilino " + inquilino);
+
+		} catch (ErroAoAssinarException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new ErroAoAssinarException(e);
+		} finally {
+			if (senha != null) {
+				Arrays.fill(senha, '\0');
+			}
+		}
+	}
+
+	private void adicionar(String inquilino, Entrada entrada) {
+		List<Entrada> removidas = new ArrayList<>();
+		synchronized (this) {
+			Entrada anterior = this.entradas.put(inquilino, entrada);
+			if (anterior != null) {
+				this.bytes -= anterior.bytes;
+				removidas.add(anterior);
+			}
+			this.bytes += entrada.bytes;
+
+			// Remove os menos utilizados, preservando o recém-carregado
+			Iterator<Entrada> iterator = this.entradas.values().iterator();
+			while ((this.entradas.size() > this.quantidadeMaxima || this.bytes > this.bytesMaximo) && this.entradas.size() > 1) {
+				Entrada antiga = iterator.next();
+				iterator.remove();
+				this.bytes -= antiga.bytes;
+				removidas.add(antiga);
+			}
+		}
+
+		// Descarte fora do lock: aguarda assinaturas em andamento da entrada
+		for (Entrada removida : removidas) {
+			removida.signatario.descartar();
+		}
+	}
+
+	private static long tamanhoEstimado(PrivateKey chave, X509Certificate certificado, List<Certificate> cadeia) throws GeneralSecurityException {
+		long tamanho = certificado.getEncoded().length;
+
+		byte[] chaveCodificada = chave.getEncoded();
+		if (chaveCodificada != null) {
+			tamanho += chaveCodificada.length;
+			Arrays.fill(chaveCodificada, (byte) 0);
+		}
+
+		if (cadeia != null) {
+			for (Certificate c : cadeia) {
+				tamanho += c.getEncoded().length;
+			}
+		}
+		return tamanho;
+	}
+
+	private static class Entrada {
+
+		private final Signatario signatario;
+		private final long bytes;
+
+		Entrada(Signatario signatario, long bytes) {
+			this.signatario = signatario;
+			this.bytes = bytes;
+		}
+	}
+}
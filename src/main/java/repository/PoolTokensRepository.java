@@ -0,0 +1,241 @@
+package repository;
+
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import model.Documento;
+import model.SmartCard;
+import model.exception.AutenticacaoNecessariaException;
+import model.exception.ErroAoAssinarException;
+import model.exception.ErroAoLerSmartCardException;
+import model.exception.NenhumCertificadoEncontradoException;
+import model.exception.PinIncorretoException;
+
+/**
+ * Repositório que distribui assinaturas entre todos os tokens de uma
+ * biblioteca PKCS#11.
+ * <p>
+ * Cada slot com token inserido recebe o seu próprio {@link SmartCardRepository}
+ * (provider, sessão e {@link ExecutorToken} próprios). Cada pedido é enviado ao
+ * token menos carregado, entre os que possuem o alias solicitado, de modo que
+ * a vazão cresce com a quantidade de tokens conectados.
+ *
+ */
+public class PoolTokensRepository implements AutoCloseable {
+
+	private final String biblioteca;
+
+	private final List<Token> tokens = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Tokens que possuem cada alias.
+	 */
+	private final Map<String, List<Token>> tokensPorAlias = new ConcurrentHashMap<>();
+
+	/**
+	 * @param biblioteca
+	 *            caminho da biblioteca PKCS#11 dos tokens.
+	 */
+	public PoolTokensRepository(String biblioteca) {
+		this.biblioteca = biblioteca;
+	}
+
+	/**
+	 * Descobre os slots com token inserido e inicializa cada um com o PIN
+	 * informado.
+	 * <p>
+	 * Slots que não puderem ser lidos são ignorados; erros de autenticação
+	 * interrompem a inicialização para não bloquear os demais tokens por
+	 * tentativas de PIN incorreto. Nesse caso os tokens já abertos são
+	 * liberados.
+	 *
+	 * @param pin
+	 *            PIN dos tokens.
+	 * @return quantidade de tokens inicializados.
+	 * @throws NenhumCertificadoEncontradoException
+	 *             Caso nenhum token possa ser inicializado.
+	 */
+	public int inicializar(String pin) throws NenhumCertificadoEncontradoException, AutenticacaoNecessariaException, ErroAoLerSmartCardException, PinIncorretoException {
+		this.close();
+
+		long[] slots;
+		try {
+			slots = SmartCard.listarSlotsPkcs11(this.biblioteca);
+		} catch (KeyStoreException e) {
+			throw new ErroAoLerSmartCardException(e);
+		}
+
+		boolean concluido = false;
+		try {
+			for (long slot : slots) {
+				SmartCardRepository repository = new SmartCardRepository();
+				repository.setExecutorToken(new ExecutorToken("slot-" + slot));
+				try {
+					repository.inicializar(SmartCard.getInstancePkcs11(this.biblioteca, slot), pin);
+
+					if (repository.isInicializado()) {
+						this.tokens.add(new Token(slot, repository));
+						repository = null;
+					}
+				} catch (KeyStoreException | ErroAoLerSmartCardException | NenhumCertificadoEncontradoException e) {
+					System.err.println("Slot " + slot + " ignorado: " + e.getMessage());
+				} finally {
+					if (repository != null) {
+						repository.close();
+					}
+				}
+			}
+
+			if (this.tokens.isEmpty()) {
+				throw new NenhumCertificadoEncontradoException("Nenhum token encontrado em " + this.biblioteca);
+			}
+			concluido = true;
+			return this.tokens.size();
+		} finally {
+			// Erros de autenticação interrompem a inicialização: libera os tokens já abertos
+			if (!concluido) {
+				this.close();
+			}
+		}
+	}
+
+	/**
+	 * Assina o documento no token menos carregado que possui o alias.
+	 *
+	 * @see SmartCardRepository#assinarAsync(String, Documento)
+	 */
+	public CompletableFuture<byte []> assinarAsync(String alias, Documento documento) {
+		byte[] hash;
+		try {
+			hash = documento.getHash(SmartCardRepository.ALGORITMO_HASH);
+		} catch (NoSuchAlgorithmException | RuntimeException e) {
+			return falha(new ErroAoAssinarException(e));
+		}
+		return this.assinarHashAsync(alias, SmartCardRepository.ALGORITMO_HASH, hash);
+	}
+
+	/**
+	 * Assina o hash no token menos carregado que possui o alias.
+	 *
+	 * @see SmartCardRepository#assinarHashAsync(String, String, byte[])
+	 */
+	public CompletableFuture<byte []> assinarHashAsync(String alias, String algoritmoHash, byte[] hash) {
+		Token token;
+		try {
+			token = this.selecionar(alias);
+		} catch (ErroAoAssinarException e) {
+			return falha(e);
+		}
+		if (token == null) {
+			return falha(new ErroAoAssinarException("Nenhum token possui o alias " + alias));
+		}
+		return token.repository.assinarHashAsync(alias, algoritmoHash, hash);
+	}
+
+	public int getQuantidadeTokens() {
+		return this.tokens.size();
+	}
+
+	/**
+	 * Encerra os executores e libera os providers de todos os tokens.
+	 */
+	@Override
+	public void close() {
+		for (Token token : this.tokens) {
+			token.repository.close();
+		}
+		this.tokens.clear();
+		this.tokensPorAlias.clear();
+	}
+
+	/**
+	 * Seleciona, entre os tokens que possuem o alias, o que tiver menos
+	 * pedidos pendentes.
+	 */
+	private Token selecionar(String alias) throws ErroAoAssinarException {
+		// A consulta aos tokens é feita fora do mapa, sem bloquear os demais aliases
+		List<Token> candidatos = this.tokensPorAlias.get(alias);
+		if (candidatos == null) {
+			candidatos = this.localizar(alias);
+		}
+
+		Token selecionado = null;
+		int menorCarga = Integer.MAX_VALUE;
+		for (Token token : candidatos) {
+			int carga = token.repository.getExecutorToken().getPendentes();
+			if (carga < menorCarga) {
+				selecionado = token;
+				menorCarga = carga;
+			}
+		}
+		return selecionado;
+	}
+
+	/**
+	 * Consulta o alias em cada token, na thread proprietária do respectivo
+	 * {@link ExecutorToken}, e memoriza o resultado quando todos os tokens
+	 * responderem. A ausência do alias não é memorizada: ele pode surgir em
+	 * um token reinserido.
+	 *
+	 * @throws ErroAoAssinarException
+	 *             Caso nenhum token possua o alias e algum token não tenha
+	 *             podido ser consultado.
+	 */
+	private List<Token> localizar(String alias) throws ErroAoAssinarException {
+		List<Token> candidatos = new ArrayList<>();
+		ErroAoAssinarException erro = null;
+		for (Token token : this.tokens) {
+			try {
+				if (token.repository.getExecutorToken().aguardar(() -> token.repository.consultar(alias)) != null) {
+					candidatos.add(token);
+				}
+			} catch (Exception e) {
+				if (erro == null) {
+					erro = new ErroAoAssinarException("Slot " + token.slot + " indisponível", e);
+				} else {
+					erro.addSuppressed(e);
+				}
+			}
+		}
+
+		if (candidatos.isEmpty()) {
+			if (erro != null) {
+				throw erro;
+			}
+			return Collections.emptyList();
+		}
+
+		candidatos = Collections.unmodifiableList(candidatos);
+		if (erro == null) {
+			List<Token> anteriores = this.tokensPorAlias.putIfAbsent(alias, candidatos);
+			if (anteriores != null) {
+				return anteriores;
+			}
+		}
+		return candidatos;
+	}
+
+	private static CompletableFuture<byte []> falha(Throwable erro) {
+		CompletableFuture<byte []> futuro = new CompletableFuture<>();
+		futuro.completeExceptionally(erro);
+		return futuro;
+	}
+
+	private static class Token {
+
+		private final long slot;
+		private final SmartCardRepository repository;
+
+		Token(long slot, SmartCardRepository repository) {
+			this.slot = slot;
+			this.repository = repository;
+		}
+	}
+}
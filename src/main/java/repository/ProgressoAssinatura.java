@@ -0,0 +1,24 @@
+package repository;
+
+import model.dto.ResultadoAssinatura;
+
+/**
+ * Recebe o andamento de uma assinatura em lote (ver
+ * {@link SmartCardRepository#assinarLote(String, java.util.List, ProgressoAssinatura)}).
+ *
+ */
+@FunctionalInterface
+public interface ProgressoAssinatura {
+
+	/**
+	 * Chamado após cada documento do lote ser processado, com sucesso ou não.
+	 *
+	 * @param processados
+	 *            quantidade de documentos já processados.
+	 * @param total
+	 *            quantidade total de documentos do lote.
+	 * @param resultado
+	 *            {@link ResultadoAssinatura} resultado do documento processado.
+	 */
+	void documentoProcessado(int processados, int total, ResultadoAssinatura resultado);
+}
@@ -0,0 +1,446 @@
+package repository;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.security.auth.x500.X500Principal;
+
+import util.ConstrutorCadeia;
+import util.UtilsX509;
+
+/**
+ * Repositório dos certificados de AC confiáveis (âncoras e intermediárias),
+ * ex: a hierarquia da ICP-Brasil.
+ * <p>
+ * Os certificados são indexados pelo DN do titular e pelo
+ * <i>SubjectKeyIdentifier</i> e atendem a construção de cadeias por meio de
+ * {@link #getConstrutorCadeia()}. Os certificados autoemitidos são as
+ * âncoras de confiança ({@link #getAncoras()}).
+ * <p>
+ * A leitura de centenas de arquivos PEM/DER do diretório é feita uma única
+ * vez: o índice e os certificados codificados são gravados em um snapshot
+ * binário ({@link #salvarSnapshot(Path)}) que execuções seguintes mapeiam em
+ * memória. Na carga do snapshot somente o índice é lido; cada certificado é
+ * decodificado na primeira vez em que é utilizado.
+ * <p>
+ * O snapshot tem a mesma relevância de segurança do diretório de origem e
+ * deve ser protegido da mesma forma.
+ *
+ */
+public class RepositorioConfianca implements ConstrutorCadeia.Fonte {
+
+	/**
+	 * Identificação do formato do snapshot ("ACRC").
+	 */
+	private static final int MAGICO = 0x41435243;
+	private static final short VERSAO = 1;
+
+	private static final String[] EXTENSOES = { ".cer", ".crt", ".der", ".pem", ".p7b" };
+
+	private final List<Entrada> entradas;
+	private final Map<X500Principal, List<Entrada>> porTitular = new HashMap<>();
+	private final Map<ByteBuffer, List<Entrada>> porChave = new HashMap<>();
+	private final ConstrutorCadeia construtorCadeia;
+
+	private final AtomicInteger decodificados = new AtomicInteger();
+	private volatile Set<TrustAnchor> ancoras;
+
+	private RepositorioConfianca(List<Entrada> entradas) {
+		this.entradas = entradas;
+		for (Entrada entrada : entradas) {
+			this.porTitular.computeIfAbsent(entrada.titular, k -> new ArrayList<>(1)).add(entrada);
+			if (entrada.chave != null) {
+				this.porChave.computeIfAbsent(entrada.chave, k -> new ArrayList<>(1)).add(entrada);
+			}
+			if (entrada.certificado != null) {
+				this.decodificados.incrementAndGet();
+			}
+		}
+		this.construtorCadeia = new ConstrutorCadeia(this);
+	}
+
+	/**
+	 * Carrega o repositório a partir do snapshot, caso seja mais recente que
+	 * o diretório; caso contrário lê o diretório e grava um novo snapshot.
+	 *
+	 * @param diretorio
+	 *            {@link Path} diretório com os certificados (PEM, DER ou
+	 *            PKCS#7).
+	 * @param snapshot
+	 *            {@link Path} arquivo do snapshot.
+	 * @return {@link RepositorioConfianca} repositório carregado.
+	 * @throws IOException
+	 *             Em caso de erros de leitura do diretório ou de gravação do
+	 *             snapshot.
+	 */
+	public static RepositorioConfianca carregar(Path diretorio, Path snapshot) throws IOException {
+		if (Files.isRegularFile(snapshot) && Files.getLastModifiedTime(snapshot).compareTo(ultimaAlteracao(diretorio)) > 0) {
+			try {
+				return carregarSnapshot(snapshot);
+			} catch (IOException e) {
+				// Snapshot inválido: reconstrói a partir do diretório
+			}
+		}
+
+		RepositorioConfianca repositorio = carregarDiretorio(diretorio);
+		repositorio.salvarSnapshot(snapshot);
+		return repositorio;
+	}
+
+	/**
+	 * Lê e indexa todos os certificados do diretório e subdiretórios.
+	 *
+	 * @param diretorio
+	 *            {@link Path} diretório com os certificados (PEM, DER ou
+	 *            PKCS#7; um ou mais certificados por arquivo).
+	 * @return {@link RepositorioConfianca} repositório com os certificados
+	 *         já decodificados.
+	 * @throws IOException
+	 *             Em caso de erros de leitura ou arquivos inválidos.
+	 */
+	public static RepositorioConfianca carregarDiretorio(Path diretorio) throws IOException {
+		List<Path> arquivos;
+		try (Stream<Path> caminhos = Files.walk(diretorio)) {
+			arquivos = caminhos.filter(RepositorioConfianca::isCertificado).sorted().collect(Collectors.toList());
+		}
+
+		CertificateFactory factory;
+		try {
+			factory = CertificateFactory.getInstance("X509", "SUN");
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+
+		List<Entrada> entradas = new ArrayList<>();
+		Set<X509Certificate> lidos = new HashSet<>();
+		for (Path arquivo : arquivos) {
+			Collection<? extends Certificate> certificados;
+			try (InputStream stream = Files.newInputStream(arquivo)) {
+				certificados = factory.generateCertificates(stream);
+			} catch (CertificateException e) {
+				throw new IOException("Erro ao ler os certificados de " + arquivo, e);
+			}
+
+			for (Certificate c : certificados) {
+				X509Certificate certificado = (X509Certificate) c;
+				if (lidos.add(certificado)) {
+					entradas.add(new Entrada(certificado));
+				}
+			}
+		}
+		return new RepositorioConfianca(entradas);
+	}
+
+	/**
+	 * Carrega o repositório de um snapshot, mapeando-o em memória.
+	 * <p>
+	 * Somente o índice (DN e chave de cada certificado) é lido; os
+	 * certificados são decodificados sob demanda.
+	 *
+	 * @param snapshot
+	 *            {@link Path} arquivo gravado por {@link #salvarSnapshot(Path)}.
+	 * @return {@link RepositorioConfianca} repositório carregado.
+	 * @throws IOException
+	 *             Caso o arquivo não possa ser lido ou não seja um snapshot
+	 *             válido.
+	 */
+	public static RepositorioConfianca carregarSnapshot(Path snapshot) throws IOException {
+		ByteBuffer mapa;
+		try (FileChannel canal = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+			// O mapeamento permanece válido após o fechamento do canal
+			mapa = canal.map(FileChannel.MapMode.READ_ONLY, 0, canal.size());
+		}
+
+		try {
+			if (mapa.getInt() != MAGICO || mapa.getShort() != VERSAO) {
+				throw new IOException("Arquivo não é um snapshot do repositório de confiança: " + snapshot);
+			}
+			int quantidade = mapa.getInt();
+			int tamanhoIndice = mapa.getInt();
+			int inicioCertificados = mapa.position() + tamanhoIndice;
+
+			List<Entrada> entradas = new ArrayList<>(Math.min(quantidade, 1024));
+			for (int i = 0; i < quantidade; i++) {
+				boolean ancora = mapa.get() == 1;
+				int deslocamento = mapa.getInt();
+				int tamanho = mapa.getInt();
+				byte[] titular = lerBytes(mapa);
+				byte[] chave = lerBytes(mapa);
+
+				ByteBuffer codificado = mapa.duplicate();
+				codificado.position(inicioCertificados + deslocamento);
+				codificado.limit(inicioCertificados + deslocamento + tamanho);
+
+				entradas.add(new Entrada(ancora, new X500Principal(titular), chave.length == 0 ? null : ByteBuffer.wrap(chave), codificado.slice()));
+			}
+			return new RepositorioConfianca(entradas);
+
+		} catch (BufferUnderflowException | IllegalArgumentException e) {
+			throw new IOException("Snapshot do repositório de confiança corrompido: " + snapshot, e);
+		}
+	}
+
+	/**
+	 * Grava o snapshot binário do repositório.
+	 * <p>
+	 * Formato: cabeçalho (mágico, versão, quantidade e tamanho do índice),
+	 * índice (tipo, posição e tamanho do certificado, DN do titular e
+	 * <i>SubjectKeyIdentifier</i> de cada certificado) e os certificados
+	 * codificados em DER. O arquivo é substituído atomicamente.
+	 *
+	 * @param snapshot
+	 *            {@link Path} arquivo do snapshot.
+	 * @throws IOException
+	 *             Em caso de erros de gravação.
+	 */
+	public void salvarSnapshot(Path snapshot) throws IOException {
+		ByteArrayOutputStream indice = new ByteArrayOutputStream();
+		DataOutputStream saidaIndice = new DataOutputStream(indice);
+
+		int deslocamento = 0;
+		for (Entrada entrada : this.entradas) {
+			int tamanho = entrada.codificado.remaining();
+			saidaIndice.writeByte(entrada.ancora ? 1 : 0);
+			saidaIndice.writeInt(deslocamento);
+			saidaIndice.writeInt(tamanho);
+			escreverBytes(saidaIndice, entrada.titular.getEncoded());
+			escreverBytes(saidaIndice, entrada.chave == null ? new byte[0] : toArray(entrada.chave));
+			deslocamento += tamanho;
+		}
+		saidaIndice.flush();
+
+		Path diretorio = snapshot.toAbsolutePath().getParent();
+		Files.createDirectories(diretorio);
+		Path temporario = Files.createTempFile(diretorio, snapshot.getFileName().toString(), ".tmp");
+		try {
+			try (OutputStream arquivo = Files.newOutputStream(temporario);
+					DataOutputStream saida = new DataOutputStream(new BufferedOutputStream(arquivo))) {
+				saida.writeInt(MAGICO);
+				saida.writeShort(VERSAO);
+				saida.writeInt(this.entradas.size());
+				saida.writeInt(indice.size());
+				indice.writeTo(saida);
+				for (Entrada entrada : this.entradas) {
+					saida.write(toArray(entrada.codificado));
+				}
+			}
+			Files.move(temporario, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temporario);
+		}
+	}
+
+	/**
+	 * Âncoras de confiança (certificados autoemitidos) para validação PKIX;
+	 * somente estes certificados são decodificados.
+	 */
+	public Set<TrustAnchor> getAncoras() {
+		Set<TrustAnchor> resultado = this.ancoras;
+		if (resultado == null) {
+			Set<TrustAnchor> novas = new LinkedHashSet<>();
+			for (Entrada entrada : this.entradas) {
+				X509Certificate certificado = entrada.ancora ? this.decodificar(entrada) : null;
+				if (certificado != null) {
+					novas.add(new TrustAnchor(certificado, null));
+				}
+			}
+			this.ancoras = resultado = Collections.unmodifiableSet(novas);
+		}
+		return resultado;
+	}
+
+	/**
+	 * {@link ConstrutorCadeia} sobre os certificados do repositório,
+	 * compartilhado por todas as chamadas.
+	 */
+	public ConstrutorCadeia getConstrutorCadeia() {
+		return this.construtorCadeia;
+	}
+
+	/**
+	 * Retorna o certificado com o <i>SubjectKeyIdentifier</i> informado ou
+	 * <code>null</code>.
+	 */
+	public X509Certificate buscarPorChave(byte[] chave) {
+		List<Entrada> encontradas = this.porChave.get(ByteBuffer.wrap(chave));
+		return (encontradas == null ? null : this.decodificar(encontradas.get(0)));
+	}
+
+	@Override
+	public void candidatos(X500Principal emissor, ByteBuffer chaveAutoridade, List<X509Certificate> candidatos) {
+		// Filtra pelo índice; decodifica somente os selecionados
+		if (chaveAutoridade != null) {
+			List<Entrada> encontradas = this.porChave.get(chaveAutoridade);
+			if (encontradas != null) {
+				int antes = candidatos.size();
+				for (Entrada entrada : encontradas) {
+					if (entrada.titular.equals(emissor)) {
+						this.adicionar(entrada, candidatos);
+					}
+				}
+				if (candidatos.size() > antes) {
+					return;
+				}
+			}
+		}
+
+		List<Entrada> encontradas = this.porTitular.get(emissor);
+		if (encontradas != null) {
+			for (Entrada entrada : encontradas) {
+				this.adicionar(entrada, candidatos);
+			}
+		}
+	}
+
+	@Override
+	public int getQuantidade() {
+		return this.entradas.size();
+	}
+
+	/**
+	 * Quantidade de certificados já decodificados.
+	 */
+	public int getQuantidadeDecodificados() {
+		return this.decodificados.get();
+	}
+
+	private void adicionar(Entrada entrada, List<X509Certificate> candidatos) {
+		X509Certificate certificado = this.decodificar(entrada);
+		if (certificado != null) {
+			candidatos.add(certificado);
+		}
+	}
+
+	/**
+	 * Decodifica o certificado da entrada na primeira utilização; retorna
+	 * <code>null</code> caso o conteúdo seja inválido ou não corresponda ao
+	 * índice, excluindo-o das cadeias.
+	 */
+	private X509Certificate decodificar(Entrada entrada) {
+		X509Certificate certificado = entrada.certificado;
+		if (certificado == null) {
+			synchronized (entrada) {
+				certificado = entrada.certificado;
+				if (certificado == null && !entrada.invalida) {
+					try {
+						certificado = UtilsX509.gerarCertificado(toArray(entrada.codificado));
+						if (!certificado.getSubjectX500Principal().equals(entrada.titular)) {
+							throw new CertificateException("Titular diferente do índice");
+						}
+						entrada.certificado = certificado;
+						this.decodificados.incrementAndGet();
+					} catch (Exception e) {
+						entrada.invalida = true;
+						certificado = null;
+					}
+				}
+			}
+		}
+		return certificado;
+	}
+
+	private static FileTime ultimaAlteracao(Path diretorio) throws IOException {
+		FileTime ultima = Files.getLastModifiedTime(diretorio);
+		try (Stream<Path> caminhos = Files.walk(diretorio)) {
+			for (Path caminho : (Iterable<Path>) caminhos::iterator) {
+				FileTime alteracao = Files.getLastModifiedTime(caminho);
+				if (alteracao.compareTo(ultima) > 0) {
+					ultima = alteracao;
+				}
+			}
+		}
+		return ultima;
+	}
+
+	private static boolean isCertificado(Path caminho) {
+		String nome = caminho.getFileName().toString().toLowerCase();
+		for (String extensao : EXTENSOES) {
+			if (nome.endsWith(extensao)) {
+				return Files.isRegularFile(caminho);
+			}
+		}
+		return false;
+	}
+
+	private static byte[] lerBytes(ByteBuffer origem) {
+		byte[] bytes = new byte[origem.getShort() & 0xFFFF];
+		origem.get(bytes);
+		return bytes;
+	}
+
+	private static void escreverBytes(DataOutputStream saida, byte[] bytes) throws IOException {
+		saida.writeShort(bytes.length);
+		saida.write(bytes);
+	}
+
+	private static byte[] toArray(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.duplicate().get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Certificado indexado: os dados do índice estão sempre disponíveis; o
+	 * certificado é decodificado sob demanda.
+	 */
+	private static class Entrada {
+
+		private final boolean ancora;
+		private final X500Principal titular;
+		private final ByteBuffer chave;
+		private final ByteBuffer codificado;
+
+		private volatile X509Certificate certificado;
+		private boolean invalida;
+
+		Entrada(X509Certificate certificado) {
+			this(certificado.getSubjectX500Principal().equals(certificado.getIssuerX500Principal()),
+					certificado.getSubjectX500Principal(), ConstrutorCadeia.getChaveTitular(certificado), codificar(certificado));
+			this.certificado = certificado;
+		}
+
+		Entrada(boolean ancora, X500Principal titular, ByteBuffer chave, ByteBuffer codificado) {
+			this.ancora = ancora;
+			this.titular = titular;
+			this.chave = chave;
+			this.codificado = codificado;
+		}
+
+		private static ByteBuffer codificar(X509Certificate certificado) {
+			try {
+				return ByteBuffer.wrap(certificado.getEncoded());
+			} catch (CertificateException e) {
+				throw new IllegalArgumentException(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,462 @@
+package repository;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.cert.CRLException;
+import java.security.cert.CertPathValidatorException;
+import java.security.cert.Certificate;
+import java.security.cert.PKIXCertPathChecker;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * Repositório de revogação: um {@link IndiceLcr} por AC emissora, gravados em
+ * um diretório e mapeados em memória.
+ * <p>
+ * A ingestão ({@link #ingerir(Path)}) localiza o emissor da LCR no
+ * {@link RepositorioConfianca}, verifica a assinatura e grava o índice em um
+ * novo arquivo; os leitores passam a utilizá-lo por meio de uma única troca
+ * de referência, sem bloqueio. LCRs delta são intercaladas ao índice vigente
+ * sem nova leitura da LCR base, e {@link #atualizar(Path)} aplica as LCRs
+ * depositadas em um diretório local, sem acesso à rede. As consultas não
+ * decodificam LCRs nem mantêm as entradas no heap, de modo que todas as LCRs
+ * da ICP-Brasil podem estar carregadas simultaneamente.
+ *
+ */
+public class RepositorioRevogacao implements AutoCloseable {
+
+	private static final String EXTENSAO = ".idx";
+
+	private final Path diretorio;
+	private final RepositorioConfianca confianca;
+
+	/**
+	 * Índices vigentes; substituído por inteiro a cada ingestão.
+	 */
+	private volatile Map<X500Principal, IndiceLcr> indices = Collections.emptyMap();
+	private final AtomicLong versao = new AtomicLong();
+	private volatile Map<Path, String> erros = Collections.emptyMap();
+
+	/**
+	 * Executor das atualizações agendadas, criado no primeiro agendamento.
+	 */
+	private ScheduledExecutorService relogio;
+
+	private RepositorioRevogacao(Path diretorio, RepositorioConfianca confianca) {
+		this.diretorio = diretorio;
+		this.confianca = confianca;
+	}
+
+	/**
+	 * Abre os índices já gravados no diretório, mantendo o mais recente de
+	 * cada emissor e removendo os demais.
+	 *
+	 * @param diretorio
+	 *            {@link Path} diretório dos índices; criado caso não exista.
+	 * @param confianca
+	 *            {@link RepositorioConfianca} certificados das ACs emissoras
+	 *            das LCRs.
+	 * @return {@link RepositorioRevogacao} repositório aberto.
+	 * @throws IOException
+	 *             Em caso de erros de leitura do diretório.
+	 */
+	public static RepositorioRevogacao abrir(Path diretorio, RepositorioConfianca confianca) throws IOException {
+		Files.createDirectories(diretorio);
+		RepositorioRevogacao repositorio = new RepositorioRevogacao(diretorio, confianca);
+
+		Map<X500Principal, IndiceLcr> indices = new HashMap<>();
+		Map<X500Principal, Path> arquivos = new HashMap<>();
+		List<Path> descartados = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(diretorio, "*" + EXTENSAO)) {
+			for (Path arquivo : stream) {
+				IndiceLcr indice;
+				try {
+					indice = IndiceLcr.abrir(arquivo);
+				} catch (IOException e) {
+					// Gravação interrompida ou arquivo estranho: ignorado
+					continue;
+				}
+				IndiceLcr atual = indices.get(indice.getEmissor());
+				if (atual == null || isMaisRecente(indice, atual)) {
+					indices.put(indice.getEmissor(), indice);
+					Path anterior = arquivos.put(indice.getEmissor(), arquivo);
+					if (anterior != null) {
+						descartados.add(anterior);
+					}
+				} else {
+					descartados.add(arquivo);
+				}
+			}
+		}
+		for (Path arquivo : descartados) {
+			excluir(arquivo);
+		}
+
+		repositorio.indices = Collections.unmodifiableMap(indices);
+		return repositorio;
+	}
+
+	/**
+	 * Verifica a LCR e atualiza o índice do emissor, caso a LCR seja mais
+	 * recente que a vigente. Uma LCR completa substitui o índice; uma LCR
+	 * delta é intercalada ao índice vigente, que deve corresponder a uma LCR
+	 * de número igual ou posterior à base indicada pela delta.
+	 *
+	 * @param lcr
+	 *            {@link Path} arquivo da LCR (completa ou delta) codificada em
+	 *            DER.
+	 * @return {@link IndiceLcr} índice vigente do emissor após a ingestão.
+	 * @throws CRLException
+	 *             Caso a LCR seja inválida, de emissor desconhecido, a
+	 *             assinatura não confira ou, sendo delta, a base não esteja
+	 *             indexada.
+	 * @throws IOException
+	 *             Em caso de erros de leitura ou gravação.
+	 */
+	public IndiceLcr ingerir(Path lcr) throws CRLException, IOException {
+		return this.ingerir(IndiceLcr.Lcr.ler(lcr), lcr);
+	}
+
+	/**
+	 * Aplica as LCRs do diretório (ex: baixadas por outro processo ou
+	 * copiadas manualmente): para cada emissor, a LCR completa mais recente e
+	 * em seguida a delta mais recente, caso sejam posteriores ao índice
+	 * vigente. Durante a varredura somente os cabeçalhos das LCRs são mantidos
+	 * em memória; a LCR é lida novamente ao ser aplicada.
+	 * <p>
+	 * O <i>cRLNumber</i> só é confiável após a verificação da assinatura:
+	 * caso a LCR mais recente seja rejeitada (ex: arquivo corrompido ou
+	 * forjado com número maior), a candidata seguinte, em ordem decrescente,
+	 * é aplicada.
+	 * <p>
+	 * As consultas continuam atendidas pelos índices anteriores durante a
+	 * atualização. Arquivos inválidos não interrompem a atualização e ficam
+	 * registrados em {@link #getErros()}.
+	 *
+	 * @param diretorioLcrs
+	 *            {@link Path} diretório com as LCRs (.crl ou .der).
+	 * @return {@link List} índices atualizados.
+	 * @throws IOException
+	 *             Em caso de erros de leitura do diretório.
+	 */
+	public List<IndiceLcr> atualizar(Path diretorioLcrs) throws IOException {
+		Map<Path, String> erros = new LinkedHashMap<>();
+		Map<X500Principal, List<IndiceLcr.Lcr>> completas = new HashMap<>();
+		Map<X500Principal, List<IndiceLcr.Lcr>> deltas = new HashMap<>();
+		Map<IndiceLcr.Lcr, Path> arquivos = new HashMap<>();
+
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(diretorioLcrs, "*.{crl,der}")) {
+			for (Path arquivo : stream) {
+				IndiceLcr.Lcr lcr;
+				try {
+					lcr = IndiceLcr.Lcr.lerCabecalho(arquivo);
+				} catch (CRLException | IOException e) {
+					erros.put(arquivo, e.getMessage());
+					continue;
+				}
+				arquivos.put(lcr, arquivo);
+				(lcr.numeroBase == null ? completas : deltas).computeIfAbsent(lcr.emissor, e -> new ArrayList<>()).add(lcr);
+			}
+		}
+
+		Comparator<IndiceLcr.Lcr> maisRecentePrimeiro = (x, y) -> (isMaisRecente(x, y) ? -1 : (isMaisRecente(y, x) ? 1 : 0));
+
+		Set<X500Principal> emissores = new HashSet<>(completas.keySet());
+		emissores.addAll(deltas.keySet());
+		List<IndiceLcr> atualizados = new ArrayList<>();
+		for (X500Principal emissor : emissores) {
+			IndiceLcr antes = this.indices.get(emissor);
+			for (Map<X500Principal, List<IndiceLcr.Lcr>> candidatas : Arrays.asList(completas, deltas)) {
+				List<IndiceLcr.Lcr> lcrs = candidatas.getOrDefault(emissor, Collections.<IndiceLcr.Lcr>emptyList());
+				lcrs.sort(maisRecentePrimeiro);
+				for (IndiceLcr.Lcr lcr : lcrs) {
+					// Aplicada ou não posterior ao índice vigente: as demais são mais antigas
+					IndiceLcr atual = this.indices.get(emissor);
+					if (atual != null && !isMaisRecente(lcr.numero, lcr.emissao, atual)) {
+						break;
+					}
+					try {
+						Path arquivo = arquivos.get(lcr);
+						this.ingerir(IndiceLcr.Lcr.ler(arquivo), arquivo);
+						break;
+					} catch (CRLException | IOException e) {
+						erros.put(arquivos.get(lcr), e.getMessage());
+					}
+				}
+			}
+			IndiceLcr depois = this.indices.get(emissor);
+			if (depois != null && depois != antes) {
+				atualizados.add(depois);
+			}
+		}
+
+		this.erros = Collections.unmodifiableMap(erros);
+		return atualizados;
+	}
+
+	/**
+	 * Executa {@link #atualizar(Path)} periodicamente, em uma thread
+	 * auxiliar criada no primeiro agendamento e encerrada por
+	 * {@link #close()}.
+	 *
+	 * @param diretorioLcrs
+	 *            {@link Path} diretório com as LCRs.
+	 * @param periodo
+	 *            intervalo entre as atualizações; a primeira é imediata.
+	 * @param unidade
+	 *            {@link TimeUnit} unidade do intervalo.
+	 * @return {@link ScheduledFuture} para o cancelamento do agendamento.
+	 */
+	public synchronized ScheduledFuture<?> agendarAtualizacao(Path diretorioLcrs, long periodo, TimeUnit unidade) {
+		if (this.relogio == null) {
+			this.relogio = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "revogacao-atualizacao");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		return this.relogio.scheduleWithFixedDelay(() -> {
+			try {
+				this.atualizar(diretorioLcrs);
+			} catch (IOException | RuntimeException e) {
+				// Mantém o agendamento; a falha fica registrada
+				this.erros = Collections.singletonMap(diretorioLcrs, String.valueOf(e.getMessage()));
+			}
+		}, 0, periodo, unidade);
+	}
+
+	/**
+	 * Cancela as atualizações agendadas. Os índices continuam disponíveis
+	 * para consulta.
+	 */
+	@Override
+	public synchronized void close() {
+		if (this.relogio != null) {
+			this.relogio.shutdownNow();
+			this.relogio = null;
+		}
+	}
+
+	/**
+	 * Falhas por arquivo da última atualização.
+	 */
+	public Map<Path, String> getErros() {
+		return this.erros;
+	}
+
+	private synchronized IndiceLcr ingerir(IndiceLcr.Lcr lida, Path origem) throws CRLException, IOException {
+		IndiceLcr atual = this.indices.get(lida.emissor);
+		if (atual != null && !isMaisRecente(lida.numero, lida.emissao, atual)) {
+			return atual;
+		}
+
+		IndiceLcr novo;
+		Path destino = this.diretorio.resolve(nomeArquivo(lida.emissor, lida.emissao));
+		if (lida.numeroBase == null) {
+			this.verificar(lida);
+			novo = IndiceLcr.gerar(lida, destino);
+		} else {
+			if (atual == null || atual.getNumero() == null || lida.numero == null || atual.getNumero().compareTo(lida.numeroBase) < 0) {
+				throw new CRLException("LCR delta " + origem + " requer a LCR base " + lida.numeroBase + " de " + lida.emissor);
+			}
+			this.verificar(lida);
+			novo = atual.aplicar(lida, destino);
+		}
+		this.publicar(novo, atual);
+		return novo;
+	}
+
+	/**
+	 * Retorna a data de revogação do certificado ou <code>null</code> caso
+	 * não esteja revogado na LCR vigente do emissor.
+	 *
+	 * @throws CRLException
+	 *             Caso não exista LCR do emissor do certificado.
+	 */
+	public Date consultar(X509Certificate certificado) throws CRLException {
+		return this.consultar(certificado.getIssuerX500Principal(), certificado.getSerialNumber());
+	}
+
+	/**
+	 * @see #consultar(X509Certificate)
+	 */
+	public Date consultar(X500Principal emissor, BigInteger serie) throws CRLException {
+		IndiceLcr indice = this.indices.get(emissor);
+		if (indice == null) {
+			throw new CRLException("LCR não disponível para " + emissor);
+		}
+		return indice.consultar(serie);
+	}
+
+	/**
+	 * Índice vigente do emissor ou <code>null</code>.
+	 */
+	public IndiceLcr getIndice(X500Principal emissor) {
+		return this.indices.get(emissor);
+	}
+
+	public Collection<IndiceLcr> getIndices() {
+		return this.indices.values();
+	}
+
+	/**
+	 * Versão dos índices, incrementada a cada substituição; permite invalidar
+	 * resultados calculados com índices anteriores.
+	 */
+	public long getVersao() {
+		return this.versao.get();
+	}
+
+	/**
+	 * Verificador de revogação para o {@link java.security.cert.CertPathValidator}
+	 * na data atual: certificados que constem do índice, qualquer que seja a
+	 * data de revogação, ou de emissores sem LCR vigente são rejeitados. A
+	 * data de validação do caminho (ex: signingTime) não é utilizada, pois é
+	 * declarada pelo signatário.
+	 */
+	public PKIXCertPathChecker getVerificador() {
+		return new Verificador();
+	}
+
+	/**
+	 * Localiza no repositório de confiança a AC cuja chave verifica a LCR.
+	 */
+	private void verificar(IndiceLcr.Lcr lcr) throws CRLException {
+		List<X509Certificate> candidatos = new ArrayList<>(2);
+		this.confianca.candidatos(lcr.emissor, lcr.chaveAutoridade, candidatos);
+		if (candidatos.isEmpty()) {
+			throw new CRLException("Emissor da LCR não encontrado: " + lcr.emissor);
+		}
+
+		CRLException erro = null;
+		for (X509Certificate candidato : candidatos) {
+			try {
+				lcr.verificar(candidato);
+				return;
+			} catch (CRLException e) {
+				erro = e;
+			}
+		}
+		throw erro;
+	}
+
+	private void publicar(IndiceLcr novo, IndiceLcr anterior) {
+		Map<X500Principal, IndiceLcr> indices = new HashMap<>(this.indices);
+		indices.put(novo.getEmissor(), novo);
+		this.indices = Collections.unmodifiableMap(indices);
+		this.versao.incrementAndGet();
+
+		if (anterior != null && !anterior.getEmissao().equals(novo.getEmissao())) {
+			excluir(this.diretorio.resolve(nomeArquivo(anterior.getEmissor(), anterior.getEmissao().getTime())));
+		}
+	}
+
+	private static void excluir(Path arquivo) {
+		try {
+			Files.deleteIfExists(arquivo);
+		} catch (IOException e) {
+			// Ainda mapeado (ex: Windows): removido na próxima abertura
+		}
+	}
+
+	private static boolean isMaisRecente(IndiceLcr indice, IndiceLcr atual) {
+		return isMaisRecente(indice.getNumero(), indice.getEmissao().getTime(), atual.getNumero(), atual.getEmissao().getTime());
+	}
+
+	private static boolean isMaisRecente(IndiceLcr.Lcr lcr, IndiceLcr.Lcr atual) {
+		return isMaisRecente(lcr.numero, lcr.emissao, atual.numero, atual.emissao);
+	}
+
+	private static boolean isMaisRecente(BigInteger numero, long emissao, IndiceLcr atual) {
+		return isMaisRecente(numero, emissao, atual.getNumero(), atual.getEmissao().getTime());
+	}
+
+	/**
+	 * Compara pelo <i>cRLNumber</i> quando ambos o possuem; caso contrário
+	 * pela data de emissão.
+	 */
+	private static boolean isMaisRecente(BigInteger numero, long emissao, BigInteger numeroAtual, long emissaoAtual) {
+		if (numero != null && numeroAtual != null) {
+			return numero.compareTo(numeroAtual) > 0;
+		}
+		return emissao > emissaoAtual;
+	}
+
+	/**
+	 * SHA-1 do DN do emissor seguido da data de emissão: cada versão é
+	 * gravada em um arquivo próprio, sem sobrescrever o que está mapeado.
+	 */
+	private static String nomeArquivo(X500Principal emissor, long emissao) {
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-1").digest(emissor.getEncoded());
+			StringBuilder nome = new StringBuilder();
+			for (byte b : hash) {
+				nome.append(String.format("%02x", b));
+			}
+			return nome.append('-').append(Long.toHexString(emissao)).append(EXTENSAO).toString();
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private class Verificador extends PKIXCertPathChecker {
+
+		@Override
+		public void init(boolean forward) throws CertPathValidatorException {
+			if (forward) {
+				throw new CertPathValidatorException("Verificação no sentido direto não suportada");
+			}
+		}
+
+		@Override
+		public boolean isForwardCheckingSupported() {
+			return false;
+		}
+
+		@Override
+		public Set<String> getSupportedExtensions() {
+			return null;
+		}
+
+		@Override
+		public void check(Certificate cert, Collection<String> unresolvedCritExts) throws CertPathValidatorException {
+			X509Certificate certificado = (X509Certificate) cert;
+			IndiceLcr indice = RepositorioRevogacao.this.indices.get(certificado.getIssuerX500Principal());
+			if (indice == null) {
+				throw new CertPathValidatorException("LCR não disponível para " + certificado.getIssuerX500Principal());
+			}
+			Date proximaAtualizacao = indice.getProximaAtualizacao();
+			if (proximaAtualizacao != null && proximaAtualizacao.getTime() < System.currentTimeMillis()) {
+				throw new CertPathValidatorException("LCR de " + indice.getEmissor() + " vencida em " + proximaAtualizacao);
+			}
+
+			Date revogacao = indice.consultar(certificado.getSerialNumber());
+			if (revogacao != null) {
+				throw new CertPathValidatorException("Certificado " + certificado.getSubjectX500Principal() + " revogado em " + revogacao);
+			}
+		}
+	}
+}
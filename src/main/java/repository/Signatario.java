@@ -0,0 +1,337 @@
+package repository;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.security.auth.DestroyFailedException;
+import javax.security.auth.Destroyable;
+
+import org.bouncycastle.asn1.ASN1EncodableVector;
+import org.bouncycastle.asn1.ASN1Encoding;
+import org.bouncycastle.asn1.ASN1Set;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.DERSet;
+import org.bouncycastle.asn1.cms.Attribute;
+import org.bouncycastle.asn1.cms.CMSAttributes;
+import org.bouncycastle.asn1.cms.CMSObjectIdentifiers;
+import org.bouncycastle.asn1.cms.Time;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x509.DigestInfo;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.operator.DefaultDigestAlgorithmIdentifierFinder;
+import org.bouncycastle.operator.DefaultSignatureAlgorithmIdentifierFinder;
+
+import model.Atributos;
+import model.exception.ErroAoAssinarException;
+import util.UtilsAsn1;
+
+/**
+ * Material do signatário obtido do smart card (certificado, cadeia e chave
+ * privada) para um alias.
+ * <p>
+ * Permite que várias assinaturas do mesmo alias sejam geradas sem novas
+ * consultas ao smart card e reaproveitando a mesma instância de
+ * {@link Signature} (e, no caso do PKCS#11, a mesma sessão do token).
+ *
+ */
+class Signatario {
+
+	/**
+	 * Assinatura RSA (PKCS#1 v1.5) sobre o <i>DigestInfo</i> calculado no host.
+	 */
+	static final String ALGORITMO_RSA_PURO = "NONEwithRSA";
+
+	/**
+	 * Algoritmos de assinatura RSA por nome (em maiúsculas) do algoritmo de
+	 * hash; os nomes são reconhecidos pelos provedores JCA e pelo
+	 * BouncyCastle.
+	 */
+	private static final Map<String, String> ALGORITMOS_ASSINATURA = new HashMap<>();
+
+	static {
+		for (String[] par : new String[][] {
+				{ "SHA1", "SHA1WithRSA" }, { "SHA-1", "SHA1WithRSA" }, { "SHA", "SHA1WithRSA" },
+				{ "SHA224", "SHA224WithRSA" }, { "SHA-224", "SHA224WithRSA" },
+				{ "SHA256", "SHA256WithRSA" }, { "SHA-256", "SHA256WithRSA" },
+				{ "SHA384", "SHA384WithRSA" }, { "SHA-384", "SHA384WithRSA" },
+				{ "SHA512", "SHA512WithRSA" }, { "SHA-512", "SHA512WithRSA" },
+				{ "SHA3-224", "SHA3-224WithRSA" }, { "SHA3-256", "SHA3-256WithRSA" },
+				{ "SHA3-384", "SHA3-384WithRSA" }, { "SHA3-512", "SHA3-512WithRSA" } }) {
+			ALGORITMOS_ASSINATURA.put(par[0], par[1]);
+		}
+	}
+
+	private final String alias;
+	private final X509Certificate certificado;
+	private final List<Certificate> cadeia;
+	private final PrivateKey chavePrivada;
+
+	/**
+	 * Indica se o hash dos atributos é calculado no host (ver
+	 * {@link model.SmartCard#isHashNoHost()}).
+	 */
+	private final boolean hashNoHost;
+
+	/**
+	 * Certificado do signatário e conjunto <i>certificates</i> da assinatura,
+	 * codificados uma única vez.
+	 */
+	private final X509CertificateHolder certificadoHolder;
+	private final ASN1Set certificates;
+
+	/**
+	 * Instâncias de {@link Signature} já inicializadas com a chave privada,
+	 * indexadas pelo algoritmo de assinatura.
+	 */
+	private final Map<String, Signature> assinadores = new HashMap<>();
+
+	/**
+	 * Instâncias de {@link MessageDigest} para o cálculo do hash no host,
+	 * indexadas pelo algoritmo de assinatura.
+	 */
+	private final Map<String, MessageDigest> digests = new HashMap<>();
+
+	/**
+	 * Modelos pré-codificados da assinatura CMS, indexados pelo algoritmo de
+	 * assinatura.
+	 */
+	private final Map<String, ModeloSignedData> modelos = new HashMap<>();
+
+	/**
+	 * Indica que a chave privada foi descartada (ver {@link #descartar()}).
+	 */
+	private boolean descartado;
+
+	Signatario(String alias, X509Certificate certificado, List<Certificate> cadeia, PrivateKey chavePrivada, boolean hashNoHost)
+			throws CertificateEncodingException, IOException {
+		this.alias = alias;
+		this.certificado = certificado;
+		this.cadeia = (cadeia == null ? Collections.<Certificate>emptyList() : cadeia);
+		this.chavePrivada = chavePrivada;
+		this.hashNoHost = hashNoHost;
+		this.certificadoHolder = new X509CertificateHolder(certificado.getEncoded());
+		this.certificates = UtilsAsn1.gerarCertificates(certificado, this.cadeia);
+	}
+
+	/**
+	 * Gera a assinatura CMS <i>detached</i> do hash de um documento.
+	 *
+	 * @param algoritmoHash
+	 *            algoritmo com o qual o hash foi calculado (ex: SHA-256).
+	 * @param hash
+	 *            hash do documento.
+	 * @param adicionais
+	 *            {@link List} atributos assinados adicionais.
+	 * @return assinatura codificada em DER.
+	 * @throws ErroAoAssinarException
+	 *             Caso o algoritmo não seja suportado ou o tamanho do hash não
+	 *             corresponda ao algoritmo.
+	 * @throws GeneralSecurityException
+	 *             Em caso de erros na operação com a chave privada.
+	 * @throws IOException
+	 *             Em caso de erros ao codificar a assinatura.
+	 */
+	byte[] assinarHash(String algoritmoHash, byte[] hash, List<Attribute> adicionais) throws ErroAoAssinarException, GeneralSecurityException, IOException {
+		int tamanhoEsperado;
+		try {
+			tamanhoEsperado = MessageDigest.getInstance(algoritmoHash).getDigestLength();
+		} catch (NoSuchAlgorithmException e) {
+			throw new ErroAoAssinarException(e);
+		}
+		if (hash == null || hash.length != tamanhoEsperado) {
+			throw new ErroAoAssinarException("Hash " + algoritmoHash + " deve possuir " + tamanhoEsperado + " bytes");
+		}
+
+		String algoritmoAssinatura = getAlgoritmoAssinatura(algoritmoHash);
+
+		Atributos atributos = gerarAtributos(hash, adicionais);
+		atributos.setAtributosAssinados(this.assinar(atributos.getAtributosGerados(), algoritmoAssinatura));
+
+		// Estrutura da informação assinada, a partir do modelo pré-codificado
+		// do signatário (certificates, SignerIdentifier e algoritmos)
+		return this.getModelo(algoritmoAssinatura).gerar(atributos.getAtributosGerados(), atributos.getAtributosAssinados());
+	}
+
+	/**
+	 * Assina digitalmente o dado com a chave privada do signatário.
+	 * <p>
+	 * Caso o signatário tenha sido criado com cálculo do hash no host, o hash
+	 * do dado e a estrutura <i>DigestInfo</i> são gerados localmente e o smart
+	 * card realiza apenas a operação RSA ({@value #ALGORITMO_RSA_PURO}).
+	 *
+	 * @param dado
+	 *            informação para assinar (atributos assinados codificados em
+	 *            DER).
+	 * @param algoritmoAssinatura
+	 *            algoritmo de assinatura (ex: SHA256WithRSA).
+	 * @return dado assinado (cifrado) com a chave privada do signatário.
+	 * @throws GeneralSecurityException
+	 *             Em caso de erros ao realizar a assinatura do dado informado.
+	 * @throws IOException
+	 *             Em caso de erros ao codificar o <i>DigestInfo</i>.
+	 */
+	// TODO Criar esquema de fallback com os algoritmos suportados pelo cliente.
+	synchronized byte[] assinar(byte[] dado, String algoritmoAssinatura) throws GeneralSecurityException, IOException {
+		if (this.descartado) {
+			throw new KeyException("Chave privada do signatário " + this.alias + " descartada");
+		}
+		if (this.hashNoHost) {
+			return this.assinarDigestInfo(dado, algoritmoAssinatura);
+		}
+
+		Signature signature = this.getAssinador(algoritmoAssinatura);
+
+		// Após sign() a instância volta ao estado de initSign()
+		signature.update(dado);
+		return signature.sign();
+	}
+
+	private byte[] assinarDigestInfo(byte[] dado, String algoritmoAssinatura) throws GeneralSecurityException, IOException {
+		AlgorithmIdentifier algoritmoHash = new DefaultDigestAlgorithmIdentifierFinder()
+				.find(new DefaultSignatureAlgorithmIdentifierFinder().find(algoritmoAssinatura));
+
+		MessageDigest md = this.digests.get(algoritmoAssinatura);
+		if (md == null) {
+			md = MessageDigest.getInstance(algoritmoHash.getAlgorithm().getId());
+			this.digests.put(algoritmoAssinatura, md);
+		}
+
+		// DigestInfo ::= SEQUENCE { digestAlgorithm, digest } (PKCS#1 v1.5)
+		byte[] digestInfo = new DigestInfo(algoritmoHash, md.digest(dado)).getEncoded(ASN1Encoding.DER);
+
+		Signature signature = this.getAssinador(ALGORITMO_RSA_PURO);
+		signature.update(digestInfo);
+		return signature.sign();
+	}
+
+	private Signature getAssinador(String algoritmoAssinatura) throws GeneralSecurityException {
+		Signature signature = this.assinadores.get(algoritmoAssinatura);
+		if (signature == null) {
+			signature = Signature.getInstance(algoritmoAssinatura);
+			signature.initSign(this.chavePrivada);
+			this.assinadores.put(algoritmoAssinatura, signature);
+		}
+		return signature;
+	}
+
+	/**
+	 * Retorna o modelo pré-codificado da assinatura CMS para o algoritmo
+	 * informado, criando-o no primeiro uso.
+	 *
+	 * @param algoritmoAssinatura
+	 *            algoritmo de assinatura (ex: SHA1WithRSA).
+	 * @return {@link ModeloSignedData} modelo do signatário.
+	 * @throws IOException
+	 *             Em caso de erros ao codificar as partes fixas da estrutura.
+	 */
+	synchronized ModeloSignedData getModelo(String algoritmoAssinatura) throws IOException {
+		ModeloSignedData modelo = this.modelos.get(algoritmoAssinatura);
+		if (modelo == null) {
+			modelo = new ModeloSignedData(this.certificadoHolder, this.certificates, algoritmoAssinatura);
+			this.modelos.put(algoritmoAssinatura, modelo);
+		}
+		return modelo;
+	}
+
+	/**
+	 * Descarta a chave privada e as instâncias de {@link Signature}
+	 * inicializadas com ela; assinaturas posteriores falham com
+	 * {@link KeyException}.
+	 * <p>
+	 * A chave é destruída quando a implementação suporta
+	 * {@link Destroyable#destroy()}; caso contrário apenas deixa de ser
+	 * referenciada.
+	 */
+	synchronized void descartar() {
+		this.descartado = true;
+		this.assinadores.clear();
+		this.digests.clear();
+
+		if (this.chavePrivada instanceof Destroyable && !((Destroyable) this.chavePrivada).isDestroyed()) {
+			try {
+				((Destroyable) this.chavePrivada).destroy();
+			} catch (DestroyFailedException e) {
+				// Implementação não permite destruir a chave
+			}
+		}
+	}
+
+	synchronized boolean isDescartado() {
+		return this.descartado;
+	}
+
+	/**
+	 * Retorna o algoritmo de assinatura RSA correspondente ao algoritmo de
+	 * hash informado (ex: SHA-256 resulta em SHA256WithRSA).
+	 *
+	 * @throws ErroAoAssinarException
+	 *             Caso não exista assinatura RSA suportada para o algoritmo.
+	 */
+	static String getAlgoritmoAssinatura(String algoritmoHash) throws ErroAoAssinarException {
+		String algoritmoAssinatura = ALGORITMOS_ASSINATURA.get(algoritmoHash.toUpperCase());
+		if (algoritmoAssinatura == null) {
+			throw new ErroAoAssinarException("Algoritmo de hash não suportado para assinatura RSA: " + algoritmoHash);
+		}
+		return algoritmoAssinatura;
+	}
+
+	/**
+	 * Gera os atributos assinados (contentType, signingTime, messageDigest e
+	 * adicionais) codificados em DER.
+	 */
+	private static Atributos gerarAtributos(byte[] hashDocumento, List<Attribute> adicionais) throws IOException {
+
+		// Gera tabela com os atributos da assinatura
+		ASN1EncodableVector vetorAtributos = new ASN1EncodableVector();
+
+		// Atributo contentType
+		vetorAtributos.add(new Attribute(CMSAttributes.contentType, new DERSet(CMSObjectIdentifiers.data)));
+
+		// Atributo signingTime
+		vetorAtributos.add(new Attribute(CMSAttributes.signingTime, new DERSet(new Time(new Date()))));
+
+		// Atributo messageDigest
+		vetorAtributos.add(new Attribute(CMSAttributes.messageDigest, new DERSet(new DEROctetString(hashDocumento))));
+
+		// Atributos adicionais (ex: hash em árvore)
+		for (Attribute adicional : adicionais) {
+			vetorAtributos.add(adicional);
+		}
+
+		// Retorna os atributos assinados codificados em DER
+		return new Atributos(new DERSet(vetorAtributos).getEncoded(ASN1Encoding.DER));
+	}
+
+	String getAlias() {
+		return this.alias;
+	}
+
+	X509Certificate getCertificado() {
+		return this.certificado;
+	}
+
+	List<Certificate> getCadeia() {
+		return this.cadeia;
+	}
+
+	X509CertificateHolder getCertificadoHolder() {
+		return this.certificadoHolder;
+	}
+
+	ASN1Set getCertificates() {
+		return this.certificates;
+	}
+}
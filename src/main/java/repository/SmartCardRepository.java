@@ -1,55 +1,58 @@
 package repository;
 
 import java.io.IOException;
+import java.security.GeneralSecurityException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
-import java.security.Signature;
+import java.security.ProviderException;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import javax.security.auth.x500.X500Principal;
 
 import org.apache.commons.lang3.exception.ExceptionUtils;
 
 import org.bouncycastle.asn1.ASN1Encodable;
-import org.bouncycastle.asn1.ASN1EncodableVector;
 import org.bouncycastle.asn1.ASN1Encoding;
 import org.bouncycastle.asn1.ASN1Object;
 import org.bouncycastle.asn1.ASN1Set;
 import org.bouncycastle.asn1.cms.Attribute;
-import org.bouncycastle.asn1.DEROctetString;
 import org.bouncycastle.asn1.DERSet;
-import org.bouncycastle.asn1.cms.CMSAttributes;
 import org.bouncycastle.asn1.cms.CMSObjectIdentifiers;
 import org.bouncycastle.asn1.cms.ContentInfo;
 import org.bouncycastle.asn1.cms.SignedData;
 import org.bouncycastle.asn1.cms.SignerInfo;
-import org.bouncycastle.asn1.cms.Time;
 import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
 import org.bouncycastle.cert.X509CertificateHolder;
 import org.bouncycastle.cms.CMSSignedData;
 import org.bouncycastle.cms.SignerInformation;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
-import model.Atributos;
 import model.Documento;
 import model.SmartCard;
 import model.dto.CertificadoDTO;
+import model.dto.ResultadoAssinatura;
 import model.exception.AutenticacaoNecessariaException;
 import model.exception.ErroAoAssinarException;
 import model.exception.ErroAoLerSmartCardException;
 import model.exception.NenhumCertificadoEncontradoException;
 import model.exception.PinIncorretoException;
 import util.UtilsAsn1;
+import util.UtilsHashArvore;
 import util.UtilsX509;
 
-public class SmartCardRepository {
+public class SmartCardRepository implements AutoCloseable {
 	
 	
 	public static final String OS_NAME_PROPERTY = "os.name";
@@ -57,9 +60,32 @@ public class SmartCardRepository {
 	public static final String NOT_FOUND_ERROR_MESSAGE = "java.security.KeyStoreException: PKCS11 not found";
 	public static final String PIN_INCORRECT_ERROR_MESSAGE = "PKCS11Exception: CKR_PIN_INCORRECT";
 	
-	private static final String ALGORITMO_ASSINATURA = "SHA1WithRSA";
+	/**
+	 * Algoritmo de hash do documento; define também o algoritmo de assinatura
+	 * (SHA1WithRSA).
+	 */
+	public static final String ALGORITMO_HASH = "SHA1";
+	
+	private static final String ALGORITMO_HASH_ARVORE = "SHA-256";
+	
+	/**
+	 * Smart card inicializado; alterado somente na thread proprietária do
+	 * token (ver {@link #inicializar(SmartCard, String)}).
+	 */
+	private volatile SmartCard smartCard;
 	
-	private SmartCard smartCard;
+	/**
+	 * Cache do material de cada signatário (chave privada, certificado, cadeia
+	 * ordenada e certificado pré-codificado), indexado pelo alias.
+	 */
+	private final Map<String, Signatario> signatarios = new ConcurrentHashMap<>();
+	
+	/**
+	 * Executor que serializa as operações sobre o token: as assinaturas e a
+	 * listagem, síncronas ou assíncronas, são executadas pela sua thread
+	 * proprietária.
+	 */
+	private ExecutorToken executorToken;
 	
 	public boolean isInicializado() {
 		return this.smartCard != null;
@@ -69,10 +95,54 @@ public class SmartCardRepository {
 		this.inicializar(null);
 	}
 	
+	/**
+	 * Inicializa o repositório com o smart card do sistema operacional, na
+	 * thread proprietária do token.
+	 * 
+	 * @param pin
+	 *            PIN do smart card.
+	 */
 	public void inicializar(String pin) throws NenhumCertificadoEncontradoException, AutenticacaoNecessariaException, ErroAoLerSmartCardException, PinIncorretoException {
+		this.aguardarLeitura(() -> {
+			this.inicializarNoToken(pin);
+			return null;
+		});
+	}
+	
+	private void inicializarNoToken(String pin) throws NenhumCertificadoEncontradoException, AutenticacaoNecessariaException, ErroAoLerSmartCardException, PinIncorretoException {
+		SmartCard smartCard;
+		try {
+			smartCard = SmartCard.getInstance(this.getOs());
+		} catch (KeyStoreException e) {
+			this.tratarErroKeyStore(e);
+			return;
+		}
+		this.inicializarNoToken(smartCard, pin);
+	}
+	
+	/**
+	 * Inicializa o repositório com o smart card informado (ex: o token de um
+	 * slot específico, ver {@link SmartCard#getInstancePkcs11(String, long)}).
+	 * <p>
+	 * A inicialização e o fechamento do smart card anterior são executados
+	 * na thread proprietária do token, depois das operações já enfileiradas:
+	 * uma assinatura em andamento nunca tem o seu token fechado.
+	 * 
+	 * @param smartCard
+	 *            {@link SmartCard} smart card ainda não inicializado.
+	 * @param pin
+	 *            PIN do smart card.
+	 */
+	public void inicializar(SmartCard smartCard, String pin) throws NenhumCertificadoEncontradoException, AutenticacaoNecessariaException, ErroAoLerSmartCardException, PinIncorretoException {
+		this.aguardarLeitura(() -> {
+			this.inicializarNoToken(smartCard, pin);
+			return null;
+		});
+	}
+	
+	private void inicializarNoToken(SmartCard smartCard, String pin) throws NenhumCertificadoEncontradoException, AutenticacaoNecessariaException, ErroAoLerSmartCardException, PinIncorretoException {
+		boolean inicializado = false;
 		try {
-			SmartCard smartCard = SmartCard.getInstance(this.getOs());
-			
 			if (smartCard.precisaAutenticacaoAoInicializar() ) {
 				if (pin == null) {
 					throw new AutenticacaoNecessariaException("Informe o PIN");
@@ -83,15 +153,16 @@ public class SmartCardRepository {
 				smartCard.inicializar();
 			}
 			
+			SmartCard anterior = this.smartCard;
 			this.smartCard = smartCard;
+			inicializado = true;
+			this.invalidarCache();
+			if (anterior != null && anterior != smartCard) {
+				anterior.close();
+			}
 			
 		} catch (KeyStoreException e) {
-			if ( NOT_FOUND_ERROR_MESSAGE.equals(e.getMessage()) ) {
-				throw new NenhumCertificadoEncontradoException("Nenhum certificado digital encontrado", e);
-			}
-			else {
-				System.err.println(e.getMessage());
-			}
+			this.tratarErroKeyStore(e);
 		} catch (NoSuchAlgorithmException | CertificateException cause) {
 			throw new ErroAoLerSmartCardException(cause);
 		} catch (IOException cause) {
@@ -102,6 +173,53 @@ public class SmartCardRepository {
 			}
 			
 			throw new ErroAoLerSmartCardException(cause);
+		} finally {
+			// Libera a referência ao provider em qualquer falha (PIN ausente
+			// ou incorreto, erro de leitura)
+			if (!inicializado && smartCard != this.smartCard) {
+				smartCard.close();
+			}
+		}
+	}
+	
+	/**
+	 * Encerra o executor do token e libera o smart card depois que a operação
+	 * em andamento for concluída (no máximo o tempo limite padrão do
+	 * executor).
+	 */
+	@Override
+	public void close() {
+		ExecutorToken executor;
+		synchronized (this) {
+			executor = this.executorToken;
+			if (executor != null) {
+				executor.close();
+			}
+		}
+		// Fora do lock: a operação em andamento pode precisar do executor
+		if (executor != null) {
+			try {
+				executor.aguardarTermino(ExecutorToken.TEMPO_LIMITE_PADRAO_SEGUNDOS, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized (this) {
+			SmartCard smartCard = this.smartCard;
+			this.smartCard = null;
+			if (smartCard != null) {
+				smartCard.close();
+			}
+		}
+		this.invalidarCache();
+	}
+	
+	private void tratarErroKeyStore(KeyStoreException e) throws NenhumCertificadoEncontradoException {
+		if ( NOT_FOUND_ERROR_MESSAGE.equals(e.getMessage()) ) {
+			throw new NenhumCertificadoEncontradoException("Nenhum certificado digital encontrado", e);
+		}
+		else {
+			System.err.println(e.getMessage());
 		}
 	}
 	
@@ -120,7 +238,29 @@ public class SmartCardRepository {
 	}
 	
 	
+	/**
+	 * Lista os certificados do smart card, inicializando-o se necessário, na
+	 * thread proprietária do token.
+	 */
 	public List<CertificadoDTO> listarTodos() throws NenhumCertificadoEncontradoException, AutenticacaoNecessariaException, ErroAoLerSmartCardException, PinIncorretoException {
+		return this.aguardarLeitura(this::listarTodosNoToken);
+	}
+	
+	/**
+	 * Executa a operação de leitura do token na thread proprietária e aguarda
+	 * o resultado.
+	 */
+	private <T> T aguardarLeitura( Callable<T> operacao ) throws NenhumCertificadoEncontradoException, AutenticacaoNecessariaException, ErroAoLerSmartCardException, PinIncorretoException {
+		try {
+			return this.getExecutorToken().aguardar(operacao);
+		} catch (NenhumCertificadoEncontradoException | AutenticacaoNecessariaException | ErroAoLerSmartCardException | PinIncorretoException | RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new ErroAoLerSmartCardException(e);
+		}
+	}
+	
+	private List<CertificadoDTO> listarTodosNoToken() throws NenhumCertificadoEncontradoException, AutenticacaoNecessariaException, ErroAoLerSmartCardException, PinIncorretoException {
 		
 		if (this.smartCard == null) {
 			this.inicializar();
@@ -132,7 +272,7 @@ public class SmartCardRepository {
 			String alias = smartCard.getAliases().nextElement();
 			X509Certificate certificado = (X509Certificate)smartCard.getCertificado(alias);
 			
-			lista.add( this.build(certificado, alias) );
+			lista.add( build(certificado, alias) );
 			
 		} catch (KeyStoreException e) {
 			throw new ErroAoLerSmartCardException(e);
@@ -142,105 +282,316 @@ public class SmartCardRepository {
 		
 	}
 	
+	public byte [] assinar( String alias, Documento documento ) throws ErroAoAssinarException {
+		return this.assinar(alias, documento, false);
+	}
+	
+	/**
+	 * @deprecated O PIN não é utilizado na assinatura: o token é autenticado
+	 *             por {@link #inicializar(String)}. Utilize
+	 *             {@link #assinar(String, Documento)}.
+	 */
+	@Deprecated
 	public byte [] assinar( String alias, String pin, Documento documento ) throws ErroAoAssinarException {
-		try {
-			
-			X509Certificate signatario = this.consultar(alias);
-			List<Certificate> cadeia = this.consultarCadeia(alias);
-			PrivateKey chavePrivada = this.smartCard.getChavePrivada(alias);
-			
-			Atributos atributos = this.gerarAtributos(documento);
-			atributos.setAtributosAssinados(assinarRSA(atributos.getAtributosGerados(), chavePrivada));
-
+		return this.assinar(alias, documento);
+	}
+	
+	/**
+	 * @deprecated O PIN não é utilizado na assinatura: o token é autenticado
+	 *             por {@link #inicializar(String)}. Utilize
+	 *             {@link #assinar(String, Documento, boolean)}.
+	 */
+	@Deprecated
+	public byte [] assinar( String alias, String pin, Documento documento, boolean incluirHashArvore ) throws ErroAoAssinarException {
+		return this.assinar(alias, documento, incluirHashArvore);
+	}
+	
+	/**
+	 * Assina o documento gerando uma assinatura CMS <i>detached</i>.
+	 * <p>
+	 * Os hashes são calculados na thread chamadora; a assinatura é executada
+	 * pela thread proprietária do token, aguardando a sua vez na fila do
+	 * {@link ExecutorToken}.
+	 * 
+	 * @param alias
+	 *            alias do certificado do signatário.
+	 * @param documento
+	 *            {@link Documento} documento a ser assinado.
+	 * @param incluirHashArvore
+	 *            <code>true</code> para incluir o atributo assinado com o hash
+	 *            em árvore do documento (ver {@link UtilsHashArvore}), calculado
+	 *            em paralelo com {@link #ALGORITMO_HASH_ARVORE}. Requer o OID
+	 *            do atributo configurado em
+	 *            {@link UtilsHashArvore#PROPRIEDADE_OID}.
+	 * @return assinatura codificada em DER.
+	 * @throws ErroAoAssinarException
+	 *             Em caso de erros ao assinar o documento ou caso o hash em
+	 *             árvore seja solicitado sem o OID configurado.
+	 */
+	public byte [] assinar( String alias, Documento documento, boolean incluirHashArvore ) throws ErroAoAssinarException {
 		
-			//Informações certificado do signatário
-			X509CertificateHolder signatarioHolder = new X509CertificateHolder(signatario.getEncoded());
-			
-			SignerInfo signerInfo = UtilsAsn1.gerarSignerInfo(atributos, signatarioHolder, ALGORITMO_ASSINATURA);
-			 
-			// Conjunto dos certificados
-			ASN1Set certificates = UtilsAsn1.gerarCertificates(signatario, cadeia);
-			
-			// Conjunto das LCRs (sempre vazio)
-			ASN1Set certrevlist = null;
-	 
-			// Conteúdo é nulo (assinatura detached, não anexada)
-			ContentInfo encInfo = new ContentInfo(CMSObjectIdentifiers.data, null);
-			
-			// digestAlgorithms
-			ASN1Set digestAlgorithms = new DERSet(signerInfo.getDigestAlgorithm());
-	 
-			// Estrutura da informação assinada
-			SignedData sd = new SignedData(digestAlgorithms, encInfo, certificates, certrevlist, new DERSet(signerInfo));
-			ContentInfo cms = new ContentInfo(CMSObjectIdentifiers.signedData, sd);
-			byte [] assinatura = cms.getEncoded();
+		List<Attribute> adicionais = new ArrayList<>();
+		byte[] hash;
+		try {
+			if (incluirHashArvore) {
+				// Verificado antes do cálculo, que percorre todo o documento
+				if (UtilsHashArvore.getOid() == null) {
+					throw new ErroAoAssinarException("Hash em árvore não habilitado: OID do atributo não configurado (propriedade "
+							+ UtilsHashArvore.PROPRIEDADE_OID + ")");
+				}
+				byte[] raiz = documento.getHashArvore(ALGORITMO_HASH_ARVORE);
+				adicionais.add(UtilsHashArvore.gerarAtributo(ALGORITMO_HASH_ARVORE, UtilsHashArvore.TAMANHO_SEGMENTO_PADRAO, raiz));
+			}
 			
-			return assinatura;
+			// Somente o hash é necessário: documentos em modo streaming nunca
+			// têm o conteúdo carregado em memória
+			hash = documento.getHash(ALGORITMO_HASH);
 			
-		} catch (Exception e) {
+		} catch (NoSuchAlgorithmException | RuntimeException e) {
 			throw new ErroAoAssinarException(e);
 		}
 		
+		return this.assinarHash(alias, ALGORITMO_HASH, hash, adicionais);
 	}
 	
-	private Atributos gerarAtributos( Documento documento ) throws ErroAoAssinarException {
-		
+	/**
+	 * Assina um hash previamente calculado do documento, gerando a mesma
+	 * assinatura CMS <i>detached</i> de
+	 * {@link #assinar(String, Documento)} sem necessitar do conteúdo
+	 * do documento.
+	 * <p>
+	 * O algoritmo de hash informado é utilizado no atributo
+	 * <i>messageDigest</i>, no <i>digestAlgorithm</i> do <i>SignerInfo</i> e
+	 * na assinatura dos atributos (ex: SHA-256 resulta em SHA256WithRSA).
+	 * 
+	 * @param alias
+	 *            alias do certificado do signatário.
+	 * @param algoritmoHash
+	 *            algoritmo com o qual o hash foi calculado (ex: SHA-256).
+	 * @param hash
+	 *            hash do documento.
+	 * @return assinatura codificada em DER.
+	 * @throws ErroAoAssinarException
+	 *             Caso o algoritmo não seja suportado, o tamanho do hash não
+	 *             corresponda ao algoritmo ou ocorram erros ao assinar.
+	 */
+	public byte [] assinarHash( String alias, String algoritmoHash, byte[] hash ) throws ErroAoAssinarException {
+		return this.assinarHash(alias, algoritmoHash, hash, Collections.<Attribute>emptyList());
+	}
+	
+	/**
+	 * Assina o documento de forma assíncrona.
+	 * <p>
+	 * O hash do documento é calculado na thread chamadora; somente a
+	 * assinatura é submetida ao {@link ExecutorToken}, que executa uma
+	 * operação por vez sobre o token. Pode ser chamado concorrentemente por
+	 * várias threads.
+	 * 
+	 * @param alias
+	 *            alias do certificado do signatário.
+	 * @param documento
+	 *            {@link Documento} documento a ser assinado.
+	 * @return {@link CompletableFuture} concluído com a assinatura codificada
+	 *         em DER ou excepcionalmente em caso de erro, fila cheia ou tempo
+	 *         limite excedido.
+	 */
+	public CompletableFuture<byte []> assinarAsync( String alias, Documento documento ) {
+		byte[] hash;
 		try {
-			// Gera tabela com os atributos da assinatura
-			ASN1EncodableVector vetorAtributos = new ASN1EncodableVector();
-	 
-			// Atributo contentType
-			Attribute attr = new Attribute(CMSAttributes.contentType, new DERSet(CMSObjectIdentifiers.data));
-			vetorAtributos.add(attr);
-	 
-			// Atributo signingTime
-			// System.out.println("time=" + new Date().getTime());
-			attr = new Attribute(CMSAttributes.signingTime, new DERSet(new Time(new Date())));
-			vetorAtributos.add(attr);
-	 
-			// Atributo messageDigest
-			
-			attr = new Attribute(CMSAttributes.messageDigest, new DERSet(new DEROctetString(documento.getHashMD5())));
-			
-			vetorAtributos.add(attr);
-	 
-			// Retorna os atributos assinados codificados em DER
-			DERSet signedAttr = new DERSet(vetorAtributos);
-			byte[] encoded = signedAttr.getEncoded(ASN1Encoding.DER);
+			hash = documento.getHash(ALGORITMO_HASH);
+		} catch (NoSuchAlgorithmException | RuntimeException e) {
+			CompletableFuture<byte []> erro = new CompletableFuture<>();
+			erro.completeExceptionally(new ErroAoAssinarException(e));
+			return erro;
+		}
+		return this.assinarHashAsync(alias, ALGORITMO_HASH, hash);
+	}
+	
+	/**
+	 * @deprecated O PIN não é utilizado na assinatura: o token é autenticado
+	 *             por {@link #inicializar(String)}. Utilize
+	 *             {@link #assinarAsync(String, Documento)}.
+	 */
+	@Deprecated
+	public CompletableFuture<byte []> assinarAsync( String alias, String pin, Documento documento ) {
+		return this.assinarAsync(alias, documento);
+	}
+	
+	/**
+	 * Assina um hash previamente calculado de forma assíncrona.
+	 * 
+	 * @see #assinarHash(String, String, byte[])
+	 * @see #assinarAsync(String, Documento)
+	 */
+	public CompletableFuture<byte []> assinarHashAsync( String alias, String algoritmoHash, byte[] hash ) {
+		return this.getExecutorToken().submeter(() -> this.assinarHash(this.resolverSignatario(alias), algoritmoHash, hash, Collections.<Attribute>emptyList()));
+	}
+	
+	/**
+	 * Retorna o executor de operações do token, criando-o com a configuração
+	 * padrão caso não tenha sido definido.
+	 */
+	public synchronized ExecutorToken getExecutorToken() {
+		if (this.executorToken == null || this.executorToken.isFechado()) {
+			this.executorToken = new ExecutorToken(this.getOs() == null ? "padrao" : this.getOs());
+		}
+		return this.executorToken;
+	}
+	
+	/**
+	 * Define o executor de operações do token (ex: para configurar a
+	 * capacidade da fila, a contrapressão e o tempo limite).
+	 * 
+	 * @param executorToken
+	 *            {@link ExecutorToken} executor do token.
+	 */
+	public synchronized void setExecutorToken( ExecutorToken executorToken ) {
+		if (this.executorToken != null && this.executorToken != executorToken) {
+			this.executorToken.close();
+		}
+		this.executorToken = executorToken;
+	}
+	
+	/**
+	 * Assina em lote os documentos informados com o certificado do alias.
+	 * 
+	 * @see #assinarLote(String, List, ProgressoAssinatura)
+	 */
+	public List<ResultadoAssinatura> assinarLote( String alias, List<Documento> documentos ) throws ErroAoAssinarException {
+		return this.assinarLote(alias, documentos, null);
+	}
+	
+	/**
+	 * Assina em lote os documentos informados com o certificado do alias.
+	 * <p>
+	 * O certificado, a cadeia e a chave privada são obtidos do smart card uma
+	 * única vez e a mesma instância de assinatura é reutilizada para todos os
+	 * documentos. Erros em um documento são registrados no respectivo
+	 * {@link ResultadoAssinatura} sem interromper o restante do lote.
+	 * 
+	 * @param alias
+	 *            alias do certificado do signatário.
+	 * @param documentos
+	 *            {@link List} documentos a serem assinados.
+	 * @param progresso
+	 *            {@link ProgressoAssinatura} notificado a cada documento
+	 *            processado (opcional); permite gravar cada assinatura assim
+	 *            que gerada.
+	 * @return {@link List} resultados na mesma ordem dos documentos.
+	 * @throws ErroAoAssinarException
+	 *             Caso não seja possível obter o material do signatário.
+	 */
+	public List<ResultadoAssinatura> assinarLote( String alias, List<Documento> documentos, ProgressoAssinatura progresso ) throws ErroAoAssinarException {
+		
+		Signatario signatario = this.aguardarToken(() -> this.resolverSignatario(alias));
+		
+		List<ResultadoAssinatura> resultados = new ArrayList<>(documentos.size());
+		for (int i = 0; i < documentos.size(); i++) {
+			ResultadoAssinatura resultado = new ResultadoAssinatura().setIndice(i);
+			try {
+				byte[] hash = documentos.get(i).getHash(ALGORITMO_HASH);
+				resultado.setAssinatura(this.aguardarToken(() -> this.assinarHash(signatario, ALGORITMO_HASH, hash, Collections.<Attribute>emptyList())));
+			} catch (ErroAoAssinarException e) {
+				resultado.setErro(e);
+			} catch (NoSuchAlgorithmException | RuntimeException e) {
+				resultado.setErro(new ErroAoAssinarException(e));
+			}
 			
-			return new Atributos(encoded);
+			resultados.add(resultado);
+			if (progresso != null) {
+				progresso.documentoProcessado(i + 1, documentos.size(), resultado);
+			}
+		}
 		
-		} catch (NoSuchAlgorithmException | IOException e) {
+		return resultados;
+	}
+	
+	private byte [] assinarHash( String alias, String algoritmoHash, byte[] hash, List<Attribute> adicionais ) throws ErroAoAssinarException {
+		return this.aguardarToken(() -> this.assinarHash(this.resolverSignatario(alias), algoritmoHash, hash, adicionais));
+	}
+	
+	/**
+	 * Executa a operação de assinatura na thread proprietária do token e
+	 * aguarda o resultado.
+	 */
+	private <T> T aguardarToken( Callable<T> operacao ) throws ErroAoAssinarException {
+		try {
+			return this.getExecutorToken().aguardar(operacao);
+		} catch (ErroAoAssinarException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new ErroAoAssinarException(e);
+		}
+	}
+	
+	private byte [] assinarHash( Signatario signatario, String algoritmoHash, byte[] hash, List<Attribute> adicionais ) throws ErroAoAssinarException {
+		try {
+			return signatario.assinarHash(algoritmoHash, hash, adicionais);
+		} catch (GeneralSecurityException | ProviderException e) {
+			// O handle da chave pode ter sido perdido (ex: token removido)
+			this.signatarios.remove(signatario.getAlias(), signatario);
+			throw new ErroAoAssinarException(e);
+		} catch (IOException | RuntimeException e) {
+			// Inclui o IllegalArgumentException do BouncyCastle para
+			// algoritmos desconhecidos
 			throw new ErroAoAssinarException(e);
 		}
-		
 	}
 	
 	/**
-	 * Assina digitalmente o dado com a chave privada do signatário informada.
+	 * Remove do cache o material de todos os signatários.
 	 * <p>
-	 * A suíte de assinatura será obtida por meio do método
-	 * {@link #getSuiteAssinatura()}.
+	 * Deve ser chamado quando o token for removido ou reinicializado; é
+	 * chamado automaticamente por {@link #inicializar(String)}.
+	 */
+	public void invalidarCache() {
+		this.signatarios.clear();
+	}
+	
+	/**
+	 * Remove do cache o material do signatário do alias informado.
 	 * 
-	 * @param dado
-	 *            informação para assinar (gerada pelo método
-	 *            {@link #gerarInformacaoParaAssinar(byte[], Certificate)}).
-	 * @param chavePrivada
-	 *            {@link PrivateKey} chave privada do signatário.
-	 * @return dado assinado (cifrado) com a chave privada informada.
-	 * @throws Exception
-	 *             Em caso de erros ao realizar a assinatura do dado informado.
+	 * @param alias
+	 *            alias do certificado do signatário.
 	 */
-	// TODO Criar esquema de fallback com os algoritmos suportados pelo cliente.
-	private static byte[] assinarRSA(byte[] dado, PrivateKey chavePrivada) throws Exception {
-		Signature signature = Signature.getInstance(ALGORITMO_ASSINATURA);
-		signature.initSign(chavePrivada);
-		signature.update(dado);
-		return signature.sign();
+	public void invalidarCache( String alias ) {
+		this.signatarios.remove(alias);
 	}
 	
+	/**
+	 * Retorna o certificado, a cadeia e a chave privada do alias, consultando
+	 * o smart card somente se não estiverem em cache.
+	 */
+	private Signatario resolverSignatario( String alias ) throws ErroAoAssinarException {
+		Signatario signatario = this.signatarios.get(alias);
+		if (signatario != null) {
+			return signatario;
+		}
+		
+		try {
+			X509Certificate certificado = this.consultar(alias);
+			List<Certificate> cadeia = this.consultarCadeia(alias);
+			PrivateKey chavePrivada = this.smartCard.getChavePrivada(alias);
+			if (certificado == null || chavePrivada == null) {
+				throw new ErroAoAssinarException("Certificado ou chave privada não encontrados para o alias " + alias);
+			}
+			
+			if (cadeia != null) {
+				cadeia = UtilsX509.ordenarCadeia(cadeia);
+			}
+			
+			signatario = new Signatario(alias, certificado, cadeia, chavePrivada, this.smartCard.isHashNoHost());
+			this.signatarios.put(alias, signatario);
+			return signatario;
+			
+		} catch (ErroAoAssinarException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new ErroAoAssinarException(e);
+		}
+	}
 	
-	private CertificadoDTO build(X509Certificate certificado, String alias) {
+	static CertificadoDTO build(X509Certificate certificado, String alias) {
 		
 		X500Principal principal  = certificado.getSubjectX500Principal();
 		
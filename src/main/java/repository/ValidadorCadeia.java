@@ -0,0 +1,393 @@
+package repository;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.cert.CertPathValidator;
+import java.security.cert.CertPathValidatorException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.security.cert.PKIXParameters;
+import java.security.cert.X509CRL;
+import java.security.cert.X509CRLEntry;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Validação PKIX de cadeias de certificação com cache dos resultados.
+ * <p>
+ * A cadeia é construída pelo {@link util.ConstrutorCadeia} do
+ * {@link RepositorioConfianca} e validada pelo {@link CertPathValidator}
+ * contra as âncoras do repositório e, quando informadas, as LCRs ou o
+ * {@link RepositorioRevogacao} com os índices das LCRs.
+ * <p>
+ * Somente o período de validade dos certificados é verificado na data de
+ * validação informada (ex: signingTime), que é declarada pelo signatário e
+ * não é confiável. A revogação é sempre verificada na data atual, com as LCRs
+ * vigentes: um certificado revogado é rejeitado qualquer que seja a data de
+ * revogação, de modo que uma data de assinatura retroativa não evita a
+ * rejeição.
+ * <p>
+ * O resultado (válido ou não) é mantido em cache indexado pelo SHA-256 da
+ * cadeia e pelo intervalo de tempo (<i>bucket</i>) da data de validação, de
+ * modo que a validação de documentos de um mesmo signatário é paga uma única
+ * vez por intervalo. Como a revogação não depende da data de validação, um
+ * resultado em cache só é reutilizado enquanto a data de validação estiver
+ * no período de validade de todos os certificados da cadeia e antes da
+ * próxima atualização (<i>nextUpdate</i>) das LCRs dos emissores da cadeia;
+ * a versão do repositório de revogação também compõe a chave, invalidando os
+ * resultados a cada nova LCR. O cache é limitado e descarta os resultados
+ * utilizados há mais tempo (LRU).
+ *
+ */
+public class ValidadorCadeia {
+
+	public static final int CAPACIDADE_PADRAO = 4096;
+	public static final long INTERVALO_PADRAO_MINUTOS = 60;
+
+	private static final String ALGORITMO_IMPRESSAO = "SHA-256";
+
+	private final RepositorioConfianca confianca;
+	private final Collection<X509CRL> lcrs;
+	private final RepositorioRevogacao revogacao;
+	private final int capacidade;
+	private final long intervaloMillis;
+
+	/**
+	 * Resultados em ordem de acesso (LRU).
+	 */
+	private final Map<ByteBuffer, Resultado> cache;
+
+	private final AtomicLong acertos = new AtomicLong();
+	private final AtomicLong validacoes = new AtomicLong();
+
+	/**
+	 * @param confianca
+	 *            {@link RepositorioConfianca} âncoras e ACs intermediárias.
+	 * @param lcrs
+	 *            {@link Collection} LCRs para a verificação de revogação;
+	 *            vazia para não verificar.
+	 */
+	public ValidadorCadeia(RepositorioConfianca confianca, Collection<X509CRL> lcrs) {
+		this(confianca, lcrs, CAPACIDADE_PADRAO, INTERVALO_PADRAO_MINUTOS, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * @param confianca
+	 *            {@link RepositorioConfianca} âncoras e ACs intermediárias.
+	 * @param lcrs
+	 *            {@link Collection} LCRs para a verificação de revogação;
+	 *            vazia para não verificar.
+	 * @param capacidade
+	 *            quantidade máxima de resultados em cache.
+	 * @param intervalo
+	 *            duração do intervalo de tempo no qual datas de validação
+	 *            compartilham o mesmo resultado.
+	 * @param unidade
+	 *            {@link TimeUnit} unidade do intervalo.
+	 */
+	public ValidadorCadeia(RepositorioConfianca confianca, Collection<X509CRL> lcrs, int capacidade, long intervalo, TimeUnit unidade) {
+		this(confianca, lcrs, null, capacidade, intervalo, unidade);
+	}
+
+	/**
+	 * @param confianca
+	 *            {@link RepositorioConfianca} âncoras e ACs intermediárias.
+	 * @param revogacao
+	 *            {@link RepositorioRevogacao} índices das LCRs para a
+	 *            verificação de revogação.
+	 */
+	public ValidadorCadeia(RepositorioConfianca confianca, RepositorioRevogacao revogacao) {
+		this(confianca, revogacao, CAPACIDADE_PADRAO, INTERVALO_PADRAO_MINUTOS, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * @param confianca
+	 *            {@link RepositorioConfianca} âncoras e ACs intermediárias.
+	 * @param revogacao
+	 *            {@link RepositorioRevogacao} índices das LCRs para a
+	 *            verificação de revogação.
+	 * @param capacidade
+	 *            quantidade máxima de resultados em cache.
+	 * @param intervalo
+	 *            duração do intervalo de tempo no qual datas de validação
+	 *            compartilham o mesmo resultado.
+	 * @param unidade
+	 *            {@link TimeUnit} unidade do intervalo.
+	 */
+	public ValidadorCadeia(RepositorioConfianca confianca, RepositorioRevogacao revogacao, int capacidade, long intervalo, TimeUnit unidade) {
+		this(confianca, Collections.<X509CRL>emptyList(), revogacao, capacidade, intervalo, unidade);
+	}
+
+	private ValidadorCadeia(RepositorioConfianca confianca, Collection<X509CRL> lcrs, RepositorioRevogacao revogacao, int capacidade,
+			long intervalo, TimeUnit unidade) {
+		this.confianca = confianca;
+		this.lcrs = Collections.unmodifiableList(new ArrayList<>(lcrs));
+		this.revogacao = revogacao;
+		this.capacidade = capacidade;
+		this.intervaloMillis = unidade.toMillis(intervalo);
+		this.cache = new LinkedHashMap<>(16, 0.75f, true);
+	}
+
+	/**
+	 * Valida a cadeia do certificado: o período de validade na data
+	 * informada e a revogação na data atual.
+	 *
+	 * @param certificado
+	 *            {@link X509Certificate} certificado de entidade final.
+	 * @param adicionais
+	 *            {@link Supplier} dos certificados adicionais (ex: incluídos
+	 *            na assinatura), consultado somente se a cadeia não puder ser
+	 *            construída com o repositório de confiança.
+	 * @param data
+	 *            {@link Date} data de referência do período de validade dos
+	 *            certificados; não é utilizada na verificação de revogação.
+	 * @return {@link List} cadeia validada, do certificado até a âncora.
+	 * @throws CertPathValidatorException
+	 *             Caso a cadeia não possa ser construída, seja inválida na
+	 *             data informada ou possua certificado revogado.
+	 */
+	public List<X509Certificate> validar(X509Certificate certificado, Supplier<Collection<? extends Certificate>> adicionais, Date data)
+			throws CertPathValidatorException {
+		List<X509Certificate> cadeia = this.confianca.getConstrutorCadeia().construir(certificado);
+		if (!this.isAncorada(cadeia) && adicionais != null) {
+			cadeia = this.confianca.getConstrutorCadeia().construir(certificado, adicionais.get());
+		}
+
+		ByteBuffer chave = this.chave(cadeia, data.getTime() / this.intervaloMillis, (this.revogacao == null ? 0 : this.revogacao.getVersao()));
+		long referencia = data.getTime();
+		long agora = System.currentTimeMillis();
+
+		Resultado resultado;
+		synchronized (this.cache) {
+			resultado = this.cache.get(chave);
+		}
+		if (resultado != null && resultado.isAplicavel(referencia, agora)) {
+			this.acertos.incrementAndGet();
+		} else {
+			// Validação fora do lock
+			resultado = this.validarPkix(cadeia, data, agora);
+			this.validacoes.incrementAndGet();
+			this.armazenar(chave, resultado, agora);
+		}
+
+		if (resultado.erro != null) {
+			throw new CertPathValidatorException(resultado.erro);
+		}
+		return cadeia;
+	}
+
+	/**
+	 * Quantidade de validações atendidas pelo cache.
+	 */
+	public long getAcertos() {
+		return this.acertos.get();
+	}
+
+	/**
+	 * Quantidade de validações PKIX efetivamente realizadas.
+	 */
+	public long getValidacoes() {
+		return this.validacoes.get();
+	}
+
+	public int getTamanhoCache() {
+		synchronized (this.cache) {
+			return this.cache.size();
+		}
+	}
+
+	private Resultado validarPkix(List<X509Certificate> cadeia, Date data, long agora) {
+		long inicio = Long.MIN_VALUE;
+		long fim = Long.MAX_VALUE;
+		for (X509Certificate certificado : cadeia) {
+			inicio = Math.max(inicio, certificado.getNotBefore().getTime());
+			fim = Math.min(fim, certificado.getNotAfter().getTime());
+		}
+		long proximaAtualizacao = this.getProximaAtualizacao(cadeia, agora);
+
+		if (!this.isAncorada(cadeia)) {
+			return new Resultado("Cadeia não termina em uma âncora de confiança: "
+					+ cadeia.get(cadeia.size() - 1).getIssuerX500Principal(), inicio, fim, proximaAtualizacao);
+		}
+
+		try {
+			// O caminho não inclui a âncora
+			CertificateFactory factory = CertificateFactory.getInstance("X.509");
+			PKIXParameters parametros = new PKIXParameters(this.confianca.getAncoras());
+			// A data informada vale somente para o período de validade: o
+			// RevocationChecker do JDK também a utilizaria para as LCRs
+			parametros.setDate(data);
+			parametros.setRevocationEnabled(false);
+			if (this.revogacao != null) {
+				parametros.addCertPathChecker(this.revogacao.getVerificador());
+			}
+
+			CertPathValidator.getInstance("PKIX").validate(factory.generateCertPath(cadeia.subList(0, cadeia.size() - 1)), parametros);
+			if (!this.lcrs.isEmpty()) {
+				proximaAtualizacao = Math.min(proximaAtualizacao, this.verificarRevogacao(cadeia, agora));
+			}
+			return new Resultado(null, inicio, fim, proximaAtualizacao);
+
+		} catch (CertPathValidatorException e) {
+			return new Resultado(e.getMessage(), inicio, fim, proximaAtualizacao);
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Verifica a revogação de cada certificado da cadeia, exceto a âncora, na
+	 * data atual, com a LCR mais recente do emissor que esteja vigente e cuja
+	 * assinatura confira com a chave do emissor. O certificado é rejeitado se
+	 * constar da LCR, qualquer que seja a data de revogação.
+	 *
+	 * @return menor <i>nextUpdate</i> entre as LCRs utilizadas.
+	 */
+	private long verificarRevogacao(List<X509Certificate> cadeia, long agora) throws CertPathValidatorException {
+		long proxima = Long.MAX_VALUE;
+		for (int i = 0; i < cadeia.size() - 1; i++) {
+			X509Certificate certificado = cadeia.get(i);
+			X509Certificate emissor = cadeia.get(i + 1);
+
+			X509CRL vigente = null;
+			for (X509CRL lcr : this.lcrs) {
+				if (!lcr.getIssuerX500Principal().equals(certificado.getIssuerX500Principal())
+						|| (lcr.getNextUpdate() != null && lcr.getNextUpdate().getTime() <= agora)
+						|| lcr.getThisUpdate().getTime() > agora || lcr.hasUnsupportedCriticalExtension()
+						|| (vigente != null && !lcr.getThisUpdate().after(vigente.getThisUpdate()))) {
+					continue;
+				}
+				try {
+					lcr.verify(emissor.getPublicKey());
+					vigente = lcr;
+				} catch (GeneralSecurityException e) {
+					// LCR que não confere com a chave do emissor é ignorada
+				}
+			}
+
+			if (vigente == null) {
+				throw new CertPathValidatorException("Nenhuma LCR vigente de " + certificado.getIssuerX500Principal());
+			}
+			X509CRLEntry revogado = vigente.getRevokedCertificate(certificado);
+			if (revogado != null) {
+				throw new CertPathValidatorException("Certificado " + certificado.getSerialNumber().toString(16) + " revogado em "
+						+ revogado.getRevocationDate());
+			}
+			if (vigente.getNextUpdate() != null) {
+				proxima = Math.min(proxima, vigente.getNextUpdate().getTime());
+			}
+		}
+		return proxima;
+	}
+
+	private void armazenar(ByteBuffer chave, Resultado resultado, long agora) {
+		synchronized (this.cache) {
+			if (this.cache.size() >= this.capacidade) {
+				this.cache.values().removeIf(r -> r.proximaAtualizacao <= agora);
+			}
+			this.cache.put(chave, resultado);
+			if (this.cache.size() > this.capacidade) {
+				Iterator<Resultado> iterator = this.cache.values().iterator();
+				iterator.next();
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * A cadeia termina em um certificado autoemitido que é âncora do
+	 * repositório.
+	 */
+	private boolean isAncorada(List<X509Certificate> cadeia) {
+		X509Certificate ultimo = cadeia.get(cadeia.size() - 1);
+		if (!ultimo.getSubjectX500Principal().equals(ultimo.getIssuerX500Principal())) {
+			return false;
+		}
+		return this.confianca.getAncoras().stream().anyMatch(ancora -> ultimo.equals(ancora.getTrustedCert()));
+	}
+
+	/**
+	 * Instante em que o resultado pode mudar independentemente das LCRs
+	 * utilizadas (cujo <i>nextUpdate</i> é retornado por
+	 * {@link #verificarRevogacao(List, long)}): a emissão de uma LCR dos
+	 * emissores da cadeia ainda não vigente ou o <i>nextUpdate</i> dos
+	 * índices de revogação.
+	 */
+	private long getProximaAtualizacao(List<X509Certificate> cadeia, long agora) {
+		long proxima = Long.MAX_VALUE;
+		for (X509CRL lcr : this.lcrs) {
+			long emissao = lcr.getThisUpdate().getTime();
+			if (emissao <= agora) {
+				continue;
+			}
+			for (X509Certificate certificado : cadeia) {
+				if (lcr.getIssuerX500Principal().equals(certificado.getIssuerX500Principal())) {
+					proxima = Math.min(proxima, emissao);
+				}
+			}
+		}
+		if (this.revogacao != null) {
+			for (X509Certificate certificado : cadeia) {
+				IndiceLcr indice = this.revogacao.getIndice(certificado.getIssuerX500Principal());
+				if (indice != null && indice.getProximaAtualizacao() != null) {
+					proxima = Math.min(proxima, indice.getProximaAtualizacao().getTime());
+				}
+			}
+		}
+		return proxima;
+	}
+
+	/**
+	 * SHA-256 dos certificados da cadeia seguido do intervalo de tempo e da
+	 * versão dos índices de revogação.
+	 */
+	private ByteBuffer chave(List<X509Certificate> cadeia, long intervalo, long versao) {
+		try {
+			MessageDigest md = MessageDigest.getInstance(ALGORITMO_IMPRESSAO);
+			for (X509Certificate certificado : cadeia) {
+				md.update(certificado.getEncoded());
+			}
+			ByteBuffer chave = ByteBuffer.allocate(md.getDigestLength() + 2 * Long.BYTES);
+			chave.put(md.digest()).putLong(intervalo).putLong(versao).flip();
+			return chave;
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static class Resultado {
+
+		private final String erro;
+		private final long inicio;
+		private final long fim;
+		private final long proximaAtualizacao;
+
+		Resultado(String erro, long inicio, long fim, long proximaAtualizacao) {
+			this.erro = erro;
+			this.inicio = inicio;
+			this.fim = fim;
+			this.proximaAtualizacao = proximaAtualizacao;
+		}
+
+		/**
+		 * O resultado vale para a data de referência informada enquanto os
+		 * certificados estiverem no período de validade e as LCRs não
+		 * estiverem vencidas; a revogação, verificada na data atual, não
+		 * depende da data de referência.
+		 */
+		boolean isAplicavel(long referencia, long agora) {
+			return referencia >= this.inicio && referencia <= this.fim && agora < this.proximaAtualizacao;
+		}
+	}
+}
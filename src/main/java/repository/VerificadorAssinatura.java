@@ -0,0 +1,386 @@
+package repository;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1Encoding;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.ASN1OctetString;
+import org.bouncycastle.asn1.ASN1Primitive;
+import org.bouncycastle.asn1.ASN1Sequence;
+import org.bouncycastle.asn1.ASN1Set;
+import org.bouncycastle.asn1.cms.Attribute;
+import org.bouncycastle.asn1.cms.AttributeTable;
+import org.bouncycastle.asn1.cms.CMSAttributes;
+import org.bouncycastle.asn1.cms.CMSObjectIdentifiers;
+import org.bouncycastle.asn1.cms.ContentInfo;
+import org.bouncycastle.asn1.cms.IssuerAndSerialNumber;
+import org.bouncycastle.asn1.cms.SignedData;
+import org.bouncycastle.asn1.cms.SignerInfo;
+import org.bouncycastle.asn1.cms.Time;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.x509.Certificate;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.Extensions;
+import org.bouncycastle.asn1.x509.SubjectKeyIdentifier;
+
+import model.Documento;
+import model.dto.ResultadoVerificacao;
+import model.dto.ResultadoVerificacao.Etapa;
+import model.exception.ErroAoAssinarException;
+import util.UtilsAsn1;
+import util.UtilsHash;
+import util.UtilsX509;
+
+/**
+ * Verificação de assinaturas CMS <i>detached</i> (ver
+ * {@link SmartCardRepository#assinar(String, Documento)}).
+ * <p>
+ * A assinatura é decodificada diretamente nas estruturas ASN.1
+ * {@link SignedData} e {@link SignerInfo}. Para cada signatário são
+ * verificados, nesta ordem: o atributo <i>messageDigest</i> contra o hash do
+ * documento, a assinatura sobre os atributos assinados e o certificado do
+ * signatário (validade na data da assinatura, ou na data atual quando a
+ * assinatura não possui signingTime, e uso da chave) e, quando
+ * configurado um {@link ValidadorCadeia}, a sua cadeia de certificação.
+ * <p>
+ * O resultado de cada verificação é um {@link ResultadoVerificacao} com a
+ * etapa que falhou e a duração de cada etapa. Lotes são verificados em
+ * paralelo em um {@link ForkJoinPool}.
+ *
+ */
+public class VerificadorAssinatura {
+
+	/**
+	 * Quantidade de pares (documento, assinatura) a partir da qual uma tarefa
+	 * do lote é dividida.
+	 */
+	private static final int LIMIAR_DIVISAO = 8;
+
+	private final ForkJoinPool pool;
+	private final ValidadorCadeia validador;
+
+	/**
+	 * Verificador que processa lotes no {@link ForkJoinPool#commonPool()},
+	 * sem validação da cadeia de certificação.
+	 */
+	public VerificadorAssinatura() {
+		this(ForkJoinPool.commonPool(), null);
+	}
+
+	/**
+	 * @param pool
+	 *            {@link ForkJoinPool} no qual os lotes são verificados.
+	 * @param validador
+	 *            {@link ValidadorCadeia} da cadeia do signatário (validade na
+	 *            data da assinatura, revogação na data atual) ou
+	 *            <code>null</code> para não validar.
+	 */
+	public VerificadorAssinatura(ForkJoinPool pool, ValidadorCadeia validador) {
+		this.pool = pool;
+		this.validador = validador;
+	}
+
+	/**
+	 * Verifica a assinatura <i>detached</i> do documento.
+	 *
+	 * @param documento
+	 *            {@link Documento} documento assinado.
+	 * @param assinatura
+	 *            assinatura CMS codificada em DER (.p7s).
+	 * @return {@link ResultadoVerificacao} resultado da verificação; nunca
+	 *         lança exceção por assinatura inválida.
+	 */
+	public ResultadoVerificacao verificar(Documento documento, byte[] assinatura) {
+		ResultadoVerificacao resultado = new ResultadoVerificacao();
+		Etapa etapa = Etapa.DECODIFICACAO;
+		long inicio = System.nanoTime();
+		try {
+			SignedData signedData = decodificar(assinatura);
+			ASN1Set signerInfos = signedData.getSignerInfos();
+			if (signerInfos.size() == 0) {
+				throw new IllegalArgumentException("Assinatura sem signatários");
+			}
+
+			Set<String> algoritmos = new LinkedHashSet<>();
+			for (ASN1Encodable signerInfo : signerInfos) {
+				algoritmos.add(UtilsHash.getAlgoritmo(SignerInfo.getInstance(signerInfo).getDigestAlgorithm().getAlgorithm().getId()));
+			}
+			inicio = this.registrar(resultado, etapa, inicio);
+
+			// Hashes de todos os signatários em uma única passagem sobre o
+			// documento
+			etapa = Etapa.HASH;
+			Map<String, byte[]> hashes = documento.getHashes(algoritmos.toArray(new String[algoritmos.size()]));
+			inicio = this.registrar(resultado, etapa, inicio);
+
+			for (int i = 0; i < signerInfos.size(); i++) {
+				etapa = Etapa.DECODIFICACAO;
+				SignerInfo signerInfo = SignerInfo.getInstance(signerInfos.getObjectAt(i));
+				X509Certificate certificado = localizarCertificado(signedData, signerInfo);
+
+				ASN1Set signedAttrs = signerInfo.getAuthenticatedAttributes();
+				if (signedAttrs == null) {
+					throw new IllegalArgumentException("Assinatura sem atributos assinados não suportada");
+				}
+				AttributeTable atributos = new AttributeTable(signedAttrs);
+				String algoritmoHash = UtilsHash.getAlgoritmo(signerInfo.getDigestAlgorithm().getAlgorithm().getId());
+				Date dataAssinatura = getDataAssinatura(atributos);
+				// Sem signingTime o certificado é verificado na data atual
+				Date dataReferencia = (dataAssinatura == null ? new Date() : dataAssinatura);
+
+				if (i == 0) {
+					resultado.setCertificado(certificado).setAlgoritmoHash(algoritmoHash)
+							.setDataAssinatura(dataAssinatura).setDataReferencia(dataReferencia);
+				}
+				inicio = this.registrar(resultado, etapa, inicio);
+
+				// messageDigest e contentType
+				etapa = Etapa.HASH;
+				verificarHash(hashes.get(algoritmoHash), atributos, signedData);
+				inicio = this.registrar(resultado, etapa, inicio);
+
+				// Assinatura sobre os atributos assinados (DER, tag SET)
+				etapa = Etapa.ASSINATURA;
+				Signature signature = Signature.getInstance(getAlgoritmoAssinatura(signerInfo, algoritmoHash));
+				signature.initVerify(certificado.getPublicKey());
+				signature.update(signedAttrs.getEncoded(ASN1Encoding.DER));
+				if (!signature.verify(signerInfo.getEncryptedDigest().getOctets())) {
+					throw new SecurityException("Assinatura não confere com os atributos assinados");
+				}
+				inicio = this.registrar(resultado, etapa, inicio);
+
+				etapa = Etapa.CERTIFICADO;
+				verificarCertificado(certificado, dataReferencia);
+				if (this.validador != null) {
+					this.validador.validar(certificado, () -> getCertificados(signedData), dataReferencia);
+				}
+				inicio = this.registrar(resultado, etapa, inicio);
+			}
+			return resultado.setValida(true);
+
+		} catch (Exception e) {
+			this.registrar(resultado, etapa, inicio);
+			return resultado.setErro(etapa, e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName());
+		}
+	}
+
+	/**
+	 * Verifica a assinatura <i>detached</i> de um documento em arquivo.
+	 * <p>
+	 * Somente a assinatura é lida para o heap. O documento é processado em
+	 * modo streaming (ver {@link Documento#streaming(File)}) com os
+	 * algoritmos de hash declarados nas {@link SignerInfo}, em uma única
+	 * passagem e com consumo de memória independente do seu tamanho.
+	 *
+	 * @param documento
+	 *            {@link File} arquivo do documento assinado.
+	 * @param assinatura
+	 *            {@link File} arquivo da assinatura CMS (.p7s).
+	 * @return {@link ResultadoVerificacao} resultado da verificação.
+	 */
+	public ResultadoVerificacao verificar(File documento, File assinatura) {
+		long inicio = System.nanoTime();
+		byte[] conteudoAssinatura;
+		try {
+			conteudoAssinatura = Files.readAllBytes(assinatura.toPath());
+		} catch (IOException e) {
+			return new ResultadoVerificacao().addTempo(Etapa.DECODIFICACAO, System.nanoTime() - inicio)
+					.setErro(Etapa.DECODIFICACAO, "Erro ao ler a assinatura: " + e.getMessage());
+		}
+		return this.verificar(Documento.streaming(documento), conteudoAssinatura);
+	}
+
+	/**
+	 * Verifica em paralelo as assinaturas de um lote de documentos.
+	 *
+	 * @param documentos
+	 *            {@link List} documentos assinados.
+	 * @param assinaturas
+	 *            {@link List} assinaturas na mesma ordem dos documentos.
+	 * @return {@link List} resultados na ordem dos documentos (ver
+	 *         {@link ResultadoVerificacao#getIndice()}).
+	 */
+	public List<ResultadoVerificacao> verificarLote(List<Documento> documentos, List<byte[]> assinaturas) {
+		if (documentos.size() != assinaturas.size()) {
+			throw new IllegalArgumentException("Quantidade de documentos (" + documentos.size()
+					+ ") diferente da quantidade de assinaturas (" + assinaturas.size() + ")");
+		}
+
+		ResultadoVerificacao[] resultados = new ResultadoVerificacao[documentos.size()];
+		this.pool.invoke(new TarefaLote(documentos, assinaturas, resultados, 0, resultados.length));
+		return new ArrayList<>(Arrays.asList(resultados));
+	}
+
+	private long registrar(ResultadoVerificacao resultado, Etapa etapa, long inicio) {
+		long fim = System.nanoTime();
+		resultado.addTempo(etapa, fim - inicio);
+		return fim;
+	}
+
+	private static SignedData decodificar(byte[] assinatura) throws Exception {
+		ContentInfo contentInfo = ContentInfo.getInstance(ASN1Primitive.fromByteArray(assinatura));
+		if (!CMSObjectIdentifiers.signedData.equals(contentInfo.getContentType())) {
+			throw new IllegalArgumentException("Conteúdo não é signedData: " + contentInfo.getContentType());
+		}
+		return SignedData.getInstance(contentInfo.getContent());
+	}
+
+	/**
+	 * Localiza no conjunto <i>certificates</i> o certificado identificado
+	 * pelo <i>sid</i> da {@link SignerInfo}.
+	 */
+	private static X509Certificate localizarCertificado(SignedData signedData, SignerInfo signerInfo) throws Exception {
+		ASN1Set certificates = signedData.getCertificates();
+		if (certificates != null) {
+			ASN1Encodable sid = signerInfo.getSID().getId();
+			for (ASN1Encodable objeto : certificates) {
+				if (!(objeto.toASN1Primitive() instanceof ASN1Sequence)) {
+					// Outros formatos de certificado
+					continue;
+				}
+
+				Certificate certificado = Certificate.getInstance(objeto);
+				if (identifica(sid, certificado)) {
+					return UtilsX509.gerarCertificado(certificado.getEncoded(ASN1Encoding.DER));
+				}
+			}
+		}
+		throw new IllegalArgumentException("Certificado do signatário não incluído na assinatura");
+	}
+
+	/**
+	 * Certificados X.509 do conjunto <i>certificates</i> da assinatura.
+	 */
+	private static List<java.security.cert.Certificate> getCertificados(SignedData signedData) {
+		List<java.security.cert.Certificate> certificados = new ArrayList<>();
+		if (signedData.getCertificates() != null) {
+			for (ASN1Encodable objeto : signedData.getCertificates()) {
+				if (objeto.toASN1Primitive() instanceof ASN1Sequence) {
+					try {
+						certificados.add(UtilsX509.gerarCertificado(objeto.toASN1Primitive().getEncoded(ASN1Encoding.DER)));
+					} catch (Exception e) {
+						// Certificado inválido não participa da cadeia
+					}
+				}
+			}
+		}
+		return certificados;
+	}
+
+	private static boolean identifica(ASN1Encodable sid, Certificate certificado) {
+		if (sid instanceof ASN1OctetString) {
+			// subjectKeyIdentifier [0]
+			Extensions extensoes = certificado.getTBSCertificate().getExtensions();
+			Extension ski = (extensoes == null ? null : extensoes.getExtension(Extension.subjectKeyIdentifier));
+			return ski != null && Arrays.equals(((ASN1OctetString) sid).getOctets(),
+					SubjectKeyIdentifier.getInstance(ski.getParsedValue()).getKeyIdentifier());
+		}
+
+		IssuerAndSerialNumber emissorSerial = IssuerAndSerialNumber.getInstance(sid);
+		return emissorSerial.getSerialNumber().getValue().equals(certificado.getSerialNumber().getValue())
+				&& emissorSerial.getName().equals(certificado.getIssuer());
+	}
+
+	private static void verificarHash(byte[] hashDocumento, AttributeTable atributos, SignedData signedData) {
+		Attribute contentType = UtilsAsn1.getAtributo(atributos, CMSAttributes.contentType);
+		ASN1ObjectIdentifier tipoConteudo = signedData.getEncapContentInfo().getContentType();
+		if (contentType == null || !tipoConteudo.equals(contentType.getAttrValues().getObjectAt(0))) {
+			throw new SecurityException("Atributo contentType ausente ou diferente de " + tipoConteudo);
+		}
+
+		Attribute messageDigest = UtilsAsn1.getAtributo(atributos, CMSAttributes.messageDigest);
+		if (messageDigest == null || messageDigest.getAttrValues().size() != 1) {
+			throw new SecurityException("Atributo messageDigest ausente");
+		}
+
+		byte[] hashAssinado = ASN1OctetString.getInstance(messageDigest.getAttrValues().getObjectAt(0)).getOctets();
+		if (!MessageDigest.isEqual(hashAssinado, hashDocumento)) {
+			throw new SecurityException("Hash do documento não confere com o atributo messageDigest");
+		}
+	}
+
+	private static void verificarCertificado(X509Certificate certificado, Date dataReferencia) throws Exception {
+		certificado.checkValidity(dataReferencia);
+
+		// digitalSignature ou nonRepudiation
+		boolean[] usoChave = certificado.getKeyUsage();
+		if (usoChave != null && !usoChave[0] && !usoChave[1]) {
+			throw new SecurityException("Certificado não permite assinatura digital");
+		}
+	}
+
+	/**
+	 * Data do atributo signingTime ou <code>null</code>, caso ausente.
+	 */
+	private static Date getDataAssinatura(AttributeTable atributos) {
+		Attribute signingTime = UtilsAsn1.getAtributo(atributos, CMSAttributes.signingTime);
+		if (signingTime == null) {
+			return null;
+		}
+		return Time.getInstance(signingTime.getAttrValues().getObjectAt(0)).getDate();
+	}
+
+	/**
+	 * Nome JCA do algoritmo de assinatura: rsaEncryption é combinado com o
+	 * algoritmo de hash; os demais são resolvidos pelo OID.
+	 */
+	private static String getAlgoritmoAssinatura(SignerInfo signerInfo, String algoritmoHash) throws ErroAoAssinarException {
+		ASN1ObjectIdentifier oid = signerInfo.getDigestEncryptionAlgorithm().getAlgorithm();
+		if (PKCSObjectIdentifiers.rsaEncryption.equals(oid)) {
+			return Signatario.getAlgoritmoAssinatura(algoritmoHash);
+		}
+		return oid.getId();
+	}
+
+	/**
+	 * Verifica os pares <code>[primeiro, ultimo)</code> do lote, dividindo a
+	 * faixa enquanto for maior que {@link #LIMIAR_DIVISAO}.
+	 */
+	private class TarefaLote extends RecursiveAction {
+
+		private static final long serialVersionUID = -2086314655472263427L;
+
+		private final List<Documento> documentos;
+		private final List<byte[]> assinaturas;
+		private final ResultadoVerificacao[] resultados;
+		private final int primeiro;
+		private final int ultimo;
+
+		TarefaLote(List<Documento> documentos, List<byte[]> assinaturas, ResultadoVerificacao[] resultados, int primeiro, int ultimo) {
+			this.documentos = documentos;
+			this.assinaturas = assinaturas;
+			this.resultados = resultados;
+			this.primeiro = primeiro;
+			this.ultimo = ultimo;
+		}
+
+		@Override
+		protected void compute() {
+			if (this.ultimo - this.primeiro <= LIMIAR_DIVISAO) {
+				for (int i = this.primeiro; i < this.ultimo; i++) {
+					this.resultados[i] = verificar(this.documentos.get(i), this.assinaturas.get(i)).setIndice(i);
+				}
+				return;
+			}
+
+			int meio = (this.primeiro + this.ultimo) >>> 1;
+			invokeAll(new TarefaLote(this.documentos, this.assinaturas, this.resultados, this.primeiro, meio),
+					new TarefaLote(this.documentos, this.assinaturas, this.resultados, meio, this.ultimo));
+		}
+	}
+}
@@ -0,0 +1,258 @@
+package util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.asn1.ASN1OctetString;
+import org.bouncycastle.asn1.x509.AuthorityKeyIdentifier;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.SubjectKeyIdentifier;
+
+/**
+ * Construção de cadeias de certificação a partir de um conjunto indexado de
+ * certificados de AC.
+ * <p>
+ * Os certificados informados na construção são indexados uma única vez pelo
+ * DN do titular e pelo <i>SubjectKeyIdentifier</i>. O emissor de cada
+ * certificado é localizado pelo <i>AuthorityKeyIdentifier</i> (ou, na sua
+ * ausência, pelo DN do emissor) em tempo constante, de modo que a construção
+ * de uma cadeia é linear no seu comprimento e independe da quantidade de
+ * certificados indexados.
+ * <p>
+ * As instâncias são imutáveis e podem ser compartilhadas entre threads: um
+ * único índice (ex: todas as ACs da ICP-Brasil) atende a construção das
+ * cadeias de quaisquer certificados finais. Certificados adicionais de uma
+ * cadeia específica (ex: os incluídos na assinatura) podem ser informados em
+ * {@link #construir(X509Certificate, Collection)} sem alterar o índice.
+ *
+ */
+public class ConstrutorCadeia {
+
+	/**
+	 * Origem indexada dos possíveis emissores de um certificado.
+	 */
+	public interface Fonte {
+
+		/**
+		 * Adiciona à lista os possíveis emissores de um certificado: os que
+		 * possuem a chave de autoridade e o DN informados ou, caso nenhum ou
+		 * sem chave de autoridade, os que possuem o DN informado.
+		 *
+		 * @param emissor
+		 *            {@link X500Principal} DN do emissor do certificado.
+		 * @param chaveAutoridade
+		 *            <i>keyIdentifier</i> do <i>AuthorityKeyIdentifier</i> do
+		 *            certificado ou <code>null</code>.
+		 * @param candidatos
+		 *            {@link List} que recebe os certificados encontrados.
+		 */
+		void candidatos(X500Principal emissor, ByteBuffer chaveAutoridade, List<X509Certificate> candidatos);
+
+		/**
+		 * Quantidade de certificados indexados.
+		 */
+		int getQuantidade();
+	}
+
+	private final Fonte indice;
+
+	/**
+	 * @param certificados
+	 *            {@link Collection} certificados de AC (intermediárias e
+	 *            raízes) a serem indexados; a coleção não é alterada nem
+	 *            referenciada após a construção.
+	 */
+	public ConstrutorCadeia(Collection<? extends Certificate> certificados) {
+		this.indice = new Indice(certificados);
+	}
+
+	/**
+	 * @param fonte
+	 *            {@link Fonte} índice de certificados de AC já construído
+	 *            (ex: um repositório de certificados carregado sob demanda).
+	 */
+	public ConstrutorCadeia(Fonte fonte) {
+		this.indice = fonte;
+	}
+
+	/**
+	 * Constrói a cadeia do certificado a partir dos certificados indexados.
+	 *
+	 * @see #construir(X509Certificate, Collection)
+	 */
+	public List<X509Certificate> construir(X509Certificate certificado) {
+		return this.construir(certificado, Collections.<Certificate>emptyList());
+	}
+
+	/**
+	 * Constrói a cadeia do certificado, ordenada do próprio certificado até a
+	 * AC mais próxima da raiz encontrada (a raiz é incluída quando indexada).
+	 *
+	 * @param certificado
+	 *            {@link X509Certificate} certificado inicial da cadeia
+	 *            (normalmente de entidade final).
+	 * @param adicionais
+	 *            {@link Collection} certificados consultados antes do índice
+	 *            compartilhado, somente nesta construção.
+	 * @return {@link List} imutável com a cadeia ordenada; contém somente o
+	 *         certificado informado caso o emissor não seja encontrado.
+	 */
+	public List<X509Certificate> construir(X509Certificate certificado, Collection<? extends Certificate> adicionais) {
+		Indice local = (adicionais.isEmpty() ? null : new Indice(adicionais));
+
+		List<X509Certificate> cadeia = new ArrayList<>();
+		Set<X509Certificate> visitados = Collections.newSetFromMap(new IdentityHashMap<X509Certificate, Boolean>());
+
+		X509Certificate atual = certificado;
+		while (atual != null && visitados.add(atual)) {
+			cadeia.add(atual);
+			if (isAutoemitido(atual)) {
+				break;
+			}
+			atual = this.buscarEmissor(atual, local);
+		}
+		return Collections.unmodifiableList(cadeia);
+	}
+
+	/**
+	 * Quantidade de certificados indexados.
+	 */
+	public int getQuantidade() {
+		return this.indice.getQuantidade();
+	}
+
+	private X509Certificate buscarEmissor(X509Certificate certificado, Indice local) {
+		X500Principal emissor = certificado.getIssuerX500Principal();
+		ByteBuffer chaveAutoridade = getChaveAutoridade(certificado);
+
+		List<X509Certificate> candidatos = new ArrayList<>(2);
+		if (local != null) {
+			local.candidatos(emissor, chaveAutoridade, candidatos);
+		}
+		this.indice.candidatos(emissor, chaveAutoridade, candidatos);
+
+		if (candidatos.size() <= 1) {
+			return (candidatos.isEmpty() ? null : candidatos.get(0));
+		}
+
+		// Mesmo titular com várias chaves (ex: AC renovada sem AKI):
+		// desempata pela chave que verifica o certificado
+		for (X509Certificate candidato : candidatos) {
+			try {
+				certificado.verify(candidato.getPublicKey());
+				return candidato;
+			} catch (GeneralSecurityException e) {
+				// Não é o emissor
+			}
+		}
+		return candidatos.get(0);
+	}
+
+	private static boolean isAutoemitido(X509Certificate certificado) {
+		return certificado.getSubjectX500Principal().equals(certificado.getIssuerX500Principal());
+	}
+
+	/**
+	 * Retorna o <i>keyIdentifier</i> da extensão
+	 * <i>SubjectKeyIdentifier</i> ou <code>null</code>.
+	 */
+	public static ByteBuffer getChaveTitular(X509Certificate certificado) {
+		byte[] extensao = getExtensao(certificado, Extension.subjectKeyIdentifier.getId());
+		return (extensao == null ? null : ByteBuffer.wrap(SubjectKeyIdentifier.getInstance(extensao).getKeyIdentifier()));
+	}
+
+	/**
+	 * Retorna o <i>keyIdentifier</i> da extensão
+	 * <i>AuthorityKeyIdentifier</i> ou <code>null</code>.
+	 */
+	public static ByteBuffer getChaveAutoridade(X509Certificate certificado) {
+		byte[] extensao = getExtensao(certificado, Extension.authorityKeyIdentifier.getId());
+		if (extensao == null) {
+			return null;
+		}
+		byte[] chave = AuthorityKeyIdentifier.getInstance(extensao).getKeyIdentifier();
+		return (chave == null ? null : ByteBuffer.wrap(chave));
+	}
+
+	private static byte[] getExtensao(X509Certificate certificado, String oid) {
+		byte[] valor = certificado.getExtensionValue(oid);
+		if (valor == null) {
+			return null;
+		}
+		try {
+			return ASN1OctetString.getInstance(ASN1OctetString.fromByteArray(valor)).getOctets();
+		} catch (IOException | IllegalArgumentException e) {
+			// Extensão mal formada: tratada como ausente
+			return null;
+		}
+	}
+
+	/**
+	 * Certificados indexados pelo DN do titular e pelo
+	 * <i>SubjectKeyIdentifier</i>.
+	 */
+	private static class Indice implements Fonte {
+
+		private final Map<X500Principal, List<X509Certificate>> porTitular = new HashMap<>();
+		private final Map<ByteBuffer, List<X509Certificate>> porChave = new HashMap<>();
+		private int quantidade;
+
+		Indice(Collection<? extends Certificate> certificados) {
+			for (Certificate c : certificados) {
+				X509Certificate certificado = (X509Certificate) c;
+				List<X509Certificate> mesmoTitular = this.porTitular.computeIfAbsent(certificado.getSubjectX500Principal(), k -> new ArrayList<>(1));
+				if (mesmoTitular.contains(certificado)) {
+					continue;
+				}
+				mesmoTitular.add(certificado);
+				this.quantidade++;
+
+				ByteBuffer chave = getChaveTitular(certificado);
+				if (chave != null) {
+					this.porChave.computeIfAbsent(chave, k -> new ArrayList<>(1)).add(certificado);
+				}
+			}
+		}
+
+		@Override
+		public void candidatos(X500Principal emissor, ByteBuffer chaveAutoridade, List<X509Certificate> candidatos) {
+			if (chaveAutoridade != null) {
+				List<X509Certificate> porChave = this.porChave.get(chaveAutoridade);
+				if (porChave != null) {
+					int antes = candidatos.size();
+					for (X509Certificate certificado : porChave) {
+						if (certificado.getSubjectX500Principal().equals(emissor)) {
+							candidatos.add(certificado);
+						}
+					}
+					if (candidatos.size() > antes) {
+						return;
+					}
+				}
+			}
+
+			List<X509Certificate> porTitular = this.porTitular.get(emissor);
+			if (porTitular != null) {
+				candidatos.addAll(porTitular);
+			}
+		}
+
+		@Override
+		public int getQuantidade() {
+			return this.quantidade;
+		}
+	}
+}
@@ -32,14 +32,12 @@ package util;
  * Authors:: Alejandro Díaz Torres (mailto:aledt84@gmail.com)
  */
 
-import java.io.ByteArrayInputStream;
 import java.security.InvalidKeyException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.Provider;
-import java.security.Security;
 import java.security.Signature;
 import java.security.SignatureException;
 import java.security.UnrecoverableKeyException;
@@ -47,6 +45,9 @@ import java.security.cert.X509Certificate;
 import java.util.HashMap;
 import java.util.Map;
 
+import model.DescobertaModuloPkcs11;
+import model.RegistroProvedoresPkcs11;
+
 /**
  * Utilities to manage security from java for OpenSC
  * 
@@ -103,35 +104,34 @@ public class SecurityUtils {
 	public static final String name = "OpenSC PKCS#11"; 
 	
 	/**
-	 * Provider of PKCS#11 from OpenSC 
+	 * Provider of PKCS#11 from OpenSC, obtained lazily from
+	 * {@link RegistroProvedoresPkcs11} (see {@link #getPkcs11Provider()})
 	 */
 	public static Provider pkcs11Provider;
 	
-	static{
-		try{
-			/* PKCS#11 Security Provider */
-			String pkcs11LibName = getLibraryLocation();
-			
-			//Define SunPKCS#11 parameters
-            String PKCS11Library = pkcs11LibName;
-            String ext = "attributes(*,*,*)=\n{\nCKA_TOKEN=true\nCKA_LOCAL=true\n}";
-
-            //Compose configuration file
-            String configString =  "name = " + name.replace(' ', '_') + "\n" +
-                            "library = " + PKCS11Library +
-                            "\n slot = "+  SLOT + " " + 
-                            "\n attributes = compatibility \n" +
-                            ext;
-            //System.out.println(configString);
-            byte[] configBytes = configString.getBytes();
-            ByteArrayInputStream configStream = new ByteArrayInputStream(configBytes);
-
-            //Load SunPKCS#11 provider
-            pkcs11Provider = new sun.security.pkcs11.SunPKCS11(configStream);
-            Security.addProvider(pkcs11Provider);
-		}catch (Exception e){
-			e.printStackTrace();
+	/**
+	 * Obtain the shared PKCS#11 provider for the module found by
+	 * {@link DescobertaModuloPkcs11} (library and slot), loading the library
+	 * on first use. When no module is found, falls back to
+	 * {@link #getLibraryLocation()} and {@link #SLOT}
+	 * 
+	 * @return provider of PKCS#11
+	 * @throws KeyStoreException if the library can not be loaded
+	 */
+	public static synchronized Provider getPkcs11Provider() throws KeyStoreException {
+		if (pkcs11Provider == null) {
+			String biblioteca = getLibraryLocation();
+			Long slot = Long.valueOf(SLOT);
+			try {
+				DescobertaModuloPkcs11.Modulo modulo = DescobertaModuloPkcs11.getInstance().descobrir();
+				biblioteca = modulo.getBiblioteca();
+				slot = modulo.getSlot();
+			} catch (KeyStoreException e) {
+				System.err.println(e.getMessage());
+			}
+			pkcs11Provider = RegistroProvedoresPkcs11.obter(biblioteca, slot);
 		}
+		return pkcs11Provider;
 	}
 
 	/**
@@ -158,7 +158,7 @@ public class SecurityUtils {
 	 */
 	public static KeyStore getKeyStore() throws Exception {
 		
-        return KeyStore.getInstance("PKCS11", pkcs11Provider);
+        return KeyStore.getInstance("PKCS11", getPkcs11Provider());
 	}
 	
 	/**
@@ -228,12 +228,17 @@ public class SecurityUtils {
 	}
 
 	/**
-	 * Remove the security provider <br/> 
-	 * 	<code>Security.removeProvider(pkcs11Provider.getName());</code>
+	 * Release the shared security provider <br/> 
+	 * 	<code>RegistroProvedoresPkcs11.liberar(pkcs11Provider);</code>
 	 */
 	@Override
 	protected void finalize() throws Throwable {
-		Security.removeProvider(pkcs11Provider.getName());
+		synchronized (SecurityUtils.class) {
+			if (pkcs11Provider != null) {
+				RegistroProvedoresPkcs11.liberar(pkcs11Provider);
+				pkcs11Provider = null;
+			}
+		}
 		super.finalize();
 	}
 	
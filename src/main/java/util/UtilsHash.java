@@ -0,0 +1,198 @@
+package util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.Security;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Métodos utilitários para cálculo de hash de documentos.
+ * <p>
+ * Os documentos são lidos em blocos de tamanho fixo ({@link #TAMANHO_BUFFER})
+ * e cada bloco alimenta todos os algoritmos solicitados, de modo que o
+ * documento é percorrido uma única vez e o consumo de memória independe do
+ * seu tamanho.
+ *
+ */
+public class UtilsHash {
+
+	/**
+	 * Tamanho do bloco de leitura utilizado no cálculo do hash.
+	 */
+	public static final int TAMANHO_BUFFER = 64 * 1024;
+
+	/**
+	 * Calcula o hash do arquivo informado lendo-o em blocos por meio de um
+	 * {@link FileChannel}.
+	 *
+	 * @param arquivo
+	 *            {@link File} arquivo do documento.
+	 * @param algoritmo
+	 *            {@link String} algoritmo de hash (ex: MD5, SHA-256).
+	 * @return hash do arquivo.
+	 * @throws NoSuchAlgorithmException
+	 *             Caso o algoritmo de hash não seja suportado.
+	 * @throws IOException
+	 *             Em caso de erros de leitura do arquivo.
+	 */
+	public static byte[] calcularHash(File arquivo, String algoritmo) throws NoSuchAlgorithmException, IOException {
+		return calcularHashes(arquivo, algoritmo).get(algoritmo);
+	}
+
+	/**
+	 * Calcula o hash do conteúdo do {@link InputStream} informado à medida que
+	 * o mesmo é lido.
+	 * <p>
+	 * O stream é consumido até o fim, mas não é fechado.
+	 *
+	 * @param stream
+	 *            {@link InputStream} conteúdo do documento.
+	 * @param algoritmo
+	 *            {@link String} algoritmo de hash (ex: MD5, SHA-256).
+	 * @return hash do conteúdo lido.
+	 * @throws NoSuchAlgorithmException
+	 *             Caso o algoritmo de hash não seja suportado.
+	 * @throws IOException
+	 *             Em caso de erros de leitura do stream.
+	 */
+	public static byte[] calcularHash(InputStream stream, String algoritmo) throws NoSuchAlgorithmException, IOException {
+		return calcularHashes(stream, algoritmo).get(algoritmo);
+	}
+
+	/**
+	 * Calcula, em uma única leitura do arquivo, o hash para cada um dos
+	 * algoritmos informados.
+	 * <p>
+	 * O arquivo é lido por um {@link FileChannel} em blocos de
+	 * {@link #TAMANHO_BUFFER} bytes para um único buffer direto reutilizado.
+	 * O arquivo não é mapeado em memória: ao retornar, nenhuma referência a
+	 * ele permanece aberta, e o arquivo pode ser movido ou excluído
+	 * imediatamente (inclusive no Windows).
+	 *
+	 * @param arquivo
+	 *            {@link File} arquivo do documento.
+	 * @param algoritmos
+	 *            algoritmos de hash (ex: MD5, SHA-256, SHA-512).
+	 * @return {@link Map} hashes do arquivo indexados pelo algoritmo.
+	 * @throws NoSuchAlgorithmException
+	 *             Caso algum dos algoritmos não seja suportado.
+	 * @throws IOException
+	 *             Em caso de erros de leitura do arquivo.
+	 */
+	public static Map<String, byte[]> calcularHashes(File arquivo, String... algoritmos) throws NoSuchAlgorithmException, IOException {
+		MessageDigest[] digests = criarDigests(algoritmos);
+
+		try (FileChannel canal = FileChannel.open(arquivo.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(TAMANHO_BUFFER);
+			while (canal.read(buffer) != -1) {
+				buffer.flip();
+				for (MessageDigest md : digests) {
+					// Cada digest consome uma cópia da posição do buffer
+					md.update(buffer.duplicate());
+				}
+				buffer.clear();
+			}
+		}
+		return finalizar(algoritmos, digests);
+	}
+
+	/**
+	 * Calcula, em uma única leitura do {@link InputStream}, o hash para cada
+	 * um dos algoritmos informados.
+	 * <p>
+	 * O stream é consumido até o fim, mas não é fechado.
+	 *
+	 * @param stream
+	 *            {@link InputStream} conteúdo do documento.
+	 * @param algoritmos
+	 *            algoritmos de hash (ex: MD5, SHA-256, SHA-512).
+	 * @return {@link Map} hashes do conteúdo lido indexados pelo algoritmo.
+	 * @throws NoSuchAlgorithmException
+	 *             Caso algum dos algoritmos não seja suportado.
+	 * @throws IOException
+	 *             Em caso de erros de leitura do stream.
+	 */
+	public static Map<String, byte[]> calcularHashes(InputStream stream, String... algoritmos) throws NoSuchAlgorithmException, IOException {
+		MessageDigest[] digests = criarDigests(algoritmos);
+
+		byte[] buffer = new byte[TAMANHO_BUFFER];
+		int lidos;
+		while ((lidos = stream.read(buffer)) != -1) {
+			for (MessageDigest md : digests) {
+				md.update(buffer, 0, lidos);
+			}
+		}
+		return finalizar(algoritmos, digests);
+	}
+
+	/**
+	 * Calcula, em uma única passagem sobre os bytes informados, o hash para
+	 * cada um dos algoritmos informados.
+	 *
+	 * @param conteudo
+	 *            conteúdo do documento.
+	 * @param algoritmos
+	 *            algoritmos de hash (ex: MD5, SHA-256, SHA-512).
+	 * @return {@link Map} hashes do conteúdo indexados pelo algoritmo.
+	 * @throws NoSuchAlgorithmException
+	 *             Caso algum dos algoritmos não seja suportado.
+	 */
+	public static Map<String, byte[]> calcularHashes(byte[] conteudo, String... algoritmos) throws NoSuchAlgorithmException {
+		MessageDigest[] digests = criarDigests(algoritmos);
+
+		// Percorre o conteúdo em blocos para manter os dados de cada bloco no
+		// cache do processador enquanto alimenta todos os algoritmos
+		for (int inicio = 0; inicio < conteudo.length; inicio += TAMANHO_BUFFER) {
+			int tamanho = Math.min(TAMANHO_BUFFER, conteudo.length - inicio);
+			for (MessageDigest md : digests) {
+				md.update(conteudo, inicio, tamanho);
+			}
+		}
+		return finalizar(algoritmos, digests);
+	}
+
+	/**
+	 * Retorna o nome padrão do algoritmo de hash identificado pelo nome, alias
+	 * ou OID informado (ex: SHA256, sha-256 e 2.16.840.1.101.3.4.2.1 resultam
+	 * em SHA-256), conforme os provedores registrados.
+	 *
+	 * @param algoritmo
+	 *            {@link String} nome, alias ou OID do algoritmo de hash.
+	 * @return {@link String} nome do algoritmo.
+	 * @throws NoSuchAlgorithmException
+	 *             Caso nenhum provedor suporte o algoritmo.
+	 */
+	public static String getAlgoritmo(String algoritmo) throws NoSuchAlgorithmException {
+		for (Provider provider : Security.getProviders()) {
+			Provider.Service servico = provider.getService("MessageDigest", algoritmo);
+			if (servico != null) {
+				return servico.getAlgorithm();
+			}
+		}
+		throw new NoSuchAlgorithmException("Algoritmo de hash não suportado: " + algoritmo);
+	}
+
+	private static MessageDigest[] criarDigests(String... algoritmos) throws NoSuchAlgorithmException {
+		MessageDigest[] digests = new MessageDigest[algoritmos.length];
+		for (int i = 0; i < algoritmos.length; i++) {
+			digests[i] = MessageDigest.getInstance(algoritmos[i]);
+		}
+		return digests;
+	}
+
+	private static Map<String, byte[]> finalizar(String[] algoritmos, MessageDigest[] digests) {
+		Map<String, byte[]> hashes = new LinkedHashMap<>();
+		for (int i = 0; i < algoritmos.length; i++) {
+			hashes.put(algoritmos[i], digests[i].digest());
+		}
+		return hashes;
+	}
+}
@@ -0,0 +1,351 @@
+package util;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import org.bouncycastle.asn1.ASN1EncodableVector;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.ASN1OctetString;
+import org.bouncycastle.asn1.ASN1Sequence;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.DERSet;
+import org.bouncycastle.asn1.cms.Attribute;
+import org.bouncycastle.asn1.cms.AttributeTable;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.SignerInformation;
+import org.bouncycastle.operator.DefaultDigestAlgorithmIdentifierFinder;
+
+/**
+ * Métodos utilitários para cálculo e verificação do hash em árvore de
+ * documentos.
+ * <p>
+ * O documento é dividido em segmentos de tamanho fixo, cujos hashes são
+ * calculados em paralelo em um {@link ForkJoinPool}. A raiz é obtida pela
+ * construção de árvore de Merkle da RFC 6962 (seção 2.1):
+ * <ul>
+ * <li>árvore vazia: <code>H()</code>;</li>
+ * <li>folha: <code>H(0x00 || segmento)</code>;</li>
+ * <li>nó interno sobre <code>n</code> segmentos:
+ * <code>H(0x01 || esquerda || direita)</code>, sendo a subárvore da esquerda
+ * formada pelos <code>k</code> primeiros segmentos, onde <code>k</code> é a
+ * maior potência de 2 menor que <code>n</code>.</li>
+ * </ul>
+ * <p>
+ * O resultado é transportado na assinatura como um atributo assinado, ao lado
+ * do atributo padrão <i>messageDigest</i>. Não há OID padronizado para o
+ * atributo: ele deve ser definido pela propriedade de sistema
+ * {@value #PROPRIEDADE_OID}, com um OID sob um arco controlado pelo
+ * emissor das assinaturas; sem ela o atributo não é gerado nem verificado.
+ *
+ * <pre>
+ * HashArvore ::= SEQUENCE {
+ *     algoritmo        AlgorithmIdentifier,
+ *     tamanhoSegmento  INTEGER,
+ *     raiz             OCTET STRING }
+ * </pre>
+ *
+ */
+public class UtilsHashArvore {
+
+	/**
+	 * Propriedade de sistema com o OID do atributo assinado que contém o hash
+	 * em árvore.
+	 */
+	public static final String PROPRIEDADE_OID = "assinador.hash-arvore.oid";
+
+	/**
+	 * Tamanho padrão dos segmentos (8 MiB).
+	 */
+	public static final int TAMANHO_SEGMENTO_PADRAO = 8 * 1024 * 1024;
+
+	private static final byte PREFIXO_FOLHA = 0x00;
+	private static final byte PREFIXO_NO = 0x01;
+
+	/**
+	 * Calcula o hash em árvore do arquivo informado.
+	 * <p>
+	 * Cada segmento é lido da sua posição no arquivo em blocos de
+	 * {@link UtilsHash#TAMANHO_BUFFER} bytes, sem mapear o arquivo em memória,
+	 * de modo que nenhuma referência a ele permanece aberta após o retorno.
+	 *
+	 * @param arquivo
+	 *            {@link File} arquivo do documento.
+	 * @param algoritmo
+	 *            {@link String} algoritmo de hash (ex: SHA-256).
+	 * @param tamanhoSegmento
+	 *            tamanho dos segmentos em bytes.
+	 * @return raiz da árvore.
+	 * @throws NoSuchAlgorithmException
+	 *             Caso o algoritmo de hash não seja suportado.
+	 * @throws IOException
+	 *             Em caso de erros de leitura do arquivo.
+	 */
+	public static byte[] calcular(File arquivo, String algoritmo, int tamanhoSegmento) throws NoSuchAlgorithmException, IOException {
+		try (FileChannel canal = FileChannel.open(arquivo.toPath(), StandardOpenOption.READ)) {
+			long tamanho = canal.size();
+			return calcular(algoritmo, tamanho, tamanhoSegmento, (md, inicio, bytes) -> ler(canal, md, inicio, bytes));
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Calcula o hash em árvore do conteúdo informado.
+	 *
+	 * @param conteudo
+	 *            conteúdo do documento.
+	 * @param algoritmo
+	 *            {@link String} algoritmo de hash (ex: SHA-256).
+	 * @param tamanhoSegmento
+	 *            tamanho dos segmentos em bytes.
+	 * @return raiz da árvore.
+	 * @throws NoSuchAlgorithmException
+	 *             Caso o algoritmo de hash não seja suportado.
+	 */
+	public static byte[] calcular(byte[] conteudo, String algoritmo, int tamanhoSegmento) throws NoSuchAlgorithmException {
+		return calcular(algoritmo, conteudo.length, tamanhoSegmento, (md, inicio, bytes) -> md.update(conteudo, (int) inicio, bytes));
+	}
+
+	/**
+	 * Gera o atributo assinado que transporta o hash em árvore.
+	 *
+	 * @param algoritmo
+	 *            {@link String} algoritmo de hash utilizado.
+	 * @param tamanhoSegmento
+	 *            tamanho dos segmentos em bytes.
+	 * @param raiz
+	 *            raiz da árvore.
+	 * @return {@link Attribute} atributo com o OID de {@link #getOid()}.
+	 * @throws IllegalStateException
+	 *             Caso o OID do atributo não esteja configurado.
+	 */
+	public static Attribute gerarAtributo(String algoritmo, int tamanhoSegmento, byte[] raiz) {
+		ASN1ObjectIdentifier oid = getOidConfigurado();
+
+		ASN1EncodableVector valor = new ASN1EncodableVector();
+		valor.add(new DefaultDigestAlgorithmIdentifierFinder().find(algoritmo));
+		valor.add(new ASN1Integer(tamanhoSegmento));
+		valor.add(new DEROctetString(raiz));
+		return new Attribute(oid, new DERSet(new DERSequence(valor)));
+	}
+
+	/**
+	 * Retorna o OID do atributo de hash em árvore definido pela propriedade
+	 * {@value #PROPRIEDADE_OID}.
+	 *
+	 * @return {@link ASN1ObjectIdentifier} OID configurado ou
+	 *         <code>null</code> caso a propriedade não esteja definida.
+	 * @throws IllegalStateException
+	 *             Caso o valor da propriedade não seja um OID válido.
+	 */
+	public static ASN1ObjectIdentifier getOid() {
+		String oid = System.getProperty(PROPRIEDADE_OID);
+		if (oid == null || oid.trim().isEmpty()) {
+			return null;
+		}
+		try {
+			return new ASN1ObjectIdentifier(oid.trim());
+		} catch (IllegalArgumentException e) {
+			throw new IllegalStateException("OID inválido na propriedade " + PROPRIEDADE_OID + ": " + oid, e);
+		}
+	}
+
+	private static ASN1ObjectIdentifier getOidConfigurado() {
+		ASN1ObjectIdentifier oid = getOid();
+		if (oid == null) {
+			throw new IllegalStateException("OID do atributo de hash em árvore não configurado (propriedade " + PROPRIEDADE_OID + ")");
+		}
+		return oid;
+	}
+
+	/**
+	 * Verifica se o hash em árvore contido no atributo confere com o arquivo
+	 * informado.
+	 *
+	 * @param arquivo
+	 *            {@link File} arquivo do documento.
+	 * @param atributo
+	 *            {@link Attribute} atributo com o OID de {@link #getOid()}.
+	 * @return <code>true</code> caso o hash confira e <code>false</code> caso
+	 *         contrário.
+	 * @throws NoSuchAlgorithmException
+	 *             Caso o algoritmo de hash do atributo não seja suportado.
+	 * @throws IOException
+	 *             Em caso de erros de leitura do arquivo.
+	 * @throws IllegalStateException
+	 *             Caso o OID do atributo não esteja configurado.
+	 */
+	public static boolean verificar(File arquivo, Attribute atributo) throws NoSuchAlgorithmException, IOException {
+		if (!getOidConfigurado().equals(atributo.getAttrType())) {
+			throw new IllegalArgumentException("Atributo " + atributo.getAttrType() + " não é um hash em árvore");
+		}
+
+		ASN1Sequence valor = ASN1Sequence.getInstance(atributo.getAttrValues().getObjectAt(0));
+		AlgorithmIdentifier algoritmo = AlgorithmIdentifier.getInstance(valor.getObjectAt(0));
+		int tamanhoSegmento = ASN1Integer.getInstance(valor.getObjectAt(1)).getValue().intValue();
+		byte[] raiz = ASN1OctetString.getInstance(valor.getObjectAt(2)).getOctets();
+
+		byte[] calculada = calcular(arquivo, UtilsHash.getAlgoritmo(algoritmo.getAlgorithm().getId()), tamanhoSegmento);
+		return MessageDigest.isEqual(raiz, calculada);
+	}
+
+	/**
+	 * Verifica o hash em árvore de todos os signatários da assinatura
+	 * <i>detached</i> informada contra o arquivo do documento.
+	 * <p>
+	 * Somente o atributo de hash em árvore é verificado; a assinatura sobre os
+	 * atributos não é conferida.
+	 *
+	 * @param arquivo
+	 *            {@link File} arquivo do documento.
+	 * @param assinatura
+	 *            assinatura CMS (<i>.p7s</i>) do documento.
+	 * @return <code>true</code> caso todos os signatários possuam o atributo e
+	 *         o hash confira e <code>false</code> caso contrário.
+	 * @throws CMSException
+	 *             Em caso de erros ao decodificar a assinatura.
+	 * @throws NoSuchAlgorithmException
+	 *             Caso o algoritmo de hash do atributo não seja suportado.
+	 * @throws IOException
+	 *             Em caso de erros de leitura do arquivo.
+	 * @throws IllegalStateException
+	 *             Caso o OID do atributo não esteja configurado.
+	 */
+	public static boolean verificar(File arquivo, byte[] assinatura) throws CMSException, NoSuchAlgorithmException, IOException {
+		ASN1ObjectIdentifier oid = getOidConfigurado();
+		CMSSignedData cms = new CMSSignedData(assinatura);
+		if (cms.getSignerInfos().size() == 0) {
+			return false;
+		}
+
+		for (SignerInformation signatario : cms.getSignerInfos()) {
+			AttributeTable atributos = signatario.getSignedAttributes();
+			Attribute atributo = UtilsAsn1.getAtributo(atributos, oid);
+			if (atributo == null || !verificar(arquivo, atributo)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static byte[] calcular(String algoritmo, long tamanho, int tamanhoSegmento, Segmentos segmentos)
+			throws NoSuchAlgorithmException {
+		if (tamanhoSegmento <= 0) {
+			throw new IllegalArgumentException("Tamanho de segmento inválido: " + tamanhoSegmento);
+		}
+
+		// Valida o algoritmo antes de distribuir as tarefas
+		MessageDigest md = MessageDigest.getInstance(algoritmo);
+
+		long quantidade = (tamanho + tamanhoSegmento - 1) / tamanhoSegmento;
+		if (quantidade == 0) {
+			return md.digest();
+		}
+		return ForkJoinPool.commonPool().invoke(new TarefaNo(algoritmo, segmentos, tamanho, tamanhoSegmento, 0, quantidade));
+	}
+
+	/**
+	 * Atualiza o digest com o segmento do arquivo iniciado em
+	 * <code>inicio</code>. As leituras são posicionais e podem ser executadas
+	 * concorrentemente sobre o mesmo canal.
+	 */
+	private static void ler(FileChannel canal, MessageDigest md, long inicio, int bytes) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(Math.min(bytes, UtilsHash.TAMANHO_BUFFER));
+		long posicao = inicio;
+		long fim = inicio + bytes;
+		while (posicao < fim) {
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), fim - posicao));
+			int lidos = canal.read(buffer, posicao);
+			if (lidos < 0) {
+				throw new EOFException("Arquivo alterado durante o cálculo do hash em árvore");
+			}
+			buffer.flip();
+			md.update(buffer);
+			posicao += lidos;
+		}
+	}
+
+	/**
+	 * Alimenta um digest com o conteúdo de um segmento do documento.
+	 */
+	@FunctionalInterface
+	private interface Segmentos {
+		void atualizar(MessageDigest md, long inicio, int bytes) throws IOException;
+	}
+
+	/**
+	 * Calcula o hash da subárvore formada pelos segmentos
+	 * <code>[primeiro, ultimo)</code>.
+	 */
+	private static class TarefaNo extends RecursiveTask<byte[]> {
+
+		private static final long serialVersionUID = 3151407536207264711L;
+
+		private final String algoritmo;
+		private final Segmentos segmentos;
+		private final long tamanho;
+		private final int tamanhoSegmento;
+		private final long primeiro;
+		private final long ultimo;
+
+		TarefaNo(String algoritmo, Segmentos segmentos, long tamanho, int tamanhoSegmento, long primeiro, long ultimo) {
+			this.algoritmo = algoritmo;
+			this.segmentos = segmentos;
+			this.tamanho = tamanho;
+			this.tamanhoSegmento = tamanhoSegmento;
+			this.primeiro = primeiro;
+			this.ultimo = ultimo;
+		}
+
+		@Override
+		protected byte[] compute() {
+			MessageDigest md;
+			try {
+				md = MessageDigest.getInstance(this.algoritmo);
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+
+			long n = this.ultimo - this.primeiro;
+			if (n == 1) {
+				long inicio = this.primeiro * this.tamanhoSegmento;
+				int bytes = (int) Math.min(this.tamanhoSegmento, this.tamanho - inicio);
+				try {
+					md.update(PREFIXO_FOLHA);
+					this.segmentos.atualizar(md, inicio, bytes);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				return md.digest();
+			}
+
+			// Maior potência de 2 menor que n
+			long k = Long.highestOneBit(n - 1);
+
+			TarefaNo esquerda = new TarefaNo(this.algoritmo, this.segmentos, this.tamanho, this.tamanhoSegmento, this.primeiro, this.primeiro + k);
+			TarefaNo direita = new TarefaNo(this.algoritmo, this.segmentos, this.tamanho, this.tamanhoSegmento, this.primeiro + k, this.ultimo);
+			esquerda.fork();
+			byte[] hashDireita = direita.compute();
+			byte[] hashEsquerda = esquerda.join();
+
+			md.update(PREFIXO_NO);
+			md.update(hashEsquerda);
+			md.update(hashDireita);
+			return md.digest();
+		}
+	}
+}
@@ -254,51 +254,27 @@ public class UtilsX509 {
 	 * {@link CertPathValidator}.
 	 * <p>
 	 * Os certificados são ordenados da entidade final para a AC mais próxima a
-	 * raiz.
+	 * raiz, por meio de um {@link ConstrutorCadeia} sobre a própria lista. A
+	 * lista informada não é alterada.
 	 *
 	 * @param cadeia
 	 *            {@link List} lista de certificados da cadeia a ser ordenada.
 	 * @return {@link List} lista ordenada de certificados da cadeia.
 	 */
 	public static List<Certificate> ordenarCadeia(List<Certificate> cadeia) {
-		List<Certificate> ordenada = new ArrayList<Certificate>(cadeia.size());
- 
 		// Busca a entidade final da cadeia
 		X509Certificate entidade = null;
-		for (int i = 0; i < cadeia.size(); i++) {
-			X509Certificate c = (X509Certificate) cadeia.remove(0);
-			if (c.getBasicConstraints() < 0) {
-				entidade = c;
-				ordenada.add(entidade);
-			} else {
-				cadeia.add(c);
+		for (Certificate c : cadeia) {
+			if (((X509Certificate) c).getBasicConstraints() < 0) {
+				entidade = (X509Certificate) c;
+				break;
 			}
 		}
  
 		if (entidade == null) {
 			// Retorna a cadeia informada
-			return cadeia;
-		}
- 
-		// Inicia a busca pelos emissores dos certificados
-		int index = 0;
-		X509Certificate emitido = entidade;
-		while (!cadeia.isEmpty() && index != -1) {
-			X509Certificate ac = (X509Certificate) cadeia.remove(0);
-			// Verifica se é a ac que emitiu o certificado
-			if (emitido.getIssuerX500Principal().equals(ac.getSubjectX500Principal())) {
-				ordenada.add(ac);
-				emitido = ac;
-				index = 0;
-			} else if (index == cadeia.size()) {
-				// Devolve a lista caso não seja o certificado buscado
-				index = -1;
-			} else {
-				// Certificado foi emitido por outra AC, retorna para a lista
-				cadeia.add(cadeia.size(), ac);
-				index++;
-			}
+			return new ArrayList<Certificate>(cadeia);
 		}
-		return ordenada;
+		return new ArrayList<Certificate>(new ConstrutorCadeia(cadeia).construir(entidade));
 	}
 }
\ No newline at end of file
@@ -0,0 +1,353 @@
+package repository;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.CRLException;
+import java.security.cert.X509Certificate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Date;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.BERTags;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.asn1.x509.DistributionPointName;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.asn1.x509.IssuingDistributionPoint;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v2CRLBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class IndiceLcrTest {
+
+	private static final X500Principal EMISSOR = new X500Principal("CN=AC Teste, O=ICP-Brasil, C=BR");
+
+	private static KeyPair chaves;
+	private static X509Certificate certificadoEmissor;
+
+	@Rule
+	public TemporaryFolder pasta = new TemporaryFolder();
+
+	@BeforeClass
+	public static void gerarEmissor() throws Exception {
+		KeyPairGenerator gerador = KeyPairGenerator.getInstance("RSA");
+		gerador.initialize(2048);
+		chaves = gerador.generateKeyPair();
+
+		long agora = System.currentTimeMillis();
+		JcaX509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(EMISSOR, BigInteger.ONE, new Date(agora - 86400000L),
+				new Date(agora + 86400000L), EMISSOR, chaves.getPublic());
+		builder.addExtension(Extension.basicConstraints, true, new BasicConstraints(true));
+		certificadoEmissor = new JcaX509CertificateConverter().getCertificate(builder.build(assinante()));
+	}
+
+	@Test
+	public void normalizarRemoveZerosAEsquerda() {
+		assertArrayEquals(new byte[] { (byte) 0x80 }, IndiceLcr.normalizar(new byte[] { 0, (byte) 0x80 }));
+		assertArrayEquals(new byte[] { 1, 0 }, IndiceLcr.normalizar(new byte[] { 0, 0, 1, 0 }));
+		assertArrayEquals(new byte[] { 0 }, IndiceLcr.normalizar(new byte[] { 0, 0 }));
+	}
+
+	@Test
+	public void derConteudoRejeitaTagOuComprimentoInvalidos() throws IOException {
+		ByteBuffer b = ByteBuffer.wrap(new byte[] { 0x02, 0x02, 0x00, (byte) 0x80, 0x05, 0x00 });
+		ByteBuffer inteiro = IndiceLcr.Der.conteudo(b, BERTags.INTEGER);
+		assertEquals(2, inteiro.remaining());
+		assertEquals(4, b.position());
+		assertArrayEquals(new byte[] { 0x05, 0x00 }, IndiceLcr.Der.tlv(b));
+
+		try {
+			IndiceLcr.Der.conteudo(ByteBuffer.wrap(new byte[] { 0x02, 0x01, 0x01 }), BERTags.OCTET_STRING);
+			fail("Tag inesperada aceita");
+		} catch (IOException e) {
+			// esperado
+		}
+		try {
+			IndiceLcr.Der.conteudo(ByteBuffer.wrap(new byte[] { 0x02, 0x05, 0x01 }), BERTags.INTEGER);
+			fail("Comprimento além do conteúdo aceito");
+		} catch (IOException e) {
+			// esperado
+		}
+		try {
+			IndiceLcr.Der.tlv(ByteBuffer.wrap(new byte[] { 0x04, (byte) 0x85, 1, 1, 1, 1, 1 }));
+			fail("Comprimento de 5 bytes aceito");
+		} catch (IOException e) {
+			// esperado
+		}
+	}
+
+	@Test
+	public void derDataDecodificaUtcTimeNosLimitesDoSeculo() throws IOException {
+		assertEquals(epoca(1950, 1, 1, 0, 0, 0), IndiceLcr.Der.data(tempo(BERTags.UTC_TIME, "500101000000Z")));
+		assertEquals(epoca(2049, 12, 31, 23, 59, 59), IndiceLcr.Der.data(tempo(BERTags.UTC_TIME, "491231235959Z")));
+		assertEquals(epoca(2000, 2, 29, 12, 0, 0), IndiceLcr.Der.data(tempo(BERTags.UTC_TIME, "000229120000Z")));
+		assertEquals(epoca(2050, 1, 1, 0, 0, 0), IndiceLcr.Der.data(tempo(BERTags.GENERALIZED_TIME, "20500101000000Z")));
+
+		ByteBuffer b = tempo(BERTags.UTC_TIME, "491231235959Z");
+		IndiceLcr.Der.data(b);
+		assertTrue(!b.hasRemaining());
+
+		try {
+			IndiceLcr.Der.data(tempo(BERTags.UTC_TIME, "491331235959Z"));
+			fail("Mês inválido aceito");
+		} catch (IOException e) {
+			// esperado
+		}
+		try {
+			IndiceLcr.Der.data(tempo(BERTags.UTC_TIME, "4912312359a9Z"));
+			fail("Dígito inválido aceito");
+		} catch (IOException e) {
+			// esperado
+		}
+	}
+
+	@Test
+	public void ordenarMantemPrimeiraOcorrenciaDosRepetidos() {
+		IndiceLcr.Registros registros = new IndiceLcr.Registros(9, 2);
+		// Séries com os 7 primeiros bytes iguais exigem a comparação completa
+		byte[] longaMaior = { 1, 2, 3, 4, 5, 6, 7, 9, 0 };
+		byte[] longaMenor = { 1, 2, 3, 4, 5, 6, 7, 8, (byte) 0xFF };
+		registros.adicionar(longaMaior, 0, longaMaior.length, 1, IndiceLcr.SEM_MOTIVO);
+		registros.adicionar(new byte[] { 5 }, 0, 1, 2, IndiceLcr.SEM_MOTIVO);
+		registros.adicionar(longaMenor, 0, longaMenor.length, 3, IndiceLcr.SEM_MOTIVO);
+		registros.adicionar(new byte[] { 1, 0 }, 0, 2, 4, IndiceLcr.SEM_MOTIVO);
+		registros.adicionar(new byte[] { 5 }, 0, 1, 5, (byte) 1);
+		registros.adicionar(new byte[] { (byte) 0xFF }, 0, 1, 6, IndiceLcr.SEM_MOTIVO);
+
+		registros.ordenar();
+
+		assertArrayEquals(new byte[] { 5 }, registros.getSerie(0));
+		assertEquals(2, registros.getRevogacao(0));
+		assertEquals(IndiceLcr.SEM_MOTIVO, registros.getMotivo(0));
+		assertArrayEquals(new byte[] { (byte) 0xFF }, registros.getSerie(1));
+		assertArrayEquals(new byte[] { 1, 0 }, registros.getSerie(2));
+		assertArrayEquals(longaMenor, registros.getSerie(3));
+		assertArrayEquals(longaMaior, registros.getSerie(4));
+		assertEquals(1, registros.getRevogacao(4));
+	}
+
+	@Test
+	public void consultaSeriesComZeroDeSinalEDeVinteBytes() throws Exception {
+		BigInteger sinal = BigInteger.valueOf(0x80);
+		BigInteger vinteBytes = new BigInteger(1, preenchido(20, (byte) 0xFF));
+		BigInteger vinteBytesMenor = new BigInteger(1, preenchido(20, (byte) 0x7F));
+		Date revogacao = new Date(epoca(2020, 5, 1, 10, 0, 0));
+
+		JcaX509v2CRLBuilder builder = lcr(1);
+		builder.addCRLEntry(sinal, revogacao, CRLReason.keyCompromise);
+		builder.addCRLEntry(vinteBytes, revogacao, CRLReason.keyCompromise);
+		builder.addCRLEntry(vinteBytesMenor, revogacao, CRLReason.keyCompromise);
+		builder.addCRLEntry(BigInteger.ONE, revogacao, CRLReason.keyCompromise);
+		IndiceLcr indice = IndiceLcr.gerar(gravar("base.crl", builder), certificadoEmissor, this.pasta.getRoot().toPath().resolve("base.idx"));
+
+		assertEquals(4, indice.getQuantidade());
+		assertEquals(BigInteger.ONE, indice.getNumero());
+		assertEquals(revogacao, indice.consultar(sinal));
+		assertEquals(revogacao, indice.consultar(vinteBytes));
+		assertEquals(revogacao, indice.consultar(vinteBytesMenor));
+		assertEquals(revogacao, indice.consultar(BigInteger.ONE));
+		assertNull(indice.consultar(BigInteger.valueOf(0x7F)));
+		assertNull(indice.consultar(vinteBytes.subtract(BigInteger.ONE)));
+		assertNull(indice.consultar(vinteBytes.shiftLeft(8)));
+	}
+
+	@Test
+	public void datasDeRevogacaoNosLimitesDoUtcTime() throws Exception {
+		Date inicio = new Date(epoca(1950, 1, 1, 0, 0, 0));
+		Date fim = new Date(epoca(2049, 12, 31, 23, 59, 59));
+		Date generalizada = new Date(epoca(2050, 1, 1, 0, 0, 0));
+
+		JcaX509v2CRLBuilder builder = lcr(1);
+		builder.addCRLEntry(BigInteger.valueOf(1), inicio, CRLReason.keyCompromise);
+		builder.addCRLEntry(BigInteger.valueOf(2), fim, CRLReason.keyCompromise);
+		builder.addCRLEntry(BigInteger.valueOf(3), generalizada, CRLReason.keyCompromise);
+		IndiceLcr indice = IndiceLcr.gerar(gravar("datas.crl", builder), certificadoEmissor, this.pasta.getRoot().toPath().resolve("datas.idx"));
+
+		assertEquals(inicio, indice.consultar(BigInteger.valueOf(1)));
+		assertEquals(fim, indice.consultar(BigInteger.valueOf(2)));
+		assertEquals(generalizada, indice.consultar(BigInteger.valueOf(3)));
+	}
+
+	@Test
+	public void aplicarDeltaIncluiSubstituiERemove() throws Exception {
+		Date antiga = new Date(epoca(2020, 1, 1, 0, 0, 0));
+		Date nova = new Date(epoca(2021, 1, 1, 0, 0, 0));
+
+		JcaX509v2CRLBuilder base = lcr(10);
+		for (int i = 1; i <= 5; i++) {
+			base.addCRLEntry(BigInteger.valueOf(i * 10), antiga, CRLReason.keyCompromise);
+		}
+		base.addCRLEntry(BigInteger.valueOf(35), antiga, CRLReason.certificateHold);
+		Path pastaIndices = this.pasta.getRoot().toPath();
+		IndiceLcr indice = IndiceLcr.gerar(gravar("base.crl", base), certificadoEmissor, pastaIndices.resolve("base.idx"));
+		assertEquals(6, indice.getQuantidade());
+
+		BigInteger larga = new BigInteger(1, preenchido(20, (byte) 0xAB));
+		JcaX509v2CRLBuilder delta = lcr(11);
+		delta.addExtension(Extension.deltaCRLIndicator, true, new ASN1Integer(10));
+		delta.addCRLEntry(BigInteger.valueOf(5), nova, CRLReason.keyCompromise);
+		delta.addCRLEntry(BigInteger.valueOf(20), nova, CRLReason.superseded);
+		delta.addCRLEntry(BigInteger.valueOf(35), nova, CRLReason.removeFromCRL);
+		delta.addCRLEntry(BigInteger.valueOf(45), nova, CRLReason.keyCompromise);
+		delta.addCRLEntry(BigInteger.valueOf(99), nova, CRLReason.removeFromCRL);
+		delta.addCRLEntry(larga, nova, CRLReason.keyCompromise);
+		IndiceLcr.Lcr lida = IndiceLcr.Lcr.ler(gravar("delta.crl", delta));
+		lida.verificar(certificadoEmissor);
+		assertEquals(BigInteger.valueOf(10), lida.numeroBase);
+
+		IndiceLcr atualizado = indice.aplicar(lida, pastaIndices.resolve("delta.idx"));
+
+		assertEquals(BigInteger.valueOf(11), atualizado.getNumero());
+		assertEquals(8, atualizado.getQuantidade());
+		assertEquals(nova, atualizado.consultar(BigInteger.valueOf(5)));
+		assertEquals(antiga, atualizado.consultar(BigInteger.valueOf(10)));
+		assertEquals(nova, atualizado.consultar(BigInteger.valueOf(20)));
+		assertEquals(antiga, atualizado.consultar(BigInteger.valueOf(30)));
+		assertNull(atualizado.consultar(BigInteger.valueOf(35)));
+		assertEquals(antiga, atualizado.consultar(BigInteger.valueOf(40)));
+		assertEquals(nova, atualizado.consultar(BigInteger.valueOf(45)));
+		assertEquals(antiga, atualizado.consultar(BigInteger.valueOf(50)));
+		assertNull(atualizado.consultar(BigInteger.valueOf(99)));
+		assertEquals(nova, atualizado.consultar(larga));
+
+		// O índice base permanece inalterado
+		assertEquals(antiga, indice.consultar(BigInteger.valueOf(35)));
+		assertNull(indice.consultar(larga));
+	}
+
+	@Test
+	public void rejeitaLcrParticionadaPorPontoDeDistribuicao() throws Exception {
+		JcaX509v2CRLBuilder builder = lcr(1);
+		builder.addExtension(Extension.issuingDistributionPoint, true, new IssuingDistributionPoint(new DistributionPointName(
+				new GeneralNames(new GeneralName(GeneralName.uniformResourceIdentifier, "http://ac.exemplo/lcr1.crl"))), false, false));
+		try {
+			IndiceLcr.Lcr.ler(gravar("idp.crl", builder));
+			fail("LCR com issuingDistributionPoint aceita");
+		} catch (CRLException e) {
+			// esperado
+		}
+	}
+
+	@Test
+	public void rejeitaLcrTruncada() throws Exception {
+		JcaX509v2CRLBuilder builder = lcr(1);
+		builder.addCRLEntry(BigInteger.TEN, new Date(), CRLReason.keyCompromise);
+		byte[] der = Files.readAllBytes(gravar("lcr.crl", builder));
+		for (int tamanho : new int[] { 0, 1, 10, der.length / 2, der.length - 1 }) {
+			try {
+				IndiceLcr.Lcr.ler(ByteBuffer.wrap(Arrays.copyOf(der, tamanho))).verificar(certificadoEmissor);
+				fail("LCR truncada em " + tamanho + " bytes aceita");
+			} catch (CRLException e) {
+				// esperado
+			}
+		}
+	}
+
+	@Test
+	public void rejeitaIndiceCorrompido() throws Exception {
+		JcaX509v2CRLBuilder builder = lcr(1);
+		for (int i = 1; i <= 100; i++) {
+			builder.addCRLEntry(BigInteger.valueOf(i), new Date(), CRLReason.keyCompromise);
+		}
+		Path arquivo = this.pasta.getRoot().toPath().resolve("lcr.idx");
+		IndiceLcr.gerar(gravar("lcr.crl", builder), certificadoEmissor, arquivo);
+		byte[] indice = Files.readAllBytes(arquivo);
+
+		abrirCorrompido(Arrays.copyOf(indice, indice.length - 1));
+		abrirCorrompido(Arrays.copyOf(indice, indice.length + 1));
+		abrirCorrompido(Arrays.copyOf(indice, 20));
+		abrirCorrompido(new byte[0]);
+		byte[] magico = indice.clone();
+		magico[0] ^= 1;
+		abrirCorrompido(magico);
+
+		// Quantidade, largura e palavras do filtro ficam após o DN e o número
+		int cauda = 4 + 2 + 8 + 8;
+		cauda += 2 + ByteBuffer.wrap(indice, cauda, 2).getShort();
+		cauda += 2 + ByteBuffer.wrap(indice, cauda, 2).getShort();
+		for (int deslocamento = 0; deslocamento < 9; deslocamento++) {
+			for (byte valor : new byte[] { 0, (byte) 0x7F, (byte) 0x80, (byte) 0xFF }) {
+				byte[] alterado = indice.clone();
+				if (alterado[cauda + deslocamento] != valor) {
+					alterado[cauda + deslocamento] = valor;
+					abrirCorrompido(alterado);
+				}
+			}
+		}
+
+		// Palavras do filtro cujo tamanho em bytes estoura um int
+		byte[] estouro = indice.clone();
+		ByteBuffer palavras = ByteBuffer.wrap(estouro);
+		palavras.putInt(cauda + 5, palavras.getInt(cauda + 5) + (1 << 29));
+		abrirCorrompido(estouro);
+	}
+
+	private void abrirCorrompido(byte[] conteudo) throws IOException {
+		Path arquivo = this.pasta.newFile().toPath();
+		Files.write(arquivo, conteudo);
+		try {
+			IndiceLcr.abrir(arquivo);
+			fail("Índice corrompido aceito (" + conteudo.length + " bytes)");
+		} catch (IOException e) {
+			// esperado
+		}
+	}
+
+	private static JcaX509v2CRLBuilder lcr(long numero) throws Exception {
+		long agora = System.currentTimeMillis();
+		JcaX509v2CRLBuilder builder = new JcaX509v2CRLBuilder(EMISSOR, new Date(agora - 60000L));
+		builder.setNextUpdate(new Date(agora + 86400000L));
+		builder.addExtension(Extension.cRLNumber, false, new ASN1Integer(numero));
+		return builder;
+	}
+
+	private Path gravar(String nome, JcaX509v2CRLBuilder builder) throws Exception {
+		Path arquivo = this.pasta.getRoot().toPath().resolve(nome);
+		Files.write(arquivo, builder.build(assinante()).getEncoded());
+		return arquivo;
+	}
+
+	private static ContentSigner assinante() throws Exception {
+		return new JcaContentSignerBuilder("SHA256withRSA").build(chaves.getPrivate());
+	}
+
+	private static ByteBuffer tempo(int tag, String valor) {
+		byte[] texto = valor.getBytes(StandardCharsets.US_ASCII);
+		return (ByteBuffer) ByteBuffer.allocate(texto.length + 2).put((byte) tag).put((byte) texto.length).put(texto).flip();
+	}
+
+	private static long epoca(int ano, int mes, int dia, int hora, int minuto, int segundo) {
+		return LocalDateTime.of(ano, mes, dia, hora, minuto, segundo).toEpochSecond(ZoneOffset.UTC) * 1000;
+	}
+
+	private static byte[] preenchido(int tamanho, byte valor) {
+		byte[] bytes = new byte[tamanho];
+		Arrays.fill(bytes, valor);
+		return bytes;
+	}
+
+}
@@ -0,0 +1,153 @@
+package repository;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.asn1.ASN1Encoding;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.ASN1Primitive;
+import org.bouncycastle.asn1.ASN1Sequence;
+import org.bouncycastle.asn1.ASN1Set;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.DERSet;
+import org.bouncycastle.asn1.cms.Attribute;
+import org.bouncycastle.asn1.cms.CMSAttributes;
+import org.bouncycastle.asn1.cms.CMSObjectIdentifiers;
+import org.bouncycastle.asn1.cms.ContentInfo;
+import org.bouncycastle.asn1.cms.IssuerAndSerialNumber;
+import org.bouncycastle.asn1.cms.SignedData;
+import org.bouncycastle.asn1.cms.SignerIdentifier;
+import org.bouncycastle.asn1.cms.SignerInfo;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.SignerInformation;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
+import org.bouncycastle.operator.DefaultDigestAlgorithmIdentifierFinder;
+import org.bouncycastle.operator.DefaultSignatureAlgorithmIdentifierFinder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.util.Store;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import util.UtilsAsn1;
+
+public class ModeloSignedDataTest {
+
+	private static final byte[] DOCUMENTO = "Documento de teste".getBytes();
+
+	private static X509Certificate raiz;
+	private static X509Certificate certificado;
+	private static PrivateKey chavePrivada;
+
+	@BeforeClass
+	public static void gerarCertificados() throws Exception {
+		KeyPairGenerator gerador = KeyPairGenerator.getInstance("RSA");
+		gerador.initialize(2048);
+		KeyPair chavesRaiz = gerador.generateKeyPair();
+		KeyPair chaves = gerador.generateKeyPair();
+		chavePrivada = chaves.getPrivate();
+
+		X500Principal dnRaiz = new X500Principal("CN=Raiz Teste, O=ICP-Brasil, C=BR");
+		raiz = emitir(dnRaiz, BigInteger.ONE, dnRaiz, chavesRaiz.getPublic(), chavesRaiz.getPrivate(), true);
+		// Número de série com bit de sinal exige o zero à esquerda no DER
+		certificado = emitir(new X500Principal("CN=Fulano de Tal, O=ICP-Brasil, C=BR"), new BigInteger("80000000000000000001", 16), dnRaiz,
+				chaves.getPublic(), chavesRaiz.getPrivate(), false);
+	}
+
+	@Test
+	public void assinaturaVerificadaPeloBouncyCastle() throws Exception {
+		for (boolean hashNoHost : new boolean[] { false, true }) {
+			Signatario signatario = new Signatario("fulano", certificado, Arrays.<Certificate>asList(certificado, raiz), chavePrivada, hashNoHost);
+			for (String algoritmoHash : new String[] { "SHA-1", "SHA-256", "SHA-384", "SHA-512" }) {
+				byte[] hash = MessageDigest.getInstance(algoritmoHash).digest(DOCUMENTO);
+				verificar(signatario.assinarHash(algoritmoHash, hash, Collections.<Attribute>emptyList()));
+			}
+		}
+	}
+
+	@Test
+	public void assinaturaComAtributosLongosVerificadaPeloBouncyCastle() throws Exception {
+		Signatario signatario = new Signatario("fulano", certificado, Collections.<Certificate>singletonList(certificado), chavePrivada, false);
+		byte[] hash = MessageDigest.getInstance("SHA-256").digest(DOCUMENTO);
+		// Comprimentos de um, dois e três bytes nos cabeçalhos externos
+		for (int tamanho : new int[] { 10, 200, 70000 }) {
+			Attribute adicional = new Attribute(new ASN1ObjectIdentifier("1.2.3.4"), new DERSet(new DEROctetString(new byte[tamanho])));
+			verificar(signatario.assinarHash("SHA-256", hash, Collections.singletonList(adicional)));
+		}
+	}
+
+	@Test
+	public void codificacaoIgualADaEstruturaDoBouncyCastle() throws Exception {
+		String algoritmoAssinatura = "SHA256WithRSA";
+		X509CertificateHolder holder = new X509CertificateHolder(certificado.getEncoded());
+		ASN1Set certificates = UtilsAsn1.gerarCertificates(certificado, Arrays.<Certificate>asList(certificado, raiz));
+
+		Attribute contentType = new Attribute(CMSAttributes.contentType, new DERSet(CMSObjectIdentifiers.data));
+		Attribute longo = new Attribute(new ASN1ObjectIdentifier("1.2.3.4"), new DERSet(new DEROctetString(new byte[300])));
+		byte[] atributos = new DERSet(new Attribute[] { contentType, longo }).getEncoded(ASN1Encoding.DER);
+		byte[] valorAssinatura = new byte[256];
+		Arrays.fill(valorAssinatura, (byte) 0x5A);
+
+		byte[] gerada = new ModeloSignedData(holder, certificates, algoritmoAssinatura).gerar(atributos, valorAssinatura);
+
+		AlgorithmIdentifier algoritmo = new DefaultSignatureAlgorithmIdentifierFinder().find(algoritmoAssinatura);
+		AlgorithmIdentifier algoritmoHash = new DefaultDigestAlgorithmIdentifierFinder().find(algoritmo);
+		SignerInfo signerInfo = new SignerInfo(new SignerIdentifier(new IssuerAndSerialNumber(holder.toASN1Structure())), algoritmoHash,
+				ASN1Set.getInstance(ASN1Primitive.fromByteArray(atributos)), algoritmo, new DEROctetString(valorAssinatura), null);
+		SignedData signedData = new SignedData(new DERSet(algoritmoHash), new ContentInfo(CMSObjectIdentifiers.data, null), certificates, null,
+				new DERSet(signerInfo));
+		byte[] esperada = new ContentInfo(CMSObjectIdentifiers.signedData, signedData).getEncoded(ASN1Encoding.DER);
+
+		assertArrayEquals(esperada, gerada);
+		// A codificação gerada é DER: nenhuma forma indefinida a reescrever
+		assertArrayEquals(gerada, ASN1Sequence.getInstance(gerada).getEncoded(ASN1Encoding.DER));
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void verificar(byte[] assinatura) throws Exception {
+		CMSSignedData cms = new CMSSignedData(new CMSProcessableByteArray(DOCUMENTO), assinatura);
+		Collection<SignerInformation> signatarios = cms.getSignerInfos().getSigners();
+		assertEquals(1, signatarios.size());
+
+		SignerInformation signerInformation = signatarios.iterator().next();
+		Store<X509CertificateHolder> certificados = cms.getCertificates();
+		Collection<X509CertificateHolder> correspondentes = certificados.getMatches(signerInformation.getSID());
+		assertEquals(1, correspondentes.size());
+		X509CertificateHolder holder = correspondentes.iterator().next();
+		assertArrayEquals(certificado.getEncoded(), holder.getEncoded());
+
+		assertTrue(signerInformation.verify(new JcaSimpleSignerInfoVerifierBuilder().build(holder)));
+	}
+
+	private static X509Certificate emitir(X500Principal titular, BigInteger serie, X500Principal emissor, PublicKey chavePublica,
+			PrivateKey chaveEmissor, boolean ac) throws Exception {
+		long agora = System.currentTimeMillis();
+		JcaX509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(emissor, serie, new Date(agora - 86400000L),
+				new Date(agora + 86400000L), titular, chavePublica);
+		builder.addExtension(Extension.basicConstraints, true, new BasicConstraints(ac));
+		return new JcaX509CertificateConverter().getCertificate(builder.build(new JcaContentSignerBuilder("SHA256withRSA").build(chaveEmissor)));
+	}
+
+}